@@ -0,0 +1,85 @@
+package datawave.microservice.querymetric.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import datawave.microservice.querymetric.BaseQueryMetric;
+import datawave.microservice.querymetric.JacksonQueryMetricCodec;
+import datawave.microservice.querymetric.QueryMetric;
+import datawave.microservice.querymetric.QueryMetricCodec;
+import datawave.microservice.querymetric.QueryMetricTestSupport;
+import datawave.microservice.querymetric.config.QueryMetricCodecType;
+
+/**
+ * Cost of encoding and decoding a REST payload of 1, 100 and 10k metrics with each codec. The encoded size of the payload, plain and gzip compressed, is
+ * printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QueryMetricCodecBenchmark {
+    
+    @Param({"JSON", "SMILE"})
+    public QueryMetricCodecType codecType;
+    
+    @Param({"1", "100", "10000"})
+    public int metrics;
+    
+    private QueryMetricCodec codec;
+    
+    private Object body;
+    
+    private Class<?> bodyType;
+    
+    private byte[] encoded;
+    
+    @Setup
+    public void setup() throws IOException {
+        codec = JacksonQueryMetricCodec.create(codecType, new ObjectMapper());
+        List<BaseQueryMetric> payload = QueryMetricTestSupport.createMetrics(metrics);
+        if (metrics == 1) {
+            body = payload.get(0);
+            bodyType = QueryMetric.class;
+        } else {
+            body = payload;
+            bodyType = QueryMetric[].class;
+        }
+        encoded = codec.encode(body);
+        
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOut = new GZIPOutputStream(compressed)) {
+            gzipOut.write(encoded);
+        }
+        System.out.printf("%n%s encoding of %d metrics: %d bytes, %d bytes gzip compressed%n", codecType, metrics, encoded.length, compressed.size());
+    }
+    
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return codec.encode(body);
+    }
+    
+    @Benchmark
+    public Object decode() throws IOException {
+        return codec.read(encoded, bodyType);
+    }
+}
@@ -0,0 +1,80 @@
+package datawave.microservice.querymetric.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import datawave.microservice.querymetric.QueryMetricClient;
+import datawave.microservice.querymetric.QueryMetricClientFixture;
+import datawave.microservice.querymetric.QueryMetricType;
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+
+/**
+ * Throughput of concurrent blocking submits against a single shared client, for 1 to 64 submitting threads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QueryMetricConcurrentSubmitBenchmark {
+    
+    @Param({"MESSAGE", "REST"})
+    public QueryMetricTransportType transport;
+    
+    private QueryMetricClientFixture fixture;
+    
+    private QueryMetricClient.Request request;
+    
+    @Setup
+    public void setup() throws Exception {
+        fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(transport);
+            properties.getRest().setPooled(true);
+            properties.getRest().setMaxConnectionsPerRoute(64);
+        });
+        request = fixture.createRequest(1, QueryMetricType.COMPLETE);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        fixture.close();
+    }
+    
+    @Benchmark
+    @Threads(1)
+    public void submit1() throws Exception {
+        fixture.getClient().submit(request);
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public void submit4() throws Exception {
+        fixture.getClient().submit(request);
+    }
+    
+    @Benchmark
+    @Threads(16)
+    public void submit16() throws Exception {
+        fixture.getClient().submit(request);
+    }
+    
+    @Benchmark
+    @Threads(64)
+    public void submit64() throws Exception {
+        fixture.getClient().submit(request);
+    }
+}
@@ -0,0 +1,225 @@
+package datawave.microservice.querymetric.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import datawave.microservice.querymetric.QueryMetricClient;
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult;
+import datawave.microservice.querymetric.QueryMetricClientFixture;
+import datawave.microservice.querymetric.QueryMetricType;
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+
+/**
+ * Load driver which runs a number of concurrent submitters against a {@link QueryMetricClientFixture} for each transport, and reports the throughput and
+ * latency percentiles of their submissions.
+ * <p>
+ * The stub binder and service can be made slow or lossy, and both can be taken down for a window part way through the run, so that slow ack and broker
+ * outage scenarios can be reproduced offline. Options are given as {@code --name=value}:
+ * <ul>
+ * <li>{@code transports}: comma separated transports to drive, default {@code MESSAGE,REST,REACTIVE_REST}</li>
+ * <li>{@code submitters}: number of concurrent submitters, default 16</li>
+ * <li>{@code metrics}: number of metrics per submission, default 1</li>
+ * <li>{@code metricType}: metric type of the submissions, default {@code COMPLETE}</li>
+ * <li>{@code warmupSeconds}, {@code durationSeconds}: length of the unmeasured and measured phases, default 5 and 30</li>
+ * <li>{@code ackLatencyMillis}, {@code ackDropRate}: delay and fraction of lost confirm acks, default 0</li>
+ * <li>{@code serviceLatencyMillis}, {@code serviceFailureRate}: delay and fraction of failed REST requests, default 0</li>
+ * <li>{@code outageStartSeconds}, {@code outageSeconds}: window of the measured phase during which every ack is lost and every REST request fails, default
+ * none</li>
+ * </ul>
+ */
+public class QueryMetricLoadDriver {
+    
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+    
+    private final Map<String,String> options;
+    
+    public QueryMetricLoadDriver(Map<String,String> options) {
+        this.options = options;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String,String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Options must be given as --name=value, not " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new QueryMetricLoadDriver(options).run();
+        System.exit(0);
+    }
+    
+    public void run() throws Exception {
+        System.out.printf("%-10s %10s %10s %8s %12s %9s %9s %9s %9s %9s%n", "transport", "submitters", "requests", "failed", "requests/s", "p50 ms", "p90 ms",
+                        "p99 ms", "p99.9 ms", "max ms");
+        for (String transport : option("transports", "MESSAGE,REST,REACTIVE_REST").split(",")) {
+            Result result = run(QueryMetricTransportType.valueOf(transport.trim()));
+            double[] percentiles = result.percentiles();
+            System.out.printf("%-10s %10d %10d %8d %12.1f %9.3f %9.3f %9.3f %9.3f %9.3f%n", transport.trim(), result.submitters, result.latencies.length,
+                            result.failed, result.throughput(), percentiles[0], percentiles[1], percentiles[2], percentiles[3], result.max());
+        }
+    }
+    
+    private Result run(QueryMetricTransportType transportType) throws Exception {
+        final int submitters = Integer.parseInt(option("submitters", "16"));
+        final int metrics = Integer.parseInt(option("metrics", "1"));
+        final QueryMetricType metricType = QueryMetricType.valueOf(option("metricType", "COMPLETE"));
+        final long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmupSeconds", "5")));
+        final long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("durationSeconds", "30")));
+        final long ackLatencyMillis = Long.parseLong(option("ackLatencyMillis", "0"));
+        final double ackDropRate = Double.parseDouble(option("ackDropRate", "0"));
+        final long serviceLatencyMillis = Long.parseLong(option("serviceLatencyMillis", "0"));
+        final double serviceFailureRate = Double.parseDouble(option("serviceFailureRate", "0"));
+        final long outageStartSeconds = Long.parseLong(option("outageStartSeconds", "-1"));
+        final long outageSeconds = Long.parseLong(option("outageSeconds", "0"));
+        
+        ScheduledExecutorService outageScheduler = Executors.newSingleThreadScheduledExecutor();
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(transportType);
+            properties.getRest().setPooled(true);
+        })) {
+            fixture.getBinder().setAckLatencyMillis(ackLatencyMillis);
+            fixture.getBinder().setDropRate(ackDropRate);
+            fixture.getService().setLatencyMillis(serviceLatencyMillis);
+            fixture.getService().setFailureRate(serviceFailureRate);
+            if (outageStartSeconds >= 0 && outageSeconds > 0) {
+                long outageStartMillis = TimeUnit.NANOSECONDS.toMillis(warmupNanos) + TimeUnit.SECONDS.toMillis(outageStartSeconds);
+                outageScheduler.schedule(() -> {
+                    fixture.getBinder().setDropRate(1.0);
+                    fixture.getService().setFailureRate(1.0);
+                }, outageStartMillis, TimeUnit.MILLISECONDS);
+                outageScheduler.schedule(() -> {
+                    fixture.getBinder().setDropRate(ackDropRate);
+                    fixture.getService().setFailureRate(serviceFailureRate);
+                }, outageStartMillis + TimeUnit.SECONDS.toMillis(outageSeconds), TimeUnit.MILLISECONDS);
+            }
+            
+            final long measureStart = System.nanoTime() + warmupNanos;
+            final long measureEnd = measureStart + durationNanos;
+            List<Submitter> workers = new ArrayList<>(submitters);
+            CountDownLatch done = new CountDownLatch(submitters);
+            for (int i = 0; i < submitters; i++) {
+                Submitter submitter = new Submitter(fixture.getClient(), fixture.createRequest(metrics, metricType), measureStart, measureEnd, done);
+                workers.add(submitter);
+                Thread thread = new Thread(submitter, "query-metric-load-driver-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            done.await();
+            
+            Result result = new Result(submitters, durationNanos);
+            for (Submitter submitter : workers) {
+                result.add(submitter);
+            }
+            return result;
+        } finally {
+            outageScheduler.shutdownNow();
+        }
+    }
+    
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+    
+    /**
+     * Submits the same request back to back, recording the latency of those which complete in the measured phase
+     */
+    private static class Submitter implements Runnable {
+        private final QueryMetricClient client;
+        private final QueryMetricClient.Request request;
+        private final long measureStart;
+        private final long measureEnd;
+        private final CountDownLatch done;
+        private long[] latencies = new long[1024];
+        private int count = 0;
+        private int failed = 0;
+        
+        private Submitter(QueryMetricClient client, QueryMetricClient.Request request, long measureStart, long measureEnd, CountDownLatch done) {
+            this.client = client;
+            this.request = request;
+            this.measureStart = measureStart;
+            this.measureEnd = measureEnd;
+            this.done = done;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                long now = System.nanoTime();
+                while (now < measureEnd) {
+                    final long start = now;
+                    boolean success;
+                    try {
+                        SubmitResult result = client.submitAsync(request).get();
+                        success = result.isSuccess();
+                    } catch (Exception e) {
+                        success = false;
+                    }
+                    now = System.nanoTime();
+                    if (start >= measureStart && now <= measureEnd) {
+                        record(now - start, success);
+                    }
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+        
+        private void record(long nanos, boolean success) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            if (!success) {
+                failed++;
+            }
+        }
+    }
+    
+    private static class Result {
+        private final int submitters;
+        private final long durationNanos;
+        private long[] latencies = new long[0];
+        private int failed = 0;
+        
+        private Result(int submitters, long durationNanos) {
+            this.submitters = submitters;
+            this.durationNanos = durationNanos;
+        }
+        
+        private void add(Submitter submitter) {
+            int offset = latencies.length;
+            latencies = Arrays.copyOf(latencies, offset + submitter.count);
+            System.arraycopy(submitter.latencies, 0, latencies, offset, submitter.count);
+            failed += submitter.failed;
+        }
+        
+        private double throughput() {
+            return latencies.length / (durationNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+        
+        private double[] percentiles() {
+            Arrays.sort(latencies);
+            double[] values = new double[PERCENTILES.length];
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                values[i] = latencies.length == 0 ? 0.0 : toMillis(latencies[(int) Math.ceil(PERCENTILES[i] / 100.0 * latencies.length) - 1]);
+            }
+            return values;
+        }
+        
+        private double max() {
+            return latencies.length == 0 ? 0.0 : toMillis(latencies[latencies.length - 1]);
+        }
+        
+        private static double toMillis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
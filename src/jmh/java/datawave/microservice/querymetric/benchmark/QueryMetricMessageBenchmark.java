@@ -0,0 +1,74 @@
+package datawave.microservice.querymetric.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+
+import datawave.microservice.querymetric.QueryMetricClient;
+import datawave.microservice.querymetric.QueryMetricClientFixture;
+import datawave.microservice.querymetric.QueryMetricTestSupport;
+import datawave.microservice.querymetric.QueryMetricType;
+import datawave.microservice.querymetric.QueryMetricUpdate;
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+import datawave.microservice.querymetric.function.QueryMetricMessageSupplier.EmitOutcome;
+
+/**
+ * Single threaded throughput of the message transport, from {@link QueryMetricClient#submit(QueryMetricClient.Request)} through to the confirm ack, with
+ * confirm acks on and off. The cost of {@code QueryMetricSupplier.emit} on its own is measured separately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QueryMetricMessageBenchmark {
+    
+    @Param({"true", "false"})
+    public boolean confirmAck;
+    
+    private QueryMetricClientFixture fixture;
+    
+    private QueryMetricClient.Request request;
+    
+    private Message<QueryMetricUpdate> message;
+    
+    @Setup
+    public void setup() throws Exception {
+        fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+            properties.setConfirmAckEnabled(confirmAck);
+        });
+        request = fixture.createRequest(1, QueryMetricType.COMPLETE);
+        // no correlation id, so the stub binder doesn't ack it
+        message = MessageBuilder.withPayload(new QueryMetricUpdate(QueryMetricTestSupport.createMetric(0), QueryMetricType.COMPLETE)).build();
+    }
+    
+    @TearDown
+    public void tearDown() {
+        fixture.close();
+    }
+    
+    @Benchmark
+    public void submit() throws Exception {
+        fixture.getClient().submit(request);
+    }
+    
+    @Benchmark
+    public EmitOutcome emit() {
+        return fixture.getSupplier().emit(message);
+    }
+}
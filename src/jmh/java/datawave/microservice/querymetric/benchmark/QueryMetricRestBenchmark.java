@@ -0,0 +1,90 @@
+package datawave.microservice.querymetric.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import datawave.microservice.querymetric.BaseQueryMetric;
+import datawave.microservice.querymetric.QueryMetricClient;
+import datawave.microservice.querymetric.QueryMetricClientFixture;
+import datawave.microservice.querymetric.QueryMetricTestSupport;
+import datawave.microservice.querymetric.QueryMetricType;
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+
+/**
+ * Cost of a REST submission of 1, 100 and 10k metrics against a local stub service, with and without streaming serialization, alongside the cost of
+ * serializing the same payload on its own
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QueryMetricRestBenchmark {
+    
+    @Param({"1", "100", "10000"})
+    public int metrics;
+    
+    @Param({"true", "false"})
+    public boolean streaming;
+    
+    private QueryMetricClientFixture fixture;
+    
+    private QueryMetricClient.Request request;
+    
+    private Object body;
+    
+    private final OutputStream discard = new OutputStream() {
+        @Override
+        public void write(int b) {}
+        
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+    
+    @Setup
+    public void setup() throws Exception {
+        fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.REST);
+            properties.getRest().setPooled(true);
+            properties.getRest().setStreaming(streaming);
+        });
+        request = fixture.createRequest(metrics, QueryMetricType.COMPLETE);
+        List<BaseQueryMetric> payload = QueryMetricTestSupport.createMetrics(metrics);
+        body = metrics == 1 ? payload.get(0) : payload;
+    }
+    
+    @TearDown
+    public void tearDown() {
+        fixture.close();
+    }
+    
+    @Benchmark
+    public void submit() throws Exception {
+        fixture.getClient().submit(request);
+    }
+    
+    @Benchmark
+    public Object serialize() throws IOException {
+        if (streaming) {
+            fixture.getObjectMapper().writeValue(discard, body);
+            return discard;
+        }
+        return fixture.getObjectMapper().writeValueAsString(body);
+    }
+}
@@ -0,0 +1,141 @@
+package datawave.microservice.querymetric;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.AdaptiveConfirmAck;
+
+/**
+ * Confirm ack timeout derived from the observed round trip time of confirm acks.
+ * <p>
+ * The configured percentile of the round trip time is estimated over consecutive windows of acks with the P² algorithm, which needs only five markers rather
+ * than the samples themselves. At the end of each window the estimate is averaged with that of the previous window, and the timeout becomes the configured
+ * multiple of it, bounded by the configured minimum and maximum. An ack which arrives after the current timeout has already caused a needless resend, so it
+ * raises the timeout straight away rather than at the end of the window.
+ */
+public class AdaptiveConfirmAckTimeout {
+    
+    private final AdaptiveConfirmAck adaptiveConfirmAck;
+    
+    private final double[] increments;
+    
+    // marker heights, actual positions and desired positions for the current window
+    private final double[] heights = new double[5];
+    
+    private final int[] positions = new int[5];
+    
+    private final double[] desired = new double[5];
+    
+    private int count = 0;
+    
+    // the smoothed percentile estimate in nanoseconds, or a negative value until the first window is complete
+    private double estimateNanos = -1.0;
+    
+    private volatile long timeoutMillis;
+    
+    /**
+     * @param adaptiveConfirmAck
+     *            the adaptive timeout configuration, not null
+     * @param initialTimeoutMillis
+     *            the timeout to use until the first window of acks is complete
+     */
+    public AdaptiveConfirmAckTimeout(AdaptiveConfirmAck adaptiveConfirmAck, long initialTimeoutMillis) {
+        this.adaptiveConfirmAck = adaptiveConfirmAck;
+        double percentile = adaptiveConfirmAck.getPercentile();
+        this.increments = new double[] {0.0, percentile / 2.0, percentile, (1.0 + percentile) / 2.0, 1.0};
+        this.timeoutMillis = bound(initialTimeoutMillis);
+    }
+    
+    /**
+     * Records the round trip time of a confirm ack.
+     *
+     * @param roundTripNanos
+     *            the time between registering the pending ack and receiving its ack, in nanoseconds
+     */
+    public synchronized void record(long roundTripNanos) {
+        if (roundTripNanos > TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+            timeoutMillis = bound(toTimeoutMillis(roundTripNanos));
+        }
+        
+        double sample = roundTripNanos;
+        if (count < 5) {
+            heights[count++] = sample;
+            if (count == 5) {
+                Arrays.sort(heights);
+                for (int i = 0; i < 5; i++) {
+                    positions[i] = i;
+                    desired[i] = 4.0 * increments[i];
+                }
+            }
+        } else {
+            add(sample);
+            count++;
+        }
+        
+        if (count >= Math.max(5, adaptiveConfirmAck.getWindowSize())) {
+            double windowEstimate = heights[2];
+            estimateNanos = estimateNanos < 0.0 ? windowEstimate : (estimateNanos + windowEstimate) / 2.0;
+            timeoutMillis = bound(toTimeoutMillis(estimateNanos));
+            count = 0;
+        }
+    }
+    
+    private void add(double sample) {
+        int cell;
+        if (sample < heights[0]) {
+            heights[0] = sample;
+            cell = 0;
+        } else if (sample >= heights[4]) {
+            heights[4] = sample;
+            cell = 3;
+        } else {
+            cell = 0;
+            while (sample >= heights[cell + 1]) {
+                cell++;
+            }
+        }
+        for (int i = cell + 1; i < 5; i++) {
+            positions[i]++;
+        }
+        for (int i = 0; i < 5; i++) {
+            desired[i] += increments[i];
+        }
+        
+        // move the middle markers towards their desired positions, by one position at most
+        for (int i = 1; i < 4; i++) {
+            double offset = desired[i] - positions[i];
+            if ((offset >= 1.0 && positions[i + 1] - positions[i] > 1) || (offset <= -1.0 && positions[i - 1] - positions[i] < -1)) {
+                int step = offset > 0 ? 1 : -1;
+                double height = parabolic(i, step);
+                if (heights[i - 1] < height && height < heights[i + 1]) {
+                    heights[i] = height;
+                } else {
+                    heights[i] += step * (heights[i + step] - heights[i]) / (positions[i + step] - positions[i]);
+                }
+                positions[i] += step;
+            }
+        }
+    }
+    
+    private double parabolic(int i, int step) {
+        double below = positions[i] - positions[i - 1];
+        double above = positions[i + 1] - positions[i];
+        return heights[i] + step / (double) (positions[i + 1] - positions[i - 1])
+                        * ((below + step) * (heights[i + 1] - heights[i]) / above + (above - step) * (heights[i] - heights[i - 1]) / below);
+    }
+    
+    private long toTimeoutMillis(double nanos) {
+        return (long) Math.ceil(adaptiveConfirmAck.getMultiplier() * nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    
+    private long bound(long millis) {
+        return Math.min(adaptiveConfirmAck.getMaxTimeoutMillis(), Math.max(adaptiveConfirmAck.getMinTimeoutMillis(), millis));
+    }
+    
+    /**
+     * @return the current confirm ack timeout, in milliseconds
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+}
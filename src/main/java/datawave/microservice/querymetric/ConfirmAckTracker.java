@@ -0,0 +1,483 @@
+package datawave.microservice.querymetric;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks outstanding producer confirm acks by correlation id.
+ * <p>
+ * Correlation ids are issued by the tracker as a per-tracker random prefix followed by a monotonic counter, so no random number generation is needed per
+ * message. Pending acks are registered as their messages are sent, and are then awaited as a group against a single shared deadline. Groups are completed via
+ * callback as soon as their last ack arrives, and expired groups are swept by a hashed timer wheel which ticks on the supplied scheduler, so no thread is
+ * parked waiting on any individual ack.
+ * <p>
+ * Since ids are issued in order, pending acks are stored in a ring indexed by the low bits of their counter, which only needs the ring slot to be compared on
+ * lookup. A pending ack whose slot is still occupied by an older one falls back to a map.
+ * <p>
+ * When a round trip listener is supplied, the send time of each correlation id is also kept in a ring of its own, which outlives the pending ack. The round
+ * trip time of an ack is then reported even if it arrives after its group has expired, for as long as its slot has not been reused.
+ * <p>
+ * Several messages may share one correlation id, in which case their acks are told apart by their sequence numbers, so that only the messages which were
+ * never acknowledged need to be resent. Packed batches are a single message, and so need only one ack.
+ * <p>
+ * A correlation id whose message is known to have been lost, e.g. because it was evicted from the supplier's buffer, can be failed straight away, so that
+ * its group completes without waiting out its deadline.
+ */
+public class ConfirmAckTracker {
+    
+    private static final int WHEEL_SIZE = 512;
+    
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    
+    private final String idPrefix;
+    
+    private final AtomicLong nextId = new AtomicLong();
+    
+    private final AtomicReferenceArray<PendingAck> ring;
+    
+    private final int ringMask;
+    
+    private final Map<Long,PendingAck> overflow = new ConcurrentHashMap<>();
+    
+    private final AtomicInteger size = new AtomicInteger();
+    
+    private final Queue<Group>[] wheel;
+    
+    private final long tickMillis;
+    
+    private volatile long lastTick;
+    
+    private final LongConsumer roundTripListener;
+    
+    // the correlation id and send time last registered in each ring slot, for measuring the round trip of late acks
+    private final AtomicLongArray sentIds;
+    
+    private final AtomicLongArray sentNanos;
+    
+    /**
+     * @param scheduler
+     *            the scheduler on which to tick the timer wheel, not null
+     * @param tickMillis
+     *            the timer wheel tick, in milliseconds
+     * @param ringSize
+     *            the number of ring slots for pending acks, rounded up to a power of two
+     */
+    public ConfirmAckTracker(ScheduledExecutorService scheduler, long tickMillis, int ringSize) {
+        this(scheduler, tickMillis, ringSize, null);
+    }
+    
+    /**
+     * @param scheduler
+     *            the scheduler on which to tick the timer wheel, not null
+     * @param tickMillis
+     *            the timer wheel tick, in milliseconds
+     * @param ringSize
+     *            the number of ring slots for pending acks, rounded up to a power of two
+     * @param roundTripListener
+     *            receives the round trip time, in nanoseconds, of each correlation id once it has been acknowledged, or null
+     */
+    @SuppressWarnings("unchecked")
+    public ConfirmAckTracker(ScheduledExecutorService scheduler, long tickMillis, int ringSize, LongConsumer roundTripListener) {
+        this.idPrefix = Long.toHexString(UUID.randomUUID().getMostSignificantBits()) + '-';
+        int slots = Integer.highestOneBit(Math.max(2, ringSize) * 2 - 1);
+        this.ring = new AtomicReferenceArray<>(slots);
+        this.ringMask = slots - 1;
+        this.roundTripListener = roundTripListener;
+        if (roundTripListener != null) {
+            this.sentIds = new AtomicLongArray(slots);
+            this.sentNanos = new AtomicLongArray(slots);
+        } else {
+            this.sentIds = null;
+            this.sentNanos = null;
+        }
+        
+        this.tickMillis = Math.max(1L, tickMillis);
+        this.wheel = new Queue[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.lastTick = System.currentTimeMillis() / this.tickMillis;
+        scheduler.scheduleAtFixedRate(this::sweep, this.tickMillis, this.tickMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Issues a correlation id for a message whose confirm ack will not be tracked.
+     *
+     * @return the correlation id
+     */
+    public String nextCorrelationId() {
+        return idPrefix + Long.toHexString(nextId.getAndIncrement());
+    }
+    
+    /**
+     * Registers a pending ack under a new correlation id before its message(s) are sent, so that an ack which arrives before it is awaited is not lost.
+     *
+     * @param expectedAcks
+     *            the number of acks which must be received for the correlation id to be considered acknowledged
+     * @param updates
+     *            the updates carried by the message(s), not null
+     * @return the pending ack, whose correlation id must be set on the message(s)
+     */
+    public PendingAck register(int expectedAcks, List<QueryMetricUpdate> updates) {
+        long id = nextId.getAndIncrement();
+        PendingAck pendingAck = new PendingAck(id, idPrefix + Long.toHexString(id), expectedAcks, updates);
+        if (roundTripListener != null) {
+            // publish the send time before the id, so that a reader which sees the id also sees its send time
+            sentNanos.set(slot(id), System.nanoTime());
+            sentIds.set(slot(id), id);
+        }
+        if (!ring.compareAndSet(slot(id), null, pendingAck)) {
+            overflow.put(id, pendingAck);
+        }
+        size.incrementAndGet();
+        return pendingAck;
+    }
+    
+    /**
+     * Stops tracking a pending ack, e.g. because its message could not be sent.
+     *
+     * @param pendingAck
+     *            the pending ack, not null
+     */
+    public void unregister(PendingAck pendingAck) {
+        if (ring.compareAndSet(slot(pendingAck.id), pendingAck, null) || overflow.remove(pendingAck.id, pendingAck)) {
+            size.decrementAndGet();
+        }
+    }
+    
+    /**
+     * Records an ack for the given correlation id.
+     *
+     * @param correlationId
+     *            the correlation id, not null
+     * @return true if the correlation id was being tracked, false otherwise
+     */
+    public boolean ack(String correlationId) {
+        return ack(correlationId, 0);
+    }
+    
+    /**
+     * Records an ack for one message of the given correlation id.
+     *
+     * @param correlationId
+     *            the correlation id, not null
+     * @param sequenceNumber
+     *            the sequence number of the acknowledged message within its batch, starting at 1, or 0 if unknown
+     * @return true if the correlation id was being tracked, false otherwise
+     */
+    public boolean ack(String correlationId, int sequenceNumber) {
+        long id = parseId(correlationId);
+        if (id < 0) {
+            return false;
+        }
+        PendingAck pendingAck = lookup(id);
+        if (pendingAck != null) {
+            if (pendingAck.countDown(sequenceNumber)) {
+                reportRoundTrip(id);
+            }
+            return true;
+        }
+        // the ack may have arrived after its group expired
+        reportRoundTrip(id);
+        return false;
+    }
+    
+    /**
+     * Fails the pending ack for the given correlation id without waiting for its deadline, e.g. because its message was dropped before it was sent. Its group
+     * completes once every other pending ack in it has been acknowledged or failed, and reports it as not acknowledged.
+     *
+     * @param correlationId
+     *            the correlation id, not null
+     * @return true if the correlation id was being tracked and had not yet been acknowledged, false otherwise
+     */
+    public boolean fail(String correlationId) {
+        long id = parseId(correlationId);
+        if (id < 0) {
+            return false;
+        }
+        PendingAck pendingAck = lookup(id);
+        return pendingAck != null && pendingAck.fail();
+    }
+    
+    /**
+     * Reports the round trip time of the given id, at most once, if its send time is still known.
+     */
+    private void reportRoundTrip(long id) {
+        if (roundTripListener != null && sentIds.get(slot(id)) == id) {
+            long roundTripNanos = System.nanoTime() - sentNanos.get(slot(id));
+            if (sentIds.compareAndSet(slot(id), id, -1L)) {
+                roundTripListener.accept(roundTripNanos);
+            }
+        }
+    }
+    
+    /**
+     * @return the counter of the correlation id, or -1 if it wasn't issued by this tracker
+     */
+    private long parseId(String correlationId) {
+        if (!correlationId.startsWith(idPrefix) || correlationId.length() == idPrefix.length()) {
+            return -1L;
+        }
+        try {
+            return Long.parseUnsignedLong(correlationId, idPrefix.length(), correlationId.length(), 16);
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+    
+    private PendingAck lookup(long id) {
+        PendingAck pendingAck = ring.get(slot(id));
+        if (pendingAck != null && pendingAck.id == id) {
+            return pendingAck;
+        }
+        return overflow.isEmpty() ? null : overflow.get(id);
+    }
+    
+    private int slot(long id) {
+        return (int) id & ringMask;
+    }
+    
+    /**
+     * Awaits a group of registered pending acks against a single shared deadline.
+     *
+     * @param pendingAcks
+     *            the registered pending acks to wait on, not null
+     * @param timeoutMillis
+     *            the maximum amount of time to wait for the group as a whole
+     * @return a future which completes with the pending acks which were not acknowledged in time, or an empty list if all were acknowledged
+     */
+    public CompletableFuture<List<PendingAck>> await(Collection<PendingAck> pendingAcks, long timeoutMillis) {
+        Group group = new Group(new ArrayList<>(pendingAcks), System.currentTimeMillis() + timeoutMillis);
+        int alreadyResolved = 0;
+        for (PendingAck pendingAck : group.pendingAcks) {
+            if (!pendingAck.attach(group)) {
+                alreadyResolved++;
+            }
+        }
+        if (group.outstanding.addAndGet(-alreadyResolved) <= 0) {
+            group.finish();
+        } else {
+            // round up to the next tick, and never use a bucket which has already been swept, or the group would wait a full revolution
+            long tick = Math.max((group.deadline + tickMillis - 1) / tickMillis, lastTick + 1);
+            wheel[(int) (tick % WHEEL_SIZE)].add(group);
+        }
+        return group.future;
+    }
+    
+    /**
+     * @return the number of correlation ids which are currently being tracked
+     */
+    public int size() {
+        return size.get();
+    }
+    
+    /**
+     * Advances the timer wheel, expiring any groups whose deadline has passed. Buckets for ticks which were missed because the scheduler was busy are swept as
+     * well.
+     */
+    private void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            long currentTick = now / tickMillis;
+            long firstTick = Math.max(lastTick + 1, currentTick - WHEEL_SIZE + 1);
+            for (long tick = firstTick; tick <= currentTick; tick++) {
+                Iterator<Group> groups = wheel[(int) (tick % WHEEL_SIZE)].iterator();
+                while (groups.hasNext()) {
+                    Group group = groups.next();
+                    if (group.done.get()) {
+                        groups.remove();
+                    } else if (group.deadline <= now) {
+                        groups.remove();
+                        group.finish();
+                    }
+                }
+            }
+            lastTick = currentTick;
+        } catch (Exception e) {
+            log.warn("Failed to sweep confirm ack timer wheel", e);
+        }
+    }
+    
+    private final class Group {
+        private final List<PendingAck> pendingAcks;
+        private final long deadline;
+        private final AtomicInteger outstanding;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final CompletableFuture<List<PendingAck>> future = new CompletableFuture<>();
+        
+        private Group(List<PendingAck> pendingAcks, long deadline) {
+            this.pendingAcks = pendingAcks;
+            this.deadline = deadline;
+            this.outstanding = new AtomicInteger(pendingAcks.size());
+        }
+        
+        /**
+         * Counts down a pending ack which has been acknowledged or failed, and completes the group with any which failed once none are outstanding.
+         */
+        private void resolved() {
+            if (outstanding.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+        
+        /**
+         * Completes the group with the pending acks which were not acknowledged, once all have been resolved or its deadline has passed.
+         */
+        private void finish() {
+            if (done.compareAndSet(false, true)) {
+                List<PendingAck> failed = new ArrayList<>();
+                for (PendingAck pendingAck : pendingAcks) {
+                    if (!pendingAck.isAcked()) {
+                        failed.add(pendingAck);
+                    }
+                }
+                release();
+                future.complete(failed);
+            }
+        }
+        
+        private void release() {
+            for (PendingAck pendingAck : pendingAcks) {
+                unregister(pendingAck);
+            }
+        }
+    }
+    
+    /**
+     * A correlation id which is awaiting one or more confirm acks, along with the updates carried by its message(s)
+     */
+    public static final class PendingAck {
+        private final long id;
+        private final String correlationId;
+        private final List<QueryMetricUpdate> updates;
+        private final int expectedAcks;
+        private int remaining;
+        private boolean acked;
+        private boolean failed;
+        private Group group;
+        // the sequence numbers, less one, of the messages which have been acknowledged, if more than one ack is expected
+        private final BitSet ackedSequences;
+        
+        private PendingAck(long id, String correlationId, int expectedAcks, List<QueryMetricUpdate> updates) {
+            this.id = id;
+            this.correlationId = correlationId;
+            this.expectedAcks = expectedAcks;
+            this.remaining = expectedAcks;
+            this.updates = updates;
+            this.ackedSequences = expectedAcks > 1 ? new BitSet(expectedAcks) : null;
+        }
+        
+        public String getCorrelationId() {
+            return correlationId;
+        }
+        
+        public List<QueryMetricUpdate> getUpdates() {
+            return updates;
+        }
+        
+        /**
+         * @return the updates carried by the messages which have not been acknowledged, i.e. those which need to be resent
+         */
+        public synchronized List<QueryMetricUpdate> getUnackedUpdates() {
+            if (acked) {
+                return Collections.emptyList();
+            }
+            if (ackedSequences == null || ackedSequences.isEmpty()) {
+                return updates;
+            }
+            List<QueryMetricUpdate> unacked = new ArrayList<>(remaining);
+            for (int i = 0; i < updates.size(); i++) {
+                if (!ackedSequences.get(i)) {
+                    unacked.add(updates.get(i));
+                }
+            }
+            return unacked;
+        }
+        
+        private synchronized boolean isAcked() {
+            return acked;
+        }
+        
+        /**
+         * @return false if the pending ack was acknowledged or failed before the group was attached
+         */
+        private synchronized boolean attach(Group group) {
+            if (acked || failed) {
+                return false;
+            }
+            this.group = group;
+            return true;
+        }
+        
+        /**
+         * @return true if the pending ack had neither been acknowledged nor failed already
+         */
+        private boolean fail() {
+            Group notify;
+            synchronized (this) {
+                if (acked || failed) {
+                    return false;
+                }
+                failed = true;
+                notify = group;
+            }
+            if (notify != null) {
+                notify.resolved();
+            }
+            return true;
+        }
+        
+        /**
+         * @param sequenceNumber
+         *            the sequence number of the acknowledged message, or 0 if unknown, in which case the ack is counted against the first unacknowledged
+         *            message
+         * @return true if this was the last of the expected acks
+         */
+        private boolean countDown(int sequenceNumber) {
+            Group notify;
+            synchronized (this) {
+                if (acked || failed) {
+                    return false;
+                }
+                if (ackedSequences != null) {
+                    int index = sequenceNumber > 0 && sequenceNumber <= expectedAcks ? sequenceNumber - 1 : ackedSequences.nextClearBit(0);
+                    if (ackedSequences.get(index)) {
+                        // a duplicate ack for a message which has already been acknowledged
+                        return false;
+                    }
+                    ackedSequences.set(index);
+                }
+                if (--remaining > 0) {
+                    return false;
+                }
+                acked = true;
+                notify = group;
+            }
+            if (notify != null) {
+                notify.resolved();
+            }
+            return true;
+        }
+    }
+}
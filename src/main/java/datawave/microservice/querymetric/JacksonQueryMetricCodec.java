@@ -0,0 +1,84 @@
+package datawave.microservice.querymetric;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.springframework.util.ClassUtils;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import datawave.microservice.querymetric.config.QueryMetricCodecType;
+
+/**
+ * {@link QueryMetricCodec} for the formats supported by Jackson
+ */
+public class JacksonQueryMetricCodec implements QueryMetricCodec {
+    
+    public static final MimeType APPLICATION_SMILE = new MimeType("application", "x-jackson-smile");
+    
+    private final MimeType contentType;
+    
+    private final ObjectMapper objectMapper;
+    
+    private final ObjectWriter writer;
+    
+    public JacksonQueryMetricCodec(MimeType contentType, ObjectMapper objectMapper) {
+        this.contentType = contentType;
+        this.objectMapper = objectMapper;
+        // the stream is owned by the caller, so it must not be closed by the writer
+        this.writer = objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+    
+    /**
+     * Creates a codec of the given type.
+     *
+     * @param codecType
+     *            the codec type, not null
+     * @param objectMapper
+     *            the application's JSON object mapper, whose configuration is shared by the codec, not null
+     * @return the codec
+     */
+    public static JacksonQueryMetricCodec create(QueryMetricCodecType codecType, ObjectMapper objectMapper) {
+        if (codecType == QueryMetricCodecType.SMILE) {
+            if (!ClassUtils.isPresent("com.fasterxml.jackson.dataformat.smile.SmileFactory", null)) {
+                throw new IllegalStateException("SMILE codec requires jackson-dataformat-smile on the classpath");
+            }
+            return new JacksonQueryMetricCodec(APPLICATION_SMILE, SmileMapperFactory.create(objectMapper));
+        }
+        return new JacksonQueryMetricCodec(MimeTypeUtils.APPLICATION_JSON, objectMapper);
+    }
+    
+    @Override
+    public MimeType getContentType() {
+        return contentType;
+    }
+    
+    @Override
+    public void write(Object value, OutputStream out) throws IOException {
+        writer.writeValue(out, value);
+    }
+    
+    @Override
+    public <T> T read(byte[] bytes, Class<T> type) throws IOException {
+        return objectMapper.readValue(bytes, type);
+    }
+    
+    /**
+     * Keeps the optional Smile dependency out of the codec itself, so that the codec can be loaded without it
+     */
+    private static class SmileMapperFactory {
+        private static ObjectMapper create(ObjectMapper objectMapper) {
+            ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+            smileMapper.registerModules(ObjectMapper.findModules());
+            // share the annotation handling, naming and features of the JSON mapper, so that both encode the same fields
+            smileMapper.setConfig(objectMapper.getSerializationConfig());
+            smileMapper.setConfig(objectMapper.getDeserializationConfig());
+            return smileMapper;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package datawave.microservice.querymetric;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+import datawave.microservice.querymetric.function.QueryMetricBatchSupplier;
+import datawave.microservice.querymetric.function.QueryMetricMessageSupplier;
+import datawave.microservice.querymetric.function.QueryMetricMessageSupplier.EmitOutcome;
+import datawave.microservice.querymetric.function.QueryMetricSupplier;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Publishes the query metric client meters to a Micrometer registry.
+ * <p>
+ * Timers and counters are registered the first time they are used, rather than up front, so that an application only publishes the meters of the
+ * transports and metric types it actually uses. Registering a meter which is already registered returns the existing one, so two threads which race to
+ * register the same meter end up sharing it.
+ */
+public class MicrometerQueryMetricClientMeters implements QueryMetricClientMeters {
+    
+    private static final String TRANSPORT_TAG = "transport";
+    private static final String OUTCOME_TAG = "outcome";
+    
+    private static final int TRANSPORT_TYPES = QueryMetricTransportType.values().length;
+    private static final int METRIC_TYPES = QueryMetricType.values().length;
+    
+    private final MeterRegistry registry;
+    
+    // indexed by the boolean outcome, false first
+    private final AtomicReferenceArray<Timer> sendTimers = new AtomicReferenceArray<>(2);
+    private final AtomicReferenceArray<Timer> confirmAckTimers = new AtomicReferenceArray<>(2);
+    private final AtomicReferenceArray<Timer> restTimers = new AtomicReferenceArray<>(2);
+    
+    private volatile Counter retries;
+    private volatile Counter spooled;
+    
+    // indexed by transport type, and then by metric type
+    private final AtomicReferenceArray<Counter> failures = new AtomicReferenceArray<>(TRANSPORT_TYPES);
+    private final AtomicReferenceArray<Timer> submitTimers = new AtomicReferenceArray<>(TRANSPORT_TYPES * METRIC_TYPES);
+    
+    public MicrometerQueryMetricClientMeters(MeterRegistry registry) {
+        this.registry = registry;
+    }
+    
+    @Override
+    public void bindConfirmAckTracker(ConfirmAckTracker ackTracker) {
+        // @formatter:off
+        Gauge.builder(PREFIX + ".confirm.ack.pending", ackTracker, ConfirmAckTracker::size)
+                .description("Number of correlation ids awaiting a confirm ack")
+                .register(registry);
+        // @formatter:on
+    }
+    
+    @Override
+    public void bindAdaptiveConfirmAckTimeout(AdaptiveConfirmAckTimeout adaptiveConfirmAckTimeout) {
+        // @formatter:off
+        Gauge.builder(PREFIX + ".confirm.ack.timeout", adaptiveConfirmAckTimeout, AdaptiveConfirmAckTimeout::getTimeoutMillis)
+                .description("Current confirm ack timeout, derived from the observed ack round trip time")
+                .baseUnit("milliseconds")
+                .register(registry);
+        // @formatter:on
+    }
+    
+    @Override
+    public void bindSupplier(QueryMetricSupplier supplier) {
+        bindEmitOutcomes(PREFIX + ".emit", "Number of message emissions by outcome", supplier);
+    }
+    
+    @Override
+    public void bindBatchSupplier(QueryMetricBatchSupplier supplier) {
+        bindEmitOutcomes(PREFIX + ".batch.emit", "Number of packed batch emissions by outcome", supplier);
+    }
+    
+    private void bindEmitOutcomes(String name, String description, QueryMetricMessageSupplier<?> supplier) {
+        for (EmitOutcome outcome : EmitOutcome.values()) {
+            // @formatter:off
+            FunctionCounter.builder(name, supplier, s -> s.getOutcomeCount(outcome))
+                    .description(description)
+                    .tag(OUTCOME_TAG, outcome.name())
+                    .register(registry);
+            // @formatter:on
+        }
+    }
+    
+    @Override
+    public void bindTokenCache(QueryMetricTokenCache tokenCache) {
+        // @formatter:off
+        FunctionCounter.builder(PREFIX + ".token.cache", tokenCache, QueryMetricTokenCache::getHitCount)
+                .description("Number of token cache lookups by result")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder(PREFIX + ".token.cache", tokenCache, QueryMetricTokenCache::getMissCount)
+                .description("Number of token cache lookups by result")
+                .tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder(PREFIX + ".token.cache.expired", tokenCache, QueryMetricTokenCache::getExpiredCount)
+                .description("Number of cached tokens which were signed afresh because they were close to their expiration")
+                .register(registry);
+        // @formatter:on
+    }
+    
+    @Override
+    public void bindSpool(QueryMetricSpool spool) {
+        // @formatter:off
+        Gauge.builder(PREFIX + ".spool.pending", spool, QueryMetricSpool::getPendingCount)
+                .description("Number of spooled updates awaiting delivery")
+                .register(registry);
+        // @formatter:on
+    }
+    
+    @Override
+    public void bindDeliveryQueue(QueryMetricDeliveryQueue deliveryQueue) {
+        // @formatter:off
+        Gauge.builder(PREFIX + ".delivery.queued", deliveryQueue, QueryMetricDeliveryQueue::size)
+                .description("Number of fire and forget updates waiting to be handed off for delivery")
+                .register(registry);
+        Gauge.builder(PREFIX + ".delivery.inflight", deliveryQueue, QueryMetricDeliveryQueue::getInFlight)
+                .description("Number of fire and forget updates whose delivery has not yet completed")
+                .register(registry);
+        // @formatter:on
+    }
+    
+    @Override
+    public void bindRateLimiter(QueryMetricRateLimiter rateLimiter) {
+        // @formatter:off
+        FunctionCounter.builder(PREFIX + ".rate.limited", rateLimiter, QueryMetricRateLimiter::getRejectedCount)
+                .description("Number of submissions rejected by the per-user rate limit")
+                .register(registry);
+        Gauge.builder(PREFIX + ".rate.limited.users", rateLimiter, QueryMetricRateLimiter::size)
+                .description("Number of users whose submission rate is being tracked")
+                .register(registry);
+        // @formatter:on
+    }
+    
+    @Override
+    public void recordSend(boolean batched, long nanos) {
+        int index = batched ? 1 : 0;
+        Timer timer = sendTimers.get(index);
+        if (timer == null) {
+            // @formatter:off
+            timer = Timer.builder(PREFIX + ".send")
+                    .description(batched ? "Time taken to pass a round of updates to the message binder as a single batch"
+                                    : "Time taken to pass a round of updates to the message binder, one message per update")
+                    .tag("batched", Boolean.toString(batched))
+                    .register(registry);
+            // @formatter:on
+            sendTimers.set(index, timer);
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+    
+    @Override
+    public void recordConfirmAck(boolean acked, long nanos) {
+        int index = acked ? 1 : 0;
+        Timer timer = confirmAckTimers.get(index);
+        if (timer == null) {
+            // @formatter:off
+            timer = Timer.builder(PREFIX + ".confirm.ack")
+                    .description("Time spent waiting for the confirm acks of a round of updates")
+                    .tag(OUTCOME_TAG, acked ? "acked" : "timeout")
+                    .register(registry);
+            // @formatter:on
+            confirmAckTimers.set(index, timer);
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+    
+    @Override
+    public void recordRest(boolean success, long nanos) {
+        int index = success ? 1 : 0;
+        Timer timer = restTimers.get(index);
+        if (timer == null) {
+            // @formatter:off
+            timer = Timer.builder(PREFIX + ".rest")
+                    .description("Time taken to post updates to the query metric service")
+                    .tag(OUTCOME_TAG, success ? "success" : "failure")
+                    .register(registry);
+            // @formatter:on
+            restTimers.set(index, timer);
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+    
+    @Override
+    public void recordSubmit(QueryMetricTransportType transportType, QueryMetricType metricType, long nanos) {
+        int index = transportType.ordinal() * METRIC_TYPES + metricType.ordinal();
+        Timer timer = submitTimers.get(index);
+        if (timer == null) {
+            // @formatter:off
+            timer = Timer.builder(PREFIX + ".submit")
+                    .description("End to end time taken by a submission, including retries")
+                    .tag(TRANSPORT_TAG, transportType.name())
+                    .tag("metricType", metricType.name())
+                    .publishPercentileHistogram()
+                    .register(registry);
+            // @formatter:on
+            submitTimers.set(index, timer);
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+    
+    @Override
+    public void retry() {
+        Counter counter = retries;
+        if (counter == null) {
+            // @formatter:off
+            counter = retries = Counter.builder(PREFIX + ".retries")
+                    .description("Number of send and confirm ack rounds which were retried")
+                    .register(registry);
+            // @formatter:on
+        }
+        counter.increment();
+    }
+    
+    @Override
+    public void spooled(int updates) {
+        Counter counter = spooled;
+        if (counter == null) {
+            // @formatter:off
+            counter = spooled = Counter.builder(PREFIX + ".spooled")
+                    .description("Number of updates written to the spool")
+                    .register(registry);
+            // @formatter:on
+        }
+        counter.increment(updates);
+    }
+    
+    @Override
+    public void failure(QueryMetricTransportType transportType) {
+        int index = transportType.ordinal();
+        Counter counter = failures.get(index);
+        if (counter == null) {
+            // @formatter:off
+            counter = Counter.builder(PREFIX + ".failures")
+                    .description("Number of submissions which failed once all retries were exhausted")
+                    .tag(TRANSPORT_TAG, transportType.name())
+                    .register(registry);
+            // @formatter:on
+            failures.set(index, counter);
+        }
+        counter.increment();
+    }
+}
@@ -0,0 +1,115 @@
+package datawave.microservice.querymetric;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.CircuitBreaker;
+
+/**
+ * Circuit breaker shared by all of the submissions made via a single transport.
+ * <p>
+ * The breaker opens after the configured number of consecutive failures, after which submissions are rejected until the open duration has elapsed. A single
+ * probe is then let through, and the breaker closes again if it succeeds, or re-opens if it fails.
+ * <p>
+ * A bulk submission whose parts are attempted independently is admitted as a whole via {@link #admit()}, so that when it is the probe, its parts go through
+ * together rather than all but the first being rejected.
+ */
+public class QueryMetricCircuitBreaker {
+    
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+    
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    
+    private final String name;
+    
+    private final CircuitBreaker circuitBreaker;
+    
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    
+    private volatile long openUntil = 0L;
+    
+    // the number of times that the breaker has opened, which tells admissions made before the latest opening apart from those made since
+    private final AtomicLong openings = new AtomicLong();
+    
+    public QueryMetricCircuitBreaker(String name, CircuitBreaker circuitBreaker) {
+        this.name = name;
+        this.circuitBreaker = circuitBreaker;
+    }
+    
+    /**
+     * @return true if a submission may be attempted, false if it should be rejected
+     */
+    public boolean allowRequest() {
+        switch (state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                // let a single probe through once the open duration has elapsed
+                return System.currentTimeMillis() >= openUntil && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Decides whether a bulk submission may be attempted. The decision is made as {@link #allowRequest()} makes it, and the returned admission then covers
+     * every part of the bulk submission, including a probe's, until the breaker next opens.
+     *
+     * @return the admission to check each part of the bulk submission against with {@link #isAdmitted(long)}, or -1 if the submission should be rejected
+     */
+    public long admit() {
+        long admission = openings.get();
+        return allowRequest() ? admission : -1L;
+    }
+    
+    /**
+     * @param admission
+     *            an admission returned by {@link #admit()}
+     * @return true if the admission still covers the parts of its bulk submission, false if the breaker has opened since it was made
+     */
+    public boolean isAdmitted(long admission) {
+        return admission >= 0 && admission == openings.get() && state.get() != State.OPEN;
+    }
+    
+    public void recordSuccess() {
+        consecutiveFailures.set(0);
+        if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+            log.info("Closed circuit breaker for {} transport", name);
+        }
+    }
+    
+    public void recordFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        State current = state.get();
+        if (current == State.HALF_OPEN || (current == State.CLOSED && failures >= circuitBreaker.getFailureThreshold())) {
+            // set the deadline and invalidate earlier admissions before opening, so that nobody sees the breaker open with a stale deadline or admission
+            openUntil = System.currentTimeMillis() + circuitBreaker.getOpenDurationMillis();
+            openings.incrementAndGet();
+            if (state.compareAndSet(current, State.OPEN)) {
+                log.warn("Opened circuit breaker for {} transport after {} consecutive failures", name, failures);
+            }
+        }
+    }
+    
+    /**
+     * Records that an allowed submission failed for a reason unrelated to the transport, so that if it was the probe, another probe may be let through.
+     */
+    public void recordIgnored() {
+        if (state.get() == State.HALF_OPEN) {
+            openings.incrementAndGet();
+            state.compareAndSet(State.HALF_OPEN, State.OPEN);
+        }
+    }
+    
+    public State getState() {
+        return state.get();
+    }
+}
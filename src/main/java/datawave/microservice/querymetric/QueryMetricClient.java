@@ -1,59 +1,105 @@
 package datawave.microservice.querymetric;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
 import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.boot.web.server.Ssl;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
+import org.springframework.http.StreamingHttpOutputMessage;
 import org.springframework.integration.IntegrationMessageHeaderAccessor;
 import org.springframework.integration.annotation.ServiceActivator;
-import org.springframework.integration.support.MessageBuilder;
 import org.springframework.messaging.Message;
 import org.springframework.stereotype.Service;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponents;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import datawave.microservice.authorization.preauth.ProxiedEntityX509Filter;
 import datawave.microservice.authorization.user.DatawaveUserDetails;
+import datawave.microservice.querymetric.QueryMetricEndpointSelector.Endpoint;
 import datawave.microservice.querymetric.config.QueryMetricClientProperties;
-import datawave.microservice.querymetric.config.QueryMetricClientProperties.Retry;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Spool;
+import datawave.microservice.querymetric.config.QueryMetricHttpClientFactory;
+import datawave.microservice.querymetric.config.QueryMetricSslContextFactory;
 import datawave.microservice.querymetric.config.QueryMetricTransportType;
+import datawave.microservice.querymetric.function.QueryMetricBatchSupplier;
 import datawave.microservice.querymetric.function.QueryMetricSupplier;
 import datawave.security.authorization.JWTTokenHandler;
 import datawave.webservice.result.VoidResponse;
+import reactor.core.publisher.Mono;
 
 /**
  * Rest and spring cloud stream client for submitting query metric updates to the query metric service
+ * <p>
+ * Updates may be submitted either synchronously via {@link #submit(Request)}, or asynchronously via {@link #submitAsync(Request)} and
+ * {@link #submitMono(Request)}. Message updates are delivered by a {@link QueryMetricMessageDelivery}, and REST updates are posted to the endpoints chosen by
+ * a {@link QueryMetricEndpointSelector}.
  *
  * @see Request
+ * @see SubmitResult
  */
 @Service
 @ConditionalOnProperty(name = "datawave.query.metric.client.enabled", havingValue = "true", matchIfMissing = true)
-public class QueryMetricClient {
+public class QueryMetricClient implements SmartLifecycle, DisposableBean {
     // Note: This must match 'confirmAckChannel' in the service configuration. Default set in bootstrap.yml.
     public static final String CONFIRM_ACK_CHANNEL = "confirmAckChannel";
     
+    // stop after the web server has finished its requests, but before the supplier which delivers our messages
+    public static final int PHASE = SmartLifecycle.DEFAULT_PHASE - 2048;
+    
+    private static final long DRAIN_POLL_MILLIS = 10L;
+    
+    // the HTTP clients of the pooled REST and REACTIVE_REST transports are optional dependencies
+    private static final boolean HTTP_CLIENT_PRESENT = ClassUtils.isPresent("org.apache.http.impl.client.HttpClientBuilder", null);
+    
+    private static final boolean WEB_CLIENT_PRESENT = ClassUtils.isPresent("org.springframework.web.reactive.function.client.WebClient", null)
+                    && ClassUtils.isPresent("reactor.netty.http.client.HttpClient", null);
+    
     private final Logger log = LoggerFactory.getLogger(this.getClass());
     
     private RestTemplate restTemplate;
@@ -62,64 +108,631 @@ public class QueryMetricClient {
     
     private QueryMetricSupplier queryMetricSupplier;
     
+    // present only when batching is enabled, and packed batches then have a binding of their own
+    private QueryMetricBatchSupplier queryMetricBatchSupplier;
+    
     private ObjectMapper objectMapper;
     
+    private QueryMetricCodec codec;
+    
+    // the content type header for messages, or null if the binder's default content type applies
+    private String messageContentType;
+    
     private JWTTokenHandler jwtTokenHandler;
     
-    private static final Map<String,CountDownLatch> correlationLatchMap = new ConcurrentHashMap<>();
+    // the application's TLS configuration, whose key store supplies the client certificate for the pooled REST clients
+    private final Ssl ssl;
+    
+    private QueryMetricTokenCache tokenCache;
+    
+    // runs timers only. Anything which sends is handed off to the send executor, so that a slow binder can't hold up the timers. Like the other executors,
+    // it is created on first use, so that a client only starts the threads which its transport and the enabled features need.
+    private volatile ScheduledExecutorService scheduler;
+    
+    // runs retries, batch and coalesce flushes, spool drains and the handling of confirm ack outcomes
+    private volatile ExecutorService sendExecutor;
+    
+    // only created for the MESSAGE transport with confirm acks enabled, so that other clients don't tick its timer wheel. Messages sent by a client
+    // without one, e.g. via a per request MESSAGE transport, are not acknowledged.
+    private final ConfirmAckTracker ackTracker;
+    
+    private AdaptiveConfirmAckTimeout adaptiveConfirmAckTimeout;
+    
+    // runs blocking REST posts. It has no queue, so that a post is either started straight away or rejected, rather than waiting behind posts which are
+    // stuck on an unresponsive service.
+    private volatile ThreadPoolExecutor restExecutor;
+    
+    // created on first use, so that the event loop threads are only started if the REACTIVE_REST transport is used
+    private volatile QueryMetricWebClientTransport webClientTransport;
+    
+    // created on first use of the message transport
+    private volatile QueryMetricMessageDelivery messageDelivery;
+    
+    private QueryMetricUpdateCoalescer coalescer;
+    
+    private QueryMetricUpdateBatcher batcher;
+    
+    private QueryMetricSpool spool;
+    
+    private QueryMetricDeliveryQueue deliveryQueue;
+    
+    private final QueryMetricEndpointSelector endpointSelector;
+    
+    private QueryMetricDeltaEncoder deltaEncoder;
+    
+    private QueryMetricRateLimiter rateLimiter;
+    
+    private final AtomicBoolean draining = new AtomicBoolean();
+    
+    private final AtomicBoolean running = new AtomicBoolean();
+    
+    // submissions which have been accepted, but have not yet completed
+    private final AtomicInteger inFlight = new AtomicInteger();
+    
+    private final QueryMetricClientMeters meters;
+    
+    private final Map<QueryMetricTransportType,QueryMetricCircuitBreaker> circuitBreakers = new EnumMap<>(QueryMetricTransportType.class);
+    
+    public QueryMetricClient(RestTemplateBuilder restTemplateBuilder, QueryMetricClientProperties queryMetricClientProperties,
+                    QueryMetricSupplier queryMetricSupplier, ObjectMapper objectMapper, JWTTokenHandler jwtTokenHandler) {
+        this(restTemplateBuilder, queryMetricClientProperties, queryMetricSupplier, objectMapper, jwtTokenHandler, null);
+    }
+    
+    public QueryMetricClient(RestTemplateBuilder restTemplateBuilder, QueryMetricClientProperties queryMetricClientProperties,
+                    QueryMetricSupplier queryMetricSupplier, ObjectMapper objectMapper, JWTTokenHandler jwtTokenHandler,
+                    QueryMetricClientMeters queryMetricClientMeters) {
+        this(restTemplateBuilder, queryMetricClientProperties, queryMetricSupplier, objectMapper, jwtTokenHandler, queryMetricClientMeters, null);
+    }
     
     public QueryMetricClient(RestTemplateBuilder restTemplateBuilder, QueryMetricClientProperties queryMetricClientProperties,
-                    @Autowired(required = false) QueryMetricSupplier queryMetricSupplier, ObjectMapper objectMapper,
-                    @Autowired(required = false) JWTTokenHandler jwtTokenHandler) {
+                    QueryMetricSupplier queryMetricSupplier, ObjectMapper objectMapper, JWTTokenHandler jwtTokenHandler,
+                    QueryMetricClientMeters queryMetricClientMeters, ServerProperties serverProperties) {
+        this(restTemplateBuilder, queryMetricClientProperties, queryMetricSupplier, null, objectMapper, jwtTokenHandler, queryMetricClientMeters,
+                        serverProperties);
+    }
+    
+    /**
+     * The meters are supplied by {@link datawave.microservice.querymetric.config.QueryMetricMetersConfiguration} when Micrometer is on the classpath, and
+     * nothing is recorded otherwise. No constructor refers to Micrometer types, so that the client can be created without them.
+     * <p>
+     * The batch supplier is only created when batching is enabled. Without it, batched updates are sent as individual update messages.
+     */
+    @Autowired
+    public QueryMetricClient(RestTemplateBuilder restTemplateBuilder, QueryMetricClientProperties queryMetricClientProperties,
+                    @Autowired(required = false) QueryMetricSupplier queryMetricSupplier,
+                    @Autowired(required = false) QueryMetricBatchSupplier queryMetricBatchSupplier, ObjectMapper objectMapper,
+                    @Autowired(required = false) JWTTokenHandler jwtTokenHandler, @Autowired(required = false) QueryMetricClientMeters queryMetricClientMeters,
+                    @Autowired(required = false) ServerProperties serverProperties) {
+        if (queryMetricClientProperties.getRest().isPooled() && !HTTP_CLIENT_PRESENT) {
+            throw new IllegalStateException("Pooled REST transport requires httpclient on the classpath");
+        }
+        if (queryMetricClientProperties.getTransport() == QueryMetricTransportType.REACTIVE_REST) {
+            checkWebClientPresent();
+        }
         this.queryMetricClientProperties = queryMetricClientProperties;
+        this.ssl = serverProperties != null ? serverProperties.getSsl() : null;
         this.queryMetricSupplier = queryMetricSupplier;
+        this.queryMetricBatchSupplier = queryMetricBatchSupplier;
         
         this.objectMapper = objectMapper;
+        setCodec(JacksonQueryMetricCodec.create(queryMetricClientProperties.getCodec(), objectMapper));
         this.restTemplate = restTemplateBuilder.build();
+        if (queryMetricClientProperties.getRest().isPooled()) {
+            // present the application's own client certificate, as the RestTemplateBuilder's request factory would have
+            this.restTemplate.setRequestFactory(QueryMetricHttpClientFactory.createRequestFactory(queryMetricClientProperties.getRest(),
+                            QueryMetricSslContextFactory.createSslContext(ssl)));
+        }
+        this.endpointSelector = new QueryMetricEndpointSelector(queryMetricClientProperties);
         this.jwtTokenHandler = jwtTokenHandler;
+        if (jwtTokenHandler != null && queryMetricClientProperties.getTokenCache().isEnabled()) {
+            this.tokenCache = new QueryMetricTokenCache(jwtTokenHandler, queryMetricClientProperties.getTokenCache(), objectMapper);
+        }
+        if (queryMetricClientProperties.getTransport() != QueryMetricTransportType.MESSAGE || !queryMetricClientProperties.isConfirmAckEnabled()) {
+            this.ackTracker = null;
+        } else if (queryMetricClientProperties.getAdaptiveConfirmAck().isEnabled()) {
+            this.adaptiveConfirmAckTimeout = new AdaptiveConfirmAckTimeout(queryMetricClientProperties.getAdaptiveConfirmAck(),
+                            queryMetricClientProperties.getConfirmAckTimeoutMillis());
+            this.ackTracker = new ConfirmAckTracker(getScheduler(), queryMetricClientProperties.getConfirmAckTickMillis(),
+                            queryMetricClientProperties.getConfirmAckRingSize(), adaptiveConfirmAckTimeout::record);
+        } else {
+            this.ackTracker = new ConfirmAckTracker(getScheduler(), queryMetricClientProperties.getConfirmAckTickMillis(),
+                            queryMetricClientProperties.getConfirmAckRingSize());
+        }
+        
+        if (queryMetricClientProperties.getCircuitBreaker().isEnabled()) {
+            for (QueryMetricTransportType transportType : QueryMetricTransportType.values()) {
+                circuitBreakers.put(transportType, new QueryMetricCircuitBreaker(transportType.name(), queryMetricClientProperties.getCircuitBreaker()));
+            }
+        }
+        Spool spoolProperties = queryMetricClientProperties.getSpool();
+        if (spoolProperties.isEnabled()) {
+            try {
+                this.spool = new QueryMetricSpool(spoolProperties, objectMapper);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open query metric spool in " + spoolProperties.getDirectory(), e);
+            }
+        }
+        
+        this.meters = queryMetricClientMeters != null ? queryMetricClientMeters : QueryMetricClientMeters.NOOP;
+        // only messages which have been emitted can be evicted, so the message delivery exists by then
+        if (queryMetricSupplier != null) {
+            queryMetricSupplier.setEvictionListener(message -> getMessageDelivery().evicted(message));
+        }
+        if (queryMetricBatchSupplier != null) {
+            queryMetricBatchSupplier.setEvictionListener(message -> getMessageDelivery().evicted(message));
+        }
+        if (spool != null) {
+            getScheduler().scheduleWithFixedDelay(() -> getSendExecutor().execute(this::drainSpool), spoolProperties.getDrainIntervalMillis(),
+                            spoolProperties.getDrainIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (queryMetricClientProperties.getBatch().isEnabled()) {
+            if (queryMetricSupplier != null && queryMetricBatchSupplier == null) {
+                log.warn("Batching is enabled without a batch source, so batched updates will be sent as individual update messages");
+            }
+            this.batcher = new QueryMetricUpdateBatcher(queryMetricClientProperties.getBatch(), getScheduler(),
+                            updates -> sendAsync(() -> getMessageDelivery().deliverBatch(updates)));
+        }
+        if (queryMetricClientProperties.getCoalesce().isEnabled()) {
+            this.coalescer = new QueryMetricUpdateCoalescer(queryMetricClientProperties.getCoalesce(), getScheduler(),
+                            updates -> sendAsync(() -> deliverMetrics(updates)));
+        }
+        
+        if (queryMetricClientProperties.getDelta().isEnabled()) {
+            this.deltaEncoder = new QueryMetricDeltaEncoder(queryMetricClientProperties);
+        }
+        if (queryMetricClientProperties.getRateLimit().isEnabled()) {
+            this.rateLimiter = new QueryMetricRateLimiter(queryMetricClientProperties.getRateLimit());
+        }
+        if (queryMetricClientProperties.getFireAndForget().isEnabled()) {
+            this.deliveryQueue = new QueryMetricDeliveryQueue(queryMetricClientProperties.getFireAndForget(), this::routeMetrics);
+        }
+        
+        // timers and counters are registered as they are first used, and gauges only for the parts of the pipeline which are in use
+        if (ackTracker != null) {
+            meters.bindConfirmAckTracker(ackTracker);
+            if (adaptiveConfirmAckTimeout != null) {
+                meters.bindAdaptiveConfirmAckTimeout(adaptiveConfirmAckTimeout);
+            }
+        }
+        if (queryMetricSupplier != null) {
+            meters.bindSupplier(queryMetricSupplier);
+            if (queryMetricBatchSupplier != null) {
+                meters.bindBatchSupplier(queryMetricBatchSupplier);
+            }
+        }
+        if (tokenCache != null) {
+            meters.bindTokenCache(tokenCache);
+        }
+        if (spool != null) {
+            meters.bindSpool(spool);
+        }
+        if (deliveryQueue != null) {
+            meters.bindDeliveryQueue(deliveryQueue);
+        }
+        if (rateLimiter != null) {
+            meters.bindRateLimiter(rateLimiter);
+        }
+    }
+    
+    @Override
+    public void start() {
+        if (running.compareAndSet(false, true) && queryMetricClientProperties.getLifecycle().isWarmUpEnabled()) {
+            warmUp();
+        }
+    }
+    
+    /**
+     * Primes the serializers, and the connections to the query metric service when using the REST transport, so that the first submissions don't pay for
+     * them. Connections for the message transport are established by the messaging infrastructure itself.
+     */
+    private void warmUp() {
+        final long startTime = System.currentTimeMillis();
+        try {
+            QueryMetric metric = new QueryMetric();
+            codec.encode(metric);
+            codec.encode(Collections.singletonList(metric));
+        } catch (IOException e) {
+            log.warn("Unable to warm up query metric serialization", e);
+        }
+        
+        if (queryMetricClientProperties.getTransport() != QueryMetricTransportType.MESSAGE) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (Endpoint endpoint : endpointSelector.getEndpoints()) {
+                if (queryMetricClientProperties.getTransport() == QueryMetricTransportType.REACTIVE_REST) {
+                    futures.add(primeReactiveConnection(endpoint));
+                } else {
+                    futures.add(supplyOnRestExecutor(false, () -> {
+                        primeConnection(endpoint);
+                        return null;
+                    }));
+                }
+            }
+            try {
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(queryMetricClientProperties.getLifecycle().getWarmUpTimeoutMillis(),
+                                TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                log.warn("Query metric client warm up did not complete in time");
+            }
+        }
+        log.info("Warmed up query metric client in {}ms", System.currentTimeMillis() - startTime);
+    }
+    
+    private void primeConnection(Endpoint endpoint) {
+        UriComponents uri = metricUpdateUri(endpoint, queryMetricClientProperties.getUpdateMetricUrl(), null);
+        try {
+            restTemplate.headForHeaders(uri.toUri());
+        } catch (HttpStatusCodeException e) {
+            // any response at all means that the connection was established
+        } catch (RestClientException e) {
+            log.warn("Unable to prime connection to query metric service at {}: {}", endpoint, e.getMessage());
+        }
+    }
+    
+    private CompletableFuture<Void> primeReactiveConnection(Endpoint endpoint) {
+        UriComponents uri = metricUpdateUri(endpoint, queryMetricClientProperties.getUpdateMetricUrl(), null);
+        // @formatter:off
+        return getWebClientTransport().prime(uri.toUri())
+                .doOnError(e -> log.warn("Unable to prime connection to query metric service at {}: {}", endpoint, e.getMessage()))
+                .onErrorResume(e -> Mono.empty())
+                .toFuture();
+        // @formatter:on
+    }
+    
+    /**
+     * Delivers any updates which are being held for coalescing or batching, then waits, up to the configured drain timeout, for every accepted submission to
+     * complete, including any outstanding confirm acks.
+     */
+    @Override
+    public void stop() {
+        if (!running.compareAndSet(true, false)) {
+            return;
+        }
+        if (coalescer != null) {
+            coalescer.flush();
+        }
+        if (batcher != null) {
+            batcher.flush();
+        }
+        
+        final long deadline = System.currentTimeMillis() + queryMetricClientProperties.getLifecycle().getDrainTimeoutMillis();
+        while (!isIdle() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (isIdle()) {
+            log.info("Drained query metric client");
+        } else {
+            log.warn("Stopped query metric client with {} submissions still in flight", inFlight.get() + (deliveryQueue != null ? deliveryQueue.size() : 0));
+        }
+    }
+    
+    private boolean isIdle() {
+        return inFlight.get() == 0 && (deliveryQueue == null || deliveryQueue.isIdle());
+    }
+    
+    @Override
+    public boolean isRunning() {
+        return running.get();
+    }
+    
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+    
+    @Override
+    public void destroy() {
+        if (deliveryQueue != null) {
+            deliveryQueue.shutdown();
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (sendExecutor != null) {
+            sendExecutor.shutdownNow();
+        }
+        if (restExecutor != null) {
+            restExecutor.shutdownNow();
+        }
+        if (webClientTransport != null) {
+            webClientTransport.close();
+        }
+        if (spool != null) {
+            spool.close();
+        }
     }
     
     public void submit(Request request) throws Exception {
         submit(request, queryMetricClientProperties.getTransport());
     }
     
+    /**
+     * Submits the query metric update request, waiting for it to be delivered. In fire and forget mode, updates of the configured types which are sent via
+     * the message transport are instead queued for background delivery, and this returns as soon as they have been queued.
+     *
+     * @param request
+     *            the query metric update request, not null
+     * @param transportType
+     *            the transport to use, not null
+     * @throws QueryMetricRateLimitedException
+     *             if the submission was rejected by the per-user rate limit
+     * @throws Exception
+     *             if the update could not be delivered
+     */
     public void submit(Request request, QueryMetricTransportType transportType) throws Exception {
+        validate(request);
+        if (!acquire(request)) {
+            throw new QueryMetricRateLimitedException(identityOf(request));
+        }
+        Request encoded = encode(request);
+        if (deliveryQueue != null && transportType == QueryMetricTransportType.MESSAGE
+                        && queryMetricClientProperties.getFireAndForget().getMetricTypes().contains(request.metricType)) {
+            final long startNanos = System.nanoTime();
+            // the caller will carry on updating its metrics, so queue a snapshot of them rather than the live objects
+            List<QueryMetricUpdate> updates = toUpdates(encoded, true);
+            CompletableFuture<SubmitResult> queued = deliveryQueue.offer(updates);
+            if (queued != null) {
+                instrument(queued, transportType, encoded, startNanos);
+                return;
+            }
+            log.debug("Delivery queue is full, delivering {} updates on the calling thread", updates.size());
+        }
+        
+        SubmitResult result;
+        try {
+            result = submitEncoded(encoded, transportType, true).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        // spooled updates will be delivered once the transport has recovered, so the caller has nothing to handle
+        if (result.getOutcome() == SubmitResult.Outcome.FAILED) {
+            throw new RuntimeException("Unable to process query metric update");
+        }
+    }
+    
+    /**
+     * Submits the query metric update request without blocking the calling thread. Cancelling the returned future only stops the caller waiting on it, and the
+     * update is still delivered.
+     *
+     * @param request
+     *            the query metric update request, not null
+     * @return a future which completes with the outcome of the submission once all retries have completed
+     */
+    public CompletableFuture<SubmitResult> submitAsync(Request request) {
+        return submitAsync(request, queryMetricClientProperties.getTransport());
+    }
+    
+    public CompletableFuture<SubmitResult> submitAsync(Request request, QueryMetricTransportType transportType) {
+        validate(request);
+        if (!acquire(request)) {
+            log.debug("Query metric update rate limit exceeded for {}", identityOf(request));
+            return CompletableFuture.completedFuture(SubmitResult.rateLimited());
+        }
+        return submitEncoded(encode(request), transportType, false);
+    }
+    
+    /**
+     * @return true if the request may proceed, false if it has been rate limited
+     */
+    private boolean acquire(Request request) {
+        if (rateLimiter == null) {
+            return true;
+        }
+        String identity = identityOf(request);
+        // requests without a user come from the application itself rather than from any one user, so there is nobody to hold to a rate, and putting them all
+        // in one shared bucket would only let a burst of them starve the rest
+        return identity == null || rateLimiter.tryAcquire(identity, request.metricType, request.metrics.size());
+    }
+    
+    /**
+     * @return the name of the request's user, or else of its trusted user, e.g. the server which proxied it, or null if it has neither
+     */
+    private static String identityOf(Request request) {
+        if (request.user != null) {
+            return request.user.getUsername();
+        }
+        if (request.trustedUser != null) {
+            return request.trustedUser.getUsername();
+        }
+        return null;
+    }
+    
+    /**
+     * @param blocking
+     *            whether the caller is waiting on the submission, in which case its first send may wait out a full buffer according to the BLOCK overflow
+     *            policy
+     */
+    private CompletableFuture<SubmitResult> submitEncoded(Request request, QueryMetricTransportType transportType, boolean blocking) {
+        final long startNanos = System.nanoTime();
+        CompletableFuture<SubmitResult> future;
+        if (transportType == QueryMetricTransportType.MESSAGE) {
+            future = submitViaMessage(request, blocking);
+        } else {
+            QueryMetricCircuitBreaker circuitBreaker = circuitBreakers.get(transportType);
+            if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+                log.debug("Circuit breaker for {} transport is open, rejecting request", transportType);
+                future = CompletableFuture.completedFuture(new SubmitResult(false, 0, 0));
+            } else if (transportType == QueryMetricTransportType.REACTIVE_REST) {
+                future = submitViaReactiveRest(request, circuitBreaker);
+            } else {
+                future = supplyOnRestExecutor(blocking, () -> {
+                    final long startTime = System.currentTimeMillis();
+                    boolean posted = false;
+                    try {
+                        submitViaRest(request);
+                        posted = true;
+                        if (circuitBreaker != null) {
+                            circuitBreaker.recordSuccess();
+                        }
+                    } catch (HttpClientErrorException e) {
+                        // the service is up, it just didn't like the request, so the transport is healthy
+                        if (circuitBreaker != null) {
+                            circuitBreaker.recordSuccess();
+                        }
+                        throw new CompletionException(e);
+                    } catch (RestClientException e) {
+                        if (circuitBreaker != null) {
+                            circuitBreaker.recordFailure();
+                        }
+                        throw new CompletionException(e);
+                    } catch (Exception e) {
+                        if (circuitBreaker != null) {
+                            circuitBreaker.recordIgnored();
+                        }
+                        throw new CompletionException(e);
+                    } finally {
+                        meters.recordRest(posted, TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - startTime));
+                    }
+                    return new SubmitResult(true, 1, System.currentTimeMillis() - startTime);
+                });
+            }
+        }
+        return instrument(future, transportType, request, startNanos);
+    }
+    
+    private void validate(Request request) {
         if (request.metrics == null || request.metrics.isEmpty()) {
             throw new IllegalArgumentException("Request must contain a query metric");
         }
         if (request.metricType == null) {
             throw new IllegalArgumentException("Request must contain a query metric type");
         }
-        if (transportType == QueryMetricTransportType.MESSAGE) {
-            submitViaMessage(request);
-        } else {
-            submitViaRest(request);
+    }
+    
+    /**
+     * Counts the submission as in flight until its delivery completes, and records its outcome. The caller gets a dependent future rather than the delivery's
+     * own, so that cancelling it only stops the caller waiting, and the delivery, along with its in flight count, carries on regardless.
+     */
+    private CompletableFuture<SubmitResult> instrument(CompletableFuture<SubmitResult> future, QueryMetricTransportType transportType, Request request,
+                    long startNanos) {
+        inFlight.incrementAndGet();
+        return future.whenComplete((result, throwable) -> {
+            inFlight.decrementAndGet();
+            meters.recordSubmit(transportType, request.metricType, System.nanoTime() - startNanos);
+            if (throwable != null || result.getOutcome() == SubmitResult.Outcome.FAILED) {
+                meters.failure(transportType);
+                if (deltaEncoder != null) {
+                    // the service may have missed pages, so resync with full snapshots
+                    request.metrics.forEach(metric -> deltaEncoder.reset(metric.getQueryId()));
+                }
+            }
+        });
+    }
+    
+    /**
+     * Delta encodes the request's metrics, if delta encoding is enabled.
+     *
+     * @param request
+     *            the query metric update request, not null
+     * @return a request carrying the encoded metrics, or the request itself if none were encoded
+     */
+    private Request encode(Request request) {
+        if (deltaEncoder == null) {
+            return request;
+        }
+        List<BaseQueryMetric> metrics = new ArrayList<>(request.metrics.size());
+        boolean encoded = false;
+        for (BaseQueryMetric metric : request.metrics) {
+            BaseQueryMetric encodedMetric = deltaEncoder.encode(metric, request.metricType);
+            encoded |= encodedMetric != metric;
+            metrics.add(encodedMetric);
         }
+        if (!encoded) {
+            return request;
+        }
+        // @formatter:off
+        return new Request.Builder()
+                .withMetrics(metrics)
+                .withMetricType(request.metricType)
+                .withUser(request.user)
+                .withTrustedUser(request.trustedUser)
+                .build();
+        // @formatter:on
     }
     
-    private void submitViaMessage(Request request) {
-        if (!updateMetrics(request.metrics.stream().map(m -> new QueryMetricUpdate(m, request.metricType)).collect(Collectors.toList()))) {
-            throw new RuntimeException("Unable to process query metric update");
+    /**
+     * Submits the query metric update request without blocking the calling thread. As with {@link #submitAsync(Request)}, cancelling the subscription does
+     * not cancel the delivery of the update.
+     *
+     * @param request
+     *            the query metric update request, not null
+     * @return a mono which emits the outcome of the submission once all retries have completed
+     */
+    public Mono<SubmitResult> submitMono(Request request) {
+        return Mono.fromFuture(() -> submitAsync(request));
+    }
+    
+    public Mono<SubmitResult> submitMono(Request request, QueryMetricTransportType transportType) {
+        return Mono.fromFuture(() -> submitAsync(request, transportType));
+    }
+    
+    private CompletableFuture<SubmitResult> submitViaMessage(Request request, boolean blocking) {
+        List<QueryMetricUpdate> updates = toUpdates(request, false);
+        if (coalescer == null && batcher == null) {
+            return getMessageDelivery().deliver(updates, blocking);
         }
+        // coalesced and batched updates are sent from the send executor, which must never block
+        return routeMetrics(updates);
     }
     
     /**
-     * Receives producer confirm acks, and disengages the latch associated with the given correlation ID.
+     * Wraps the request's metrics in update envelopes. The list is sized up front, since it is handed through the rest of the pipeline as the working list of
+     * remaining updates, and the same envelopes are reused across every retry.
+     *
+     * @param request
+     *            the query metric update request, not null
+     * @param snapshot
+     *            whether to wrap copies of the metrics rather than the metrics themselves
+     * @return the updates
+     */
+    private static List<QueryMetricUpdate> toUpdates(Request request, boolean snapshot) {
+        List<QueryMetricUpdate> updates = new ArrayList<>(request.metrics.size());
+        for (BaseQueryMetric metric : request.metrics) {
+            updates.add(new QueryMetricUpdate(snapshot ? metric.duplicate() : metric, request.metricType));
+        }
+        return updates;
+    }
+    
+    private CompletableFuture<SubmitResult> routeMetrics(List<QueryMetricUpdate> updates) {
+        if (coalescer != null) {
+            return coalescer.submit(updates);
+        }
+        return deliverMetrics(updates);
+    }
+    
+    private CompletableFuture<SubmitResult> deliverMetrics(List<QueryMetricUpdate> updates) {
+        if (batcher != null) {
+            return batcher.submit(updates);
+        }
+        return getMessageDelivery().deliver(updates, false);
+    }
+    
+    /**
+     * Receives producer confirm acks, and records them against the pending ack associated with the given correlation ID.
      *
      * @param message
      *            the confirmation ack message
      */
     @ServiceActivator(inputChannel = CONFIRM_ACK_CHANNEL)
     public void processConfirmAck(Message<?> message) {
-        if (queryMetricClientProperties.isConfirmAckEnabled()) {
+        if (ackTracker != null) {
             Object headerObj = message.getHeaders().get(IntegrationMessageHeaderAccessor.CORRELATION_ID);
             
             if (headerObj != null) {
                 String correlationId = headerObj.toString();
-                if (correlationLatchMap.containsKey(correlationId)) {
-                    correlationLatchMap.get(correlationId).countDown();
-                } else {
-                    log.warn("Unable to decrement latch for ID [{}]", correlationId);
+                // a packed batch is acknowledged as a whole, so a sequence number is only present if the binder adds one
+                int sequenceNumber = new IntegrationMessageHeaderAccessor(message).getSequenceNumber();
+                if (!ackTracker.ack(correlationId, sequenceNumber)) {
+                    log.warn("Unable to complete confirm ack for ID [{}]", correlationId);
                 }
             } else {
                 log.warn("No correlation ID found in confirm ack message");
@@ -127,182 +740,602 @@ public class QueryMetricClient {
         }
     }
     
-    private boolean updateMetrics(List<QueryMetricUpdate> updates) {
-        Map<String,QueryMetricUpdate> updatesById = new LinkedHashMap<>();
-        
-        boolean success;
-        final long updateStartTime = System.currentTimeMillis();
-        long currentTime;
-        int attempts = 0;
-        
-        Retry retry = queryMetricClientProperties.getRetry();
-        
-        List<QueryMetricUpdate> failedConfirmAck = new ArrayList<>(updates.size());
-        do {
-            if (attempts++ > 0) {
-                try {
-                    Thread.sleep(retry.getBackoffIntervalMillis());
-                } catch (InterruptedException e) {
-                    // Ignore -- we'll just end up retrying a little too fast
-                }
-                
-                // perform some retry upkeep
-                updates.addAll(failedConfirmAck);
-                failedConfirmAck.clear();
-            }
-            
-            if (log.isDebugEnabled()) {
-                log.debug("Bulk update attempt {} of {}", attempts, retry.getMaxAttempts());
+    /**
+     * Runs a blocking REST task on the calling thread when the caller is going to wait for it anyway, and otherwise on the REST executor, or else on the
+     * calling thread when every REST thread is busy.
+     *
+     * @param blocking
+     *            whether the caller is waiting on the task
+     * @return a future for the task's result
+     */
+    private <T> CompletableFuture<T> supplyOnRestExecutor(boolean blocking, Supplier<T> task) {
+        if (!blocking) {
+            try {
+                return CompletableFuture.supplyAsync(task, getRestExecutor());
+            } catch (RejectedExecutionException e) {
+                log.debug("All {} REST threads are busy, running request on the calling thread", queryMetricClientProperties.getRest().getMaxAsyncThreads());
             }
-            
-            // send all of the remaining metric updates
-            success = sendMessages(updates, updatesById) && awaitConfirmAcks(updatesById, failedConfirmAck);
-            currentTime = System.currentTimeMillis();
-        } while (!success && (currentTime - updateStartTime) < retry.getFailTimeoutMillis() && attempts < retry.getMaxAttempts());
-        
-        if (!success) {
-            log.warn("Bulk update failed. {attempts = {}, elapsedMillis = {}}", attempts, (currentTime - updateStartTime));
-        } else {
-            log.debug("Bulk update successful. {attempts = {}, elapsedMillis = {}}", attempts, (currentTime - updateStartTime));
         }
-        
-        return success;
-    }
-    
-    private boolean updateMetric(QueryMetricUpdate update) {
-        return updateMetrics(Lists.newArrayList(update));
+        return CompletableFuture.supplyAsync(task, Runnable::run);
     }
     
     /**
-     * Passes query metric messages to the messaging infrastructure.
-     *
-     * @param updates
-     *            The query metric updates to be sent, not null
-     * @param updatesById
-     *            A map that will be populated with the correlation ids and associated metric updates, not null
-     * @return true if all messages were successfully sent, false otherwise
+     * Runs a send on the send executor rather than on the calling thread, which may be the timer thread or a caller which must not block on the binder.
      */
-    private boolean sendMessages(List<QueryMetricUpdate> updates, Map<String,QueryMetricUpdate> updatesById) {
-        
-        List<QueryMetricUpdate> failedSend = new ArrayList<>(updates.size());
-        
-        boolean success = true;
-        // send all of the remaining metric updates
-        for (QueryMetricUpdate update : updates) {
-            String correlationId = UUID.randomUUID().toString();
-            if (sendMessage(correlationId, update)) {
-                if (queryMetricClientProperties.isConfirmAckEnabled()) {
-                    updatesById.put(correlationId, update);
+    private CompletableFuture<SubmitResult> sendAsync(Supplier<CompletableFuture<SubmitResult>> send) {
+        return CompletableFuture.supplyAsync(send, getSendExecutor()).thenCompose(Function.identity());
+    }
+    
+    private ScheduledExecutorService getScheduler() {
+        ScheduledExecutorService executor = scheduler;
+        if (executor == null) {
+            synchronized (this) {
+                executor = scheduler;
+                if (executor == null) {
+                    executor = Executors.newSingleThreadScheduledExecutor(
+                                    new ThreadFactoryBuilder().setNameFormat("query-metric-client-scheduler-%d").setDaemon(true).build());
+                    scheduler = executor;
                 }
-            } else {
-                // if it failed, add it to the failed list
-                failedSend.add(update);
-                success = false;
             }
         }
-        
-        updates.retainAll(failedSend);
-        
-        return success;
+        return executor;
     }
     
-    private boolean sendMessage(String correlationId, QueryMetricUpdate update) {
-        boolean success = false;
-        if (queryMetricSupplier.send(MessageBuilder.withPayload(update).setCorrelationId(correlationId).build())) {
-            success = true;
-            if (queryMetricClientProperties.isConfirmAckEnabled()) {
-                correlationLatchMap.put(correlationId, new CountDownLatch(1));
+    private ExecutorService getSendExecutor() {
+        ExecutorService executor = sendExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = sendExecutor;
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(queryMetricClientProperties.getSendThreads(),
+                                    new ThreadFactoryBuilder().setNameFormat("query-metric-client-send-%d").setDaemon(true).build());
+                    sendExecutor = executor;
+                }
             }
         }
-        return success;
+        return executor;
     }
     
-    /**
-     * Waits for the producer confirm acks to be received for the updates that were sent. If a producer confirm ack is not received within the specified amount
-     * of time, a 500 Internal Server Error will be returned to the caller.
-     *
-     * @param updatesById
-     *            A map of query metric updates keyed by their correlation id, not null
-     * @param failedConfirmAck
-     *            A list that will be populated with the failed metric updates, not null
-     * @return true if all confirm acks were successfully received, false otherwise
-     */
-    private boolean awaitConfirmAcks(Map<String,QueryMetricUpdate> updatesById, List<QueryMetricUpdate> failedConfirmAck) {
-        boolean success = true;
-        // wait for the confirm acks only after all sends are successful
-        if (queryMetricClientProperties.isConfirmAckEnabled()) {
-            for (String correlationId : new HashSet<>(updatesById.keySet())) {
-                if (!awaitConfirmAck(correlationId)) {
-                    failedConfirmAck.add(updatesById.remove(correlationId));
-                    success = false;
+    private ThreadPoolExecutor getRestExecutor() {
+        ThreadPoolExecutor executor = restExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = restExecutor;
+                if (executor == null) {
+                    executor = new ThreadPoolExecutor(0, queryMetricClientProperties.getRest().getMaxAsyncThreads(), 60L, TimeUnit.SECONDS,
+                                    new SynchronousQueue<>(), new ThreadFactoryBuilder().setNameFormat("query-metric-client-rest-%d").setDaemon(true).build());
+                    restExecutor = executor;
                 }
             }
         }
-        return success;
+        return executor;
     }
     
-    private boolean awaitConfirmAck(String correlationId) {
-        boolean success = false;
-        if (queryMetricClientProperties.isConfirmAckEnabled()) {
-            try {
-                success = correlationLatchMap.get(correlationId).await(queryMetricClientProperties.getConfirmAckTimeoutMillis(), TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                log.warn("Interrupted waiting for confirm ack {}", correlationId);
-            } finally {
-                correlationLatchMap.remove(correlationId);
+    private QueryMetricMessageDelivery getMessageDelivery() {
+        QueryMetricMessageDelivery delivery = messageDelivery;
+        if (delivery == null) {
+            synchronized (this) {
+                delivery = messageDelivery;
+                if (delivery == null) {
+                    delivery = new QueryMetricMessageDelivery(queryMetricClientProperties, queryMetricSupplier, queryMetricBatchSupplier, ackTracker,
+                                    this::getConfirmAckTimeoutMillis, spool, circuitBreakers.get(QueryMetricTransportType.MESSAGE), meters, getScheduler(),
+                                    getSendExecutor());
+                    delivery.setMessageContentType(messageContentType);
+                    messageDelivery = delivery;
+                }
             }
         }
-        return success;
+        return delivery;
     }
     
-    private void submitViaRest(Request request) throws Exception {
+    /**
+     * Replays spooled updates, oldest first, in a single attempt. Updates are only acknowledged in the spool once they have been delivered, and draining
+     * continues immediately for as long as deliveries succeed.
+     */
+    private void drainSpool() {
+        if (spool.getPendingCount() == 0 || !draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<QueryMetricSpool.Record> records = spool.peek(queryMetricClientProperties.getSpool().getDrainBatchSize());
+            if (records.isEmpty()) {
+                draining.set(false);
+                return;
+            }
+            List<QueryMetricUpdate> updates = records.stream().map(QueryMetricSpool.Record::getUpdate).collect(Collectors.toList());
+            getMessageDelivery().deliverOnce(updates).whenComplete((result, throwable) -> {
+                boolean delivered = throwable == null && result.isSuccess();
+                if (delivered) {
+                    spool.acknowledge(records);
+                    log.debug("Drained {} updates from the spool, {} remaining", records.size(), spool.getPendingCount());
+                }
+                draining.set(false);
+                if (delivered && spool.getPendingCount() > 0) {
+                    getSendExecutor().execute(this::drainSpool);
+                }
+            });
+        } catch (Exception e) {
+            log.warn("Unable to drain query metric spool", e);
+            draining.set(false);
+        }
+    }
+    
+    /**
+     * @return the adaptive confirm ack timeout if enabled, otherwise the configured one
+     */
+    public long getConfirmAckTimeoutMillis() {
+        return adaptiveConfirmAckTimeout != null ? adaptiveConfirmAckTimeout.getTimeoutMillis() : queryMetricClientProperties.getConfirmAckTimeoutMillis();
+    }
+    
+    private void validateRestRequest(Request request, QueryMetricTransportType transportType) {
         if (request.user == null && request.trustedUser == null) {
             throw new IllegalArgumentException("Request must contain either user or trustedUser to use HTTP/HTTPS transport");
         }
-        QueryMetricTransportType transportType = queryMetricClientProperties.getTransport();
         if (this.jwtTokenHandler == null) {
             throw new IllegalArgumentException("jwtTokenHandler can not be null with transportType " + transportType.toString());
         }
-        QueryMetricType metricType = request.metricType;
-        String scheme = queryMetricClientProperties.getScheme();
-        String host = this.queryMetricClientProperties.getHost();
-        int port = this.queryMetricClientProperties.getPort();
+    }
+    
+    private UriComponents metricUpdateUri(Endpoint endpoint, String url, QueryMetricType metricType) {
+        // @formatter:off
+        UriComponentsBuilder builder = UriComponentsBuilder.newInstance()
+                .scheme(queryMetricClientProperties.getScheme())
+                .host(endpoint.getHost())
+                .port(endpoint.getPort())
+                .path(url);
+        // @formatter:on
+        if (metricType != null) {
+            builder.queryParam("metricType", metricType);
+        }
+        return builder.build();
+    }
+    
+    private void submitViaRest(Request request) throws Exception {
+        validateRestRequest(request, queryMetricClientProperties.getTransport());
+        
+        Map<Endpoint,List<BaseQueryMetric>> shards = endpointSelector.partition(request.metrics);
+        if (shards.size() == 1) {
+            Map.Entry<Endpoint,List<BaseQueryMetric>> shard = shards.entrySet().iterator().next();
+            submitViaRest(request, shard.getKey(), shard.getValue());
+            return;
+        }
+        
+        // the metrics belong to several endpoints, so post to all of them in parallel, on this thread when no other is free. Since the executor never
+        // queues, this thread can't end up waiting on a post which is itself waiting for a thread.
+        List<CompletableFuture<Void>> futures = new ArrayList<>(shards.size());
+        for (Map.Entry<Endpoint,List<BaseQueryMetric>> shard : shards.entrySet()) {
+            Runnable post = () -> {
+                try {
+                    submitViaRest(request, shard.getKey(), shard.getValue());
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            };
+            try {
+                futures.add(CompletableFuture.runAsync(post, getRestExecutor()));
+            } catch (RejectedExecutionException e) {
+                futures.add(CompletableFuture.runAsync(post, Runnable::run));
+            }
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+    
+    private void submitViaRest(Request request, Endpoint endpoint, List<BaseQueryMetric> metrics) throws Exception {
         String url;
         Object metricObject;
-        if (request.metrics.size() == 1) {
+        if (metrics.size() == 1) {
             url = this.queryMetricClientProperties.getUpdateMetricUrl();
-            metricObject = request.metrics.get(0);
+            metricObject = metrics.get(0);
         } else {
             url = this.queryMetricClientProperties.getUpdateMetricsUrl();
-            metricObject = request.metrics;
+            metricObject = metrics;
+        }
+        
+        UriComponents metricUpdateUri = metricUpdateUri(endpoint, url, request.metricType);
+        endpoint.begin();
+        boolean healthy = false;
+        try {
+            if (queryMetricClientProperties.getRest().isStreaming()) {
+                HttpHeaders headers = createHeaders(request.user, request.trustedUser);
+                restTemplate.execute(metricUpdateUri.toUri(), HttpMethod.POST, streamingRequestCallback(headers, metricObject),
+                                restTemplate.responseEntityExtractor(VoidResponse.class));
+            } else if (codec.getContentType().equalsTypeAndSubtype(MimeTypeUtils.APPLICATION_JSON)) {
+                HttpEntity requestEntity = createRequestEntity(request.user, request.trustedUser, metricObject);
+                restTemplate.postForEntity(metricUpdateUri.toUri(), requestEntity, VoidResponse.class);
+            } else {
+                HttpEntity<byte[]> requestEntity = createEncodedRequestEntity(request.user, request.trustedUser, metricObject);
+                restTemplate.postForEntity(metricUpdateUri.toUri(), requestEntity, VoidResponse.class);
+            }
+            healthy = true;
+        } catch (HttpClientErrorException e) {
+            // the endpoint is up, it just didn't like the request
+            healthy = true;
+            throw e;
+        } finally {
+            endpoint.end(healthy);
+        }
+    }
+    
+    /**
+     * Posts the request's metrics to their endpoints via the reactive transport, without holding a thread for any of the round trips.
+     *
+     * @param request
+     *            the query metric update request, not null
+     * @param circuitBreaker
+     *            the circuit breaker for the transport, or null if disabled
+     * @return a future which completes once every endpoint has accepted its metrics, or completes exceptionally if any post failed
+     */
+    private CompletableFuture<SubmitResult> submitViaReactiveRest(Request request, QueryMetricCircuitBreaker circuitBreaker) {
+        final long startTime = System.currentTimeMillis();
+        List<Mono<Void>> posts = new ArrayList<>();
+        try {
+            checkWebClientPresent();
+            validateRestRequest(request, QueryMetricTransportType.REACTIVE_REST);
+            for (Map.Entry<Endpoint,List<BaseQueryMetric>> shard : endpointSelector.partition(request.metrics).entrySet()) {
+                posts.add(postViaReactiveRest(request, shard.getKey(), shard.getValue()));
+            }
+        } catch (Exception e) {
+            if (circuitBreaker != null) {
+                circuitBreaker.recordIgnored();
+            }
+            CompletableFuture<SubmitResult> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
         }
         
-        HttpEntity requestEntity = createRequestEntity(request.user, request.trustedUser, metricObject);
+        // delay errors, so that a failed post doesn't cancel the others and leave their endpoints' in flight counts behind
         // @formatter:off
-        UriComponents metricUpdateUri = UriComponentsBuilder.newInstance()
-                .scheme(scheme)
-                .host(host)
-                .port(port)
-                .path(url)
-                .queryParam("metricType", metricType)
-                .build();
+        return Mono.whenDelayError(posts)
+                .then(Mono.fromSupplier(() -> new SubmitResult(true, 1, System.currentTimeMillis() - startTime)))
+                .doOnSuccess(result -> {
+                    if (circuitBreaker != null) {
+                        circuitBreaker.recordSuccess();
+                    }
+                    meters.recordRest(true, TimeUnit.MILLISECONDS.toNanos(result.getElapsedMillis()));
+                })
+                .doOnError(e -> {
+                    if (circuitBreaker != null) {
+                        // a client error means that the service is up, it just didn't like the request
+                        if (QueryMetricWebClientTransport.isClientError(e)) {
+                            circuitBreaker.recordSuccess();
+                        } else {
+                            circuitBreaker.recordFailure();
+                        }
+                    }
+                    meters.recordRest(false, TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - startTime));
+                })
+                .toFuture();
         // @formatter:on
-        restTemplate.postForEntity(metricUpdateUri.toUri(), requestEntity, VoidResponse.class);
     }
     
-    protected HttpEntity createRequestEntity(DatawaveUserDetails user, DatawaveUserDetails trustedUser, Object body) throws JsonProcessingException {
+    private Mono<Void> postViaReactiveRest(Request request, Endpoint endpoint, List<BaseQueryMetric> metrics) throws IOException {
+        String url;
+        Object metricObject;
+        if (metrics.size() == 1) {
+            url = this.queryMetricClientProperties.getUpdateMetricUrl();
+            metricObject = metrics.get(0);
+        } else {
+            url = this.queryMetricClientProperties.getUpdateMetricsUrl();
+            metricObject = metrics;
+        }
         
+        UriComponents metricUpdateUri = metricUpdateUri(endpoint, url, request.metricType);
+        HttpHeaders headers = createHeaders(request.user, request.trustedUser);
+        byte[] body;
+        if (queryMetricClientProperties.getRest().isGzipEnabled()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeBody(out, metricObject, true);
+            body = out.toByteArray();
+            headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+        } else {
+            body = codec.encode(metricObject);
+        }
+        
+        return Mono.defer(() -> {
+            endpoint.begin();
+            // @formatter:off
+            return getWebClientTransport().post(metricUpdateUri.toUri(), headers, body)
+                    .doOnSuccess(v -> endpoint.end(true))
+                    // a client error means that the endpoint is up, it just didn't like the request
+                    .doOnError(e -> endpoint.end(QueryMetricWebClientTransport.isClientError(e)));
+            // @formatter:on
+        });
+    }
+    
+    private static void checkWebClientPresent() {
+        if (!WEB_CLIENT_PRESENT) {
+            throw new IllegalStateException("REACTIVE_REST transport requires spring-webflux and reactor-netty-http on the classpath");
+        }
+    }
+    
+    private QueryMetricWebClientTransport getWebClientTransport() {
+        QueryMetricWebClientTransport transport = webClientTransport;
+        if (transport == null) {
+            synchronized (this) {
+                transport = webClientTransport;
+                if (transport == null) {
+                    transport = new QueryMetricWebClientTransport(queryMetricClientProperties.getRest(),
+                                    "https".equalsIgnoreCase(queryMetricClientProperties.getScheme()), ssl);
+                    webClientTransport = transport;
+                }
+            }
+        }
+        return transport;
+    }
+    
+    /**
+     * Creates a request callback which serializes the body straight into the request output stream, optionally gzip compressed, rather than first
+     * serializing it to a string.
+     *
+     * @param headers
+     *            the request headers, not null
+     * @param body
+     *            the request body, not null
+     * @return the request callback
+     */
+    private RequestCallback streamingRequestCallback(HttpHeaders headers, Object body) {
+        boolean gzip = queryMetricClientProperties.getRest().isGzipEnabled();
+        return request -> {
+            request.getHeaders().putAll(headers);
+            if (gzip) {
+                request.getHeaders().set(HttpHeaders.CONTENT_ENCODING, "gzip");
+            }
+            // request factories which don't buffer the body only accept it via a callback
+            if (request instanceof StreamingHttpOutputMessage) {
+                ((StreamingHttpOutputMessage) request).setBody(out -> writeBody(out, body, gzip));
+            } else {
+                writeBody(request.getBody(), body, gzip);
+            }
+        };
+    }
+    
+    private void writeBody(OutputStream out, Object body, boolean gzip) throws IOException {
+        if (gzip) {
+            GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+            codec.write(body, gzipOut);
+            gzipOut.finish();
+        } else {
+            codec.write(body, out);
+        }
+    }
+    
+    /**
+     * Replaces the codec selected via the client properties, e.g. with a custom codec bean.
+     *
+     * @param codec
+     *            the codec used to encode metric payloads, not null
+     */
+    @Autowired(required = false)
+    public synchronized void setCodec(QueryMetricCodec codec) {
+        this.codec = codec;
+        this.messageContentType = MimeTypeUtils.APPLICATION_JSON.equalsTypeAndSubtype(codec.getContentType()) ? null : codec.getContentType().toString();
+        if (messageDelivery != null) {
+            messageDelivery.setMessageContentType(messageContentType);
+        }
+    }
+    
+    public QueryMetricCodec getCodec() {
+        return codec;
+    }
+    
+    /**
+     * @return the JWT cache used by the REST transport, or null if token caching is disabled or unavailable
+     */
+    public QueryMetricTokenCache getTokenCache() {
+        return tokenCache;
+    }
+    
+    /**
+     * @return the number of accepted submissions whose delivery has not yet completed, not counting those waiting in the fire and forget delivery queue
+     */
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+    
+    /**
+     * @return the per-user rate limiter, or null if rate limiting is disabled
+     */
+    public QueryMetricRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+    
+    /**
+     * @return the local spool of undelivered message updates, or null if spooling is disabled
+     */
+    public QueryMetricSpool getSpool() {
+        return spool;
+    }
+    
+    /**
+     * @return the circuit breaker for the transport, or null if circuit breaking is disabled
+     */
+    public QueryMetricCircuitBreaker getCircuitBreaker(QueryMetricTransportType transportType) {
+        return circuitBreakers.get(transportType);
+    }
+    
+    /**
+     * Creates the entity posted by the REST transport with the JSON codec, whose body is the JSON string, unless streaming is enabled, in which case the body
+     * is written straight to the request and only the headers are created, via {@link #createHeaders(DatawaveUserDetails, DatawaveUserDetails)}. With any
+     * other codec, the entity is created via {@link #createEncodedRequestEntity(DatawaveUserDetails, DatawaveUserDetails, Object)} instead.
+     *
+     * @param user
+     *            the user, or null
+     * @param trustedUser
+     *            the trusted user, or null
+     * @param body
+     *            the metric or metrics to post, not null
+     * @return the request entity
+     * @throws JsonProcessingException
+     *             if the body can't be serialized
+     */
+    protected HttpEntity createRequestEntity(DatawaveUserDetails user, DatawaveUserDetails trustedUser, Object body) throws JsonProcessingException {
+        HttpHeaders headers = createHeaders(user, trustedUser);
+        headers.set(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
+        return new HttpEntity<>(objectMapper.writeValueAsString(body), headers);
+    }
+    
+    /**
+     * Creates the entity posted by the REST transport with a codec other than JSON, e.g. Smile, whose body is encoded by the codec, unless streaming is
+     * enabled.
+     *
+     * @param user
+     *            the user, or null
+     * @param trustedUser
+     *            the trusted user, or null
+     * @param body
+     *            the metric or metrics to post, not null
+     * @return the request entity
+     * @throws IOException
+     *             if the body can't be encoded
+     */
+    protected HttpEntity<byte[]> createEncodedRequestEntity(DatawaveUserDetails user, DatawaveUserDetails trustedUser, Object body) throws IOException {
+        return new HttpEntity<>(codec.encode(body), createHeaders(user, trustedUser));
+    }
+    
+    /**
+     * Creates the headers of every request posted by the REST transports, whether streamed or not.
+     *
+     * @param user
+     *            the user, or null
+     * @param trustedUser
+     *            the trusted user, or null
+     * @return the request headers
+     */
+    protected HttpHeaders createHeaders(DatawaveUserDetails user, DatawaveUserDetails trustedUser) {
         HttpHeaders headers = new HttpHeaders();
         if (this.jwtTokenHandler != null && user != null) {
-            String token = this.jwtTokenHandler.createTokenFromUsers(user.getUsername(), user.getProxiedUsers());
+            String token;
+            if (tokenCache != null) {
+                token = tokenCache.getToken(user.getUsername(), user.getProxiedUsers());
+            } else {
+                token = this.jwtTokenHandler.createTokenFromUsers(user.getUsername(), user.getProxiedUsers());
+            }
             headers.add("Authorization", "Bearer " + token);
         }
         if (trustedUser != null) {
             headers.add(ProxiedEntityX509Filter.SUBJECT_DN_HEADER, trustedUser.getPrimaryUser().getDn().subjectDN());
             headers.add(ProxiedEntityX509Filter.ISSUER_DN_HEADER, trustedUser.getPrimaryUser().getDn().issuerDN());
         }
-        headers.add(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
-        return new HttpEntity<>(objectMapper.writeValueAsString(body), headers);
+        headers.add(HttpHeaders.CONTENT_TYPE, codec.getContentType().toString());
+        return headers;
+    }
+    
+    /**
+     * Outcome of a query metric update request
+     */
+    public static class SubmitResult {
+        
+        /**
+         * What became of the updates of a request
+         */
+        public enum Outcome {
+            // every update was delivered
+            DELIVERED,
+            // none of the updates was lost, but some or all of them were written to the local spool for later delivery, rather than being delivered
+            SPOOLED,
+            // some or all of the updates were neither delivered nor spooled
+            FAILED
+        }
+        
+        private final Outcome outcome;
+        private final int attempts;
+        private final long elapsedMillis;
+        private final boolean rateLimited;
+        
+        public SubmitResult(boolean success, int attempts, long elapsedMillis) {
+            this(success ? Outcome.DELIVERED : Outcome.FAILED, attempts, elapsedMillis);
+        }
+        
+        public SubmitResult(Outcome outcome, int attempts, long elapsedMillis) {
+            this(outcome, attempts, elapsedMillis, false);
+        }
+        
+        private SubmitResult(Outcome outcome, int attempts, long elapsedMillis, boolean rateLimited) {
+            this.outcome = outcome;
+            this.attempts = attempts;
+            this.elapsedMillis = elapsedMillis;
+            this.rateLimited = rateLimited;
+        }
+        
+        /**
+         * @return the result of a submission which was rejected by the per-user rate limit without being attempted
+         */
+        public static SubmitResult rateLimited() {
+            return new SubmitResult(Outcome.FAILED, 0, 0L, true);
+        }
+        
+        public Outcome getOutcome() {
+            return outcome;
+        }
+        
+        /**
+         * @return true if every update was delivered. Updates which were spooled have not been delivered yet, so they don't count as a success.
+         */
+        public boolean isSuccess() {
+            return outcome == Outcome.DELIVERED;
+        }
+        
+        public int getAttempts() {
+            return attempts;
+        }
+        
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+        
+        /**
+         * @return true if some or all of the updates were written to the local spool for later delivery, and the rest were delivered
+         */
+        public boolean isSpooled() {
+            return outcome == Outcome.SPOOLED;
+        }
+        
+        /**
+         * @return true if the submission was rejected by the per-user rate limit, in which case it was never attempted
+         */
+        public boolean isRateLimited() {
+            return rateLimited;
+        }
+        
+        /**
+         * Combines the results of several submissions which together make up a single request
+         *
+         * @param futures
+         *            the futures for the individual submissions, not null
+         * @param startTime
+         *            the time at which the request was submitted
+         * @return a future which completes once all of the submissions have completed
+         */
+        public static CompletableFuture<SubmitResult> combine(List<CompletableFuture<SubmitResult>> futures, long startTime) {
+            if (futures.size() == 1) {
+                return futures.get(0);
+            }
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+                // the request has failed if any part of it did, and was spooled if any part of it was and none failed
+                Outcome outcome = Outcome.DELIVERED;
+                int attempts = 0;
+                for (CompletableFuture<SubmitResult> future : futures) {
+                    SubmitResult result = future.join();
+                    if (result.getOutcome().compareTo(outcome) > 0) {
+                        outcome = result.getOutcome();
+                    }
+                    attempts = Math.max(attempts, result.getAttempts());
+                }
+                return new SubmitResult(outcome, attempts, System.currentTimeMillis() - startTime);
+            });
+        }
+        
+        @Override
+        public String toString() {
+            return ToStringBuilder.reflectionToString(this).toString();
+        }
     }
     
     /**
@@ -0,0 +1,50 @@
+package datawave.microservice.querymetric;
+
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+import datawave.microservice.querymetric.function.QueryMetricBatchSupplier;
+import datawave.microservice.querymetric.function.QueryMetricSupplier;
+
+/**
+ * Meters for the query metric client pipeline. Every method does nothing by default, which is what {@link #NOOP} does, so that the client has no need of
+ * Micrometer, which is an optional dependency. {@link MicrometerQueryMetricClientMeters} publishes the meters to a Micrometer registry, and it and the
+ * configuration which creates it are the only types which refer to Micrometer.
+ */
+public interface QueryMetricClientMeters {
+    
+    String PREFIX = "datawave.query.metric.client";
+    
+    /**
+     * Meters which record nothing
+     */
+    QueryMetricClientMeters NOOP = new QueryMetricClientMeters() {};
+    
+    default void bindConfirmAckTracker(ConfirmAckTracker ackTracker) {}
+    
+    default void bindAdaptiveConfirmAckTimeout(AdaptiveConfirmAckTimeout adaptiveConfirmAckTimeout) {}
+    
+    default void bindSupplier(QueryMetricSupplier supplier) {}
+    
+    default void bindBatchSupplier(QueryMetricBatchSupplier supplier) {}
+    
+    default void bindTokenCache(QueryMetricTokenCache tokenCache) {}
+    
+    default void bindSpool(QueryMetricSpool spool) {}
+    
+    default void bindDeliveryQueue(QueryMetricDeliveryQueue deliveryQueue) {}
+    
+    default void bindRateLimiter(QueryMetricRateLimiter rateLimiter) {}
+    
+    default void recordSend(boolean batched, long nanos) {}
+    
+    default void recordConfirmAck(boolean acked, long nanos) {}
+    
+    default void recordRest(boolean success, long nanos) {}
+    
+    default void recordSubmit(QueryMetricTransportType transportType, QueryMetricType metricType, long nanos) {}
+    
+    default void retry() {}
+    
+    default void spooled(int updates) {}
+    
+    default void failure(QueryMetricTransportType transportType) {}
+}
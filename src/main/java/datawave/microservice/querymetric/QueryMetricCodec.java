@@ -0,0 +1,61 @@
+package datawave.microservice.querymetric;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.springframework.util.MimeType;
+
+/**
+ * Encoding of query metric payloads on the wire. The codec's content type is sent along with every payload it encodes, so that the receiver knows how to
+ * decode it.
+ */
+public interface QueryMetricCodec {
+    
+    /**
+     * @return the content type of the encoded payloads
+     */
+    MimeType getContentType();
+    
+    /**
+     * Encodes the value into the stream, leaving the stream open.
+     *
+     * @param value
+     *            the value to encode, not null
+     * @param out
+     *            the stream to write to, not null
+     * @throws IOException
+     *             if the value can't be encoded or written
+     */
+    void write(Object value, OutputStream out) throws IOException;
+    
+    /**
+     * Decodes a value.
+     *
+     * @param bytes
+     *            the encoded value, not null
+     * @param type
+     *            the type to decode to, not null
+     * @param <T>
+     *            the type to decode to
+     * @return the decoded value
+     * @throws IOException
+     *             if the value can't be decoded
+     */
+    <T> T read(byte[] bytes, Class<T> type) throws IOException;
+    
+    /**
+     * Encodes the value.
+     *
+     * @param value
+     *            the value to encode, not null
+     * @return the encoded value
+     * @throws IOException
+     *             if the value can't be encoded
+     */
+    default byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(value, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,51 @@
+package datawave.microservice.querymetric;
+
+import java.io.IOException;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.messaging.converter.MessageConversionException;
+
+/**
+ * Message converter for the content type of a {@link QueryMetricCodec}, so that the messaging infrastructure can encode and decode query metric updates
+ * which are sent with that content type.
+ */
+public class QueryMetricCodecMessageConverter extends AbstractMessageConverter {
+    
+    private final QueryMetricCodec codec;
+    
+    public QueryMetricCodecMessageConverter(QueryMetricCodec codec) {
+        super(codec.getContentType());
+        this.codec = codec;
+        // only handle messages which are explicitly marked with the codec's content type
+        setStrictContentTypeMatch(true);
+    }
+    
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return true;
+    }
+    
+    @Override
+    protected Object convertFromInternal(Message<?> message, Class<?> targetClass, Object conversionHint) {
+        Object payload = message.getPayload();
+        if (!(payload instanceof byte[])) {
+            return null;
+        }
+        try {
+            return codec.read((byte[]) payload, targetClass);
+        } catch (IOException e) {
+            throw new MessageConversionException(message, "Unable to decode " + codec.getContentType() + " payload", e);
+        }
+    }
+    
+    @Override
+    protected Object convertToInternal(Object payload, MessageHeaders headers, Object conversionHint) {
+        try {
+            return codec.encode(payload);
+        } catch (IOException e) {
+            throw new MessageConversionException("Unable to encode " + codec.getContentType() + " payload", e);
+        }
+    }
+}
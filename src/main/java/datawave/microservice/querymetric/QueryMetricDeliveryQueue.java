@@ -0,0 +1,208 @@
+package datawave.microservice.querymetric;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.FireAndForget;
+
+/**
+ * Bounded queue of query metric updates which are delivered in the background, so that the submitting thread does not wait for the send, confirm ack and
+ * retry cycle.
+ * <p>
+ * A pool of worker threads takes updates from the queue and hands them to the delivery function, which performs the usual retry and confirm ack logic. The
+ * number of updates which have been handed off but whose delivery has not yet completed is capped by an in-flight window, and workers wait for room in the
+ * window before handing off more. Virtual threads are used for the workers when the runtime supports them.
+ * <p>
+ * Once the queue has been shut down, submissions which were still queued, and any made afterwards, complete exceptionally with an
+ * {@link IllegalStateException} rather than being left incomplete.
+ */
+public class QueryMetricDeliveryQueue {
+    
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    
+    private final FireAndForget fireAndForget;
+    
+    private final Function<List<QueryMetricUpdate>,CompletableFuture<SubmitResult>> delivery;
+    
+    private final BlockingQueue<Task> queue;
+    
+    private final Semaphore window;
+    
+    private final List<Thread> workers = new ArrayList<>();
+    
+    // submissions which have been accepted, but whose delivery has not yet completed
+    private final AtomicInteger outstanding = new AtomicInteger();
+    
+    private volatile boolean shutdown = false;
+    
+    public QueryMetricDeliveryQueue(FireAndForget fireAndForget, Function<List<QueryMetricUpdate>,CompletableFuture<SubmitResult>> delivery) {
+        this.fireAndForget = fireAndForget;
+        this.delivery = delivery;
+        this.queue = new ArrayBlockingQueue<>(fireAndForget.getQueueCapacity());
+        this.window = new Semaphore(fireAndForget.getMaxInFlight());
+        
+        ThreadFactory threadFactory = fireAndForget.isVirtualThreads() ? virtualThreadFactory() : null;
+        if (threadFactory == null) {
+            threadFactory = new ThreadFactoryBuilder().setNameFormat("query-metric-client-delivery-%d").setDaemon(true).build();
+        }
+        for (int i = 0; i < fireAndForget.getWorkerThreads(); i++) {
+            Thread worker = threadFactory.newThread(this::work);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+    
+    /**
+     * Creates a factory for virtual threads if the runtime supports them. This is done reflectively, since the starter is built for runtimes which don't.
+     *
+     * @return the thread factory, or null if virtual threads are not supported
+     */
+    private ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "query-metric-client-delivery-", 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            log.debug("Virtual threads are not available, using platform threads for delivery");
+            return null;
+        }
+    }
+    
+    /**
+     * Enqueues the updates for background delivery.
+     *
+     * @param updates
+     *            the query metric updates, not null
+     * @return a future which completes with the outcome of the delivery, or null if the queue is full
+     */
+    public CompletableFuture<SubmitResult> offer(List<QueryMetricUpdate> updates) {
+        Task task = new Task(updates);
+        outstanding.incrementAndGet();
+        if (!queue.offer(task)) {
+            outstanding.decrementAndGet();
+            return null;
+        }
+        task.future.whenComplete((result, throwable) -> outstanding.decrementAndGet());
+        if (shutdown) {
+            // the queue was shut down while the task was being queued, so no worker will take it
+            abandonQueued();
+        }
+        return task.future;
+    }
+    
+    /**
+     * @return the number of updates waiting to be handed off for delivery
+     */
+    public int size() {
+        return queue.size();
+    }
+    
+    /**
+     * @return the number of updates which have been handed off, but whose delivery has not yet completed
+     */
+    public int getInFlight() {
+        return fireAndForget.getMaxInFlight() - window.availablePermits();
+    }
+    
+    /**
+     * @return true if every accepted submission has been delivered, or has failed
+     */
+    public boolean isIdle() {
+        return outstanding.get() == 0;
+    }
+    
+    /**
+     * Stops the workers. Submissions which are still queued are not delivered, and complete exceptionally instead.
+     */
+    public void shutdown() {
+        shutdown = true;
+        workers.forEach(Thread::interrupt);
+        int abandoned = abandonQueued();
+        if (abandoned > 0) {
+            log.warn("Shut down query metric delivery queue with {} submissions still queued", abandoned);
+        }
+    }
+    
+    /**
+     * Completes every queued submission exceptionally.
+     *
+     * @return the number of submissions which were completed
+     */
+    private int abandonQueued() {
+        int abandoned = 0;
+        for (Task task = queue.poll(); task != null; task = queue.poll()) {
+            task.future.completeExceptionally(new IllegalStateException("Query metric delivery queue was shut down before the updates were delivered"));
+            abandoned++;
+        }
+        return abandoned;
+    }
+    
+    private void work() {
+        while (!Thread.currentThread().isInterrupted() && !shutdown) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (shutdown) {
+                task.future.completeExceptionally(new IllegalStateException("Query metric delivery queue was shut down before the updates were delivered"));
+                return;
+            }
+            
+            // a single oversized submission may take the whole window, but no more
+            int permits = Math.min(task.updates.size(), fireAndForget.getMaxInFlight());
+            try {
+                window.acquire(permits);
+            } catch (InterruptedException e) {
+                task.future.completeExceptionally(e);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            
+            try {
+                delivery.apply(task.updates).whenComplete((result, throwable) -> {
+                    window.release(permits);
+                    if (throwable != null) {
+                        task.future.completeExceptionally(throwable);
+                    } else {
+                        if (result.getOutcome() == SubmitResult.Outcome.FAILED) {
+                            log.warn("Background delivery of {} query metric updates failed", task.updates.size());
+                        }
+                        task.future.complete(result);
+                    }
+                });
+            } catch (Exception e) {
+                window.release(permits);
+                log.warn("Background delivery of {} query metric updates failed", task.updates.size(), e);
+                task.future.completeExceptionally(e);
+            }
+        }
+    }
+    
+    private static class Task {
+        private final List<QueryMetricUpdate> updates;
+        private final CompletableFuture<SubmitResult> future = new CompletableFuture<>();
+        
+        private Task(List<QueryMetricUpdate> updates) {
+            this.updates = updates;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package datawave.microservice.querymetric;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Delta;
+
+/**
+ * Shrinks query metric updates by only sending the pages which have been added since the last update for the same query.
+ * <p>
+ * The encoder remembers the highest page number it has sent for each query id. An update whose type is configured for delta encoding is replaced with a copy
+ * of the metric which only carries the pages numbered above it, relying on the query metric service to add them to the pages it already has. Since pages are
+ * told apart by number rather than by position, a page list which has been trimmed or which keeps the same size still yields exactly the new pages. Every few
+ * updates, whenever a page has no number, and whenever a delivery fails, a full snapshot is sent instead so that the service can resync. Metric types which are
+ * coalesced are never delta encoded, since coalescing keeps only the latest update for a query.
+ */
+public class QueryMetricDeltaEncoder {
+    
+    private final Delta delta;
+    
+    private final Set<QueryMetricType> metricTypes;
+    
+    private final Cache<String,QueryState> queries;
+    
+    public QueryMetricDeltaEncoder(QueryMetricClientProperties queryMetricClientProperties) {
+        this.delta = queryMetricClientProperties.getDelta();
+        this.metricTypes = delta.getMetricTypes().isEmpty() ? EnumSet.noneOf(QueryMetricType.class) : EnumSet.copyOf(delta.getMetricTypes());
+        if (queryMetricClientProperties.getCoalesce().isEnabled()) {
+            this.metricTypes.removeAll(queryMetricClientProperties.getCoalesce().getMetricTypes());
+        }
+        // @formatter:off
+        this.queries = CacheBuilder.newBuilder()
+                .expireAfterAccess(delta.getExpiryMillis(), TimeUnit.MILLISECONDS)
+                .maximumSize(delta.getMaxQueries())
+                .build();
+        // @formatter:on
+    }
+    
+    /**
+     * Encodes the metric for sending.
+     *
+     * @param metric
+     *            the metric, not null
+     * @param metricType
+     *            the type of the update
+     * @return a copy of the metric with only the new pages, or the metric itself if a full snapshot should be sent
+     */
+    public BaseQueryMetric encode(BaseQueryMetric metric, QueryMetricType metricType) {
+        if (!metricTypes.contains(metricType) || metric.getQueryId() == null) {
+            return metric;
+        }
+        QueryState state;
+        try {
+            state = queries.get(metric.getQueryId(), QueryState::new);
+        } catch (ExecutionException e) {
+            return metric;
+        }
+        
+        List<BaseQueryMetric.PageMetric> pages = metric.getPageTimes() == null ? Collections.emptyList() : metric.getPageTimes();
+        synchronized (state) {
+            long highestPageSent = state.highestPageSent;
+            long highestPage = highestPageSent;
+            boolean numbered = true;
+            List<BaseQueryMetric.PageMetric> newPages = new ArrayList<>();
+            for (BaseQueryMetric.PageMetric page : pages) {
+                long pageNumber = page.getPageNumber();
+                if (pageNumber <= 0) {
+                    numbered = false;
+                } else if (pageNumber > highestPageSent) {
+                    newPages.add(page);
+                    highestPage = Math.max(highestPage, pageNumber);
+                }
+            }
+            state.highestPageSent = highestPage;
+            // send a full snapshot periodically, or if the pages can't be told apart by their page numbers
+            if (state.updates++ % delta.getFullSnapshotInterval() == 0 || !numbered) {
+                return metric;
+            }
+            BaseQueryMetric encoded = metric.duplicate();
+            encoded.setPageTimes(newPages);
+            return encoded;
+        }
+    }
+    
+    /**
+     * Forgets what has been sent for the query, so that its next update is a full snapshot.
+     *
+     * @param queryId
+     *            the query id
+     */
+    public void reset(String queryId) {
+        if (queryId != null) {
+            queries.invalidate(queryId);
+        }
+    }
+    
+    private static class QueryState {
+        private long highestPageSent;
+        private long updates;
+    }
+}
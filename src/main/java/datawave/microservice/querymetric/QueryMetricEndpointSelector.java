@@ -0,0 +1,223 @@
+package datawave.microservice.querymetric;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Rest;
+import datawave.microservice.querymetric.config.QueryMetricLoadBalancingPolicy;
+
+/**
+ * Client side load balancing across the query metric service endpoints used by the REST transport.
+ * <p>
+ * With {@link QueryMetricLoadBalancingPolicy#CONSISTENT_HASH}, each metric is routed by its query id, so that every update for a query goes to the same
+ * endpoint, and a request whose metrics belong to different endpoints is split into one shard per endpoint. The hash is deterministic, so every client
+ * agrees on the mapping. With {@link QueryMetricLoadBalancingPolicy#LEAST_OUTSTANDING}, each request goes whole to the endpoint with the fewest requests in
+ * progress.
+ * <p>
+ * Endpoints are passively health checked: one which fails the configured number of consecutive requests is ejected for the configured duration, during which
+ * its traffic is routed to the other endpoints. If every endpoint is ejected, they are all used regardless.
+ */
+public class QueryMetricEndpointSelector {
+    
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    
+    private final Rest rest;
+    
+    private final List<Endpoint> endpoints;
+    
+    public QueryMetricEndpointSelector(QueryMetricClientProperties queryMetricClientProperties) {
+        this.rest = queryMetricClientProperties.getRest();
+        List<Endpoint> endpoints = new ArrayList<>();
+        if (rest.getEndpoints().isEmpty()) {
+            endpoints.add(new Endpoint(bracketIPv6(queryMetricClientProperties.getHost()), queryMetricClientProperties.getPort()));
+        } else {
+            for (String endpoint : rest.getEndpoints()) {
+                endpoints.add(parseEndpoint(endpoint.trim(), queryMetricClientProperties.getPort()));
+            }
+        }
+        this.endpoints = Collections.unmodifiableList(endpoints);
+    }
+    
+    /**
+     * Parses an endpoint of the form host, host:port, [IPv6 literal] or [IPv6 literal]:port. An IPv6 literal without brackets is taken to be a host with no
+     * port. IPv6 hosts keep their brackets, so that they can be used as they are in a URI.
+     *
+     * @param endpoint
+     *            the endpoint, not null
+     * @param defaultPort
+     *            the port to use if the endpoint has none
+     * @return the endpoint
+     * @throws IllegalArgumentException
+     *             if the endpoint is malformed
+     */
+    private Endpoint parseEndpoint(String endpoint, int defaultPort) {
+        String host;
+        String port = null;
+        if (endpoint.startsWith("[")) {
+            int close = endpoint.indexOf(']');
+            if (close < 0 || (close + 1 < endpoint.length() && endpoint.charAt(close + 1) != ':')) {
+                throw new IllegalArgumentException("Invalid query metric endpoint '" + endpoint + "', expected [IPv6 literal]:port");
+            }
+            host = endpoint.substring(0, close + 1);
+            if (close + 1 < endpoint.length()) {
+                port = endpoint.substring(close + 2);
+            }
+        } else if (endpoint.indexOf(':') != endpoint.lastIndexOf(':')) {
+            host = bracketIPv6(endpoint);
+        } else {
+            int separator = endpoint.indexOf(':');
+            host = separator < 0 ? endpoint : endpoint.substring(0, separator);
+            if (separator >= 0) {
+                port = endpoint.substring(separator + 1);
+            }
+        }
+        if (host.isEmpty() || host.equals("[]")) {
+            throw new IllegalArgumentException("Invalid query metric endpoint '" + endpoint + "', the host is missing");
+        }
+        if (port == null) {
+            return new Endpoint(host, defaultPort);
+        }
+        int portNumber;
+        try {
+            portNumber = Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            portNumber = -1;
+        }
+        if (portNumber < 1 || portNumber > 65535) {
+            throw new IllegalArgumentException("Invalid port '" + port + "' in query metric endpoint '" + endpoint + "'");
+        }
+        return new Endpoint(host, portNumber);
+    }
+    
+    private static String bracketIPv6(String host) {
+        return host != null && host.indexOf(':') >= 0 && !host.startsWith("[") ? "[" + host + "]" : host;
+    }
+    
+    /**
+     * Splits the metrics into shards according to the load balancing policy.
+     *
+     * @param metrics
+     *            the metrics to send, not null
+     * @return the metrics to send to each endpoint, in the order the endpoints were first chosen
+     */
+    public Map<Endpoint,List<BaseQueryMetric>> partition(List<BaseQueryMetric> metrics) {
+        if (endpoints.size() == 1 || rest.getLoadBalancingPolicy() == QueryMetricLoadBalancingPolicy.LEAST_OUTSTANDING) {
+            return Collections.singletonMap(leastOutstanding(), metrics);
+        }
+        
+        long now = System.currentTimeMillis();
+        if (metrics.size() == 1) {
+            return Collections.singletonMap(byQueryId(metrics.get(0).getQueryId(), now), metrics);
+        }
+        Map<Endpoint,List<BaseQueryMetric>> shards = new LinkedHashMap<>();
+        for (BaseQueryMetric metric : metrics) {
+            shards.computeIfAbsent(byQueryId(metric.getQueryId(), now), e -> new ArrayList<>()).add(metric);
+        }
+        return shards;
+    }
+    
+    private Endpoint byQueryId(String queryId, long now) {
+        long hash = Hashing.sipHash24().hashString(queryId == null ? "" : queryId, StandardCharsets.UTF_8).asLong();
+        int bucket = Hashing.consistentHash(hash, endpoints.size());
+        // walk on to the next available endpoint, so that the query's updates all move to the same place while its endpoint is ejected
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get((bucket + i) % endpoints.size());
+            if (endpoint.isAvailable(now)) {
+                return endpoint;
+            }
+        }
+        return endpoints.get(bucket);
+    }
+    
+    private Endpoint leastOutstanding() {
+        long now = System.currentTimeMillis();
+        // start from a random endpoint so that ties are spread around
+        int start = ThreadLocalRandom.current().nextInt(endpoints.size());
+        Endpoint selected = null;
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get((start + i) % endpoints.size());
+            if (endpoint.isAvailable(now) && (selected == null || endpoint.outstanding.get() < selected.outstanding.get())) {
+                selected = endpoint;
+            }
+        }
+        return selected != null ? selected : endpoints.get(start);
+    }
+    
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+    
+    /**
+     * A query metric service endpoint, along with its passive health state
+     */
+    public class Endpoint {
+        private final String host;
+        private final int port;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long ejectedUntil = 0L;
+        
+        private Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+        
+        public String getHost() {
+            return host;
+        }
+        
+        public int getPort() {
+            return port;
+        }
+        
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+        
+        private boolean isAvailable(long now) {
+            return now >= ejectedUntil;
+        }
+        
+        /**
+         * Records the start of a request to this endpoint
+         */
+        public void begin() {
+            outstanding.incrementAndGet();
+        }
+        
+        /**
+         * Records the end of a request to this endpoint.
+         *
+         * @param healthy
+         *            false if the request failed in a way which indicates that the endpoint is unhealthy
+         */
+        public void end(boolean healthy) {
+            outstanding.decrementAndGet();
+            if (healthy) {
+                consecutiveFailures.set(0);
+            } else if (consecutiveFailures.incrementAndGet() >= rest.getEjectAfterFailures()) {
+                consecutiveFailures.set(0);
+                ejectedUntil = System.currentTimeMillis() + rest.getEjectionMillis();
+                log.warn("Ejected query metric endpoint {} for {}ms after {} consecutive failures", this, rest.getEjectionMillis(),
+                                rest.getEjectAfterFailures());
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
@@ -0,0 +1,717 @@
+package datawave.microservice.querymetric;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.GenericMessage;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import datawave.microservice.querymetric.ConfirmAckTracker.PendingAck;
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult;
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult.Outcome;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Retry;
+import datawave.microservice.querymetric.config.QueryMetricOverflowPolicy;
+import datawave.microservice.querymetric.function.QueryMetricBatchSupplier;
+import datawave.microservice.querymetric.function.QueryMetricMessageSupplier.EmitOutcome;
+import datawave.microservice.querymetric.function.QueryMetricSupplier;
+
+/**
+ * Delivers query metric updates via the message transport, with confirm acks, retries with backoff, the circuit breaker and the spool.
+ * <p>
+ * Unbatched bulk updates are pipelined: each update is sent, and its confirm ack awaited, independently of the others. Batches are delivered in rounds, each
+ * of which sends the batch as one packed message on the batch binding and awaits its confirm ack, or are pipelined as individual updates when there is no
+ * batch binding. In both cases confirm acks and retry backoff are waited out on the timer, and the resulting sends run on the send executor, so that no
+ * thread is held while waiting.
+ */
+public class QueryMetricMessageDelivery {
+    
+    /**
+     * The content type parameter which marks a message whose payload is a packed batch of updates, and whose value is the version of the batch format. Version
+     * 1 is an array of updates, encoded by the configured codec, each of which is encoded as a single update message's payload is. Packed batches are only
+     * understood by a query metric service which reads this format.
+     */
+    public static final String BATCH_VERSION_PARAMETER = "query-metric-batch";
+    
+    public static final String BATCH_VERSION = "1";
+    
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    
+    private final QueryMetricClientProperties queryMetricClientProperties;
+    
+    private final QueryMetricSupplier queryMetricSupplier;
+    
+    private final QueryMetricBatchSupplier queryMetricBatchSupplier;
+    
+    private final ConfirmAckTracker ackTracker;
+    
+    // issues correlation ids as the tracker does, for when there is no tracker
+    private final String correlationIdPrefix = Long.toHexString(UUID.randomUUID().getMostSignificantBits()) + '-';
+    
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+    
+    private final LongSupplier confirmAckTimeoutMillis;
+    
+    private final QueryMetricSpool spool;
+    
+    private final QueryMetricCircuitBreaker circuitBreaker;
+    
+    private final QueryMetricClientMeters meters;
+    
+    private final ScheduledExecutorService scheduler;
+    
+    private final Executor sendExecutor;
+    
+    // the content type header for messages, or null if the binder's default content type applies
+    private volatile String messageContentType;
+    
+    // the content type header for packed batches, which is the message content type marked with the batch version
+    private volatile String batchContentType;
+    
+    /**
+     * @param queryMetricClientProperties
+     *            the client configuration, not null
+     * @param queryMetricSupplier
+     *            the source which passes update messages to the messaging infrastructure, not null
+     * @param queryMetricBatchSupplier
+     *            the source which passes packed batches to the messaging infrastructure, or null if batches are sent as individual updates
+     * @param ackTracker
+     *            the tracker of outstanding confirm acks, or null if confirm acks are not awaited
+     * @param confirmAckTimeoutMillis
+     *            supplies the current confirm ack timeout, not null
+     * @param spool
+     *            the spool for updates which can't be delivered, or null if spooling is disabled
+     * @param circuitBreaker
+     *            the circuit breaker for the message transport, or null if circuit breaking is disabled
+     * @param meters
+     *            the client meters, not null
+     * @param scheduler
+     *            runs timers only, not null
+     * @param sendExecutor
+     *            runs sends and the handling of confirm ack outcomes, not null
+     */
+    public QueryMetricMessageDelivery(QueryMetricClientProperties queryMetricClientProperties, QueryMetricSupplier queryMetricSupplier,
+                    QueryMetricBatchSupplier queryMetricBatchSupplier, ConfirmAckTracker ackTracker, LongSupplier confirmAckTimeoutMillis,
+                    QueryMetricSpool spool, QueryMetricCircuitBreaker circuitBreaker, QueryMetricClientMeters meters, ScheduledExecutorService scheduler,
+                    Executor sendExecutor) {
+        this.queryMetricClientProperties = queryMetricClientProperties;
+        this.queryMetricSupplier = queryMetricSupplier;
+        this.queryMetricBatchSupplier = queryMetricBatchSupplier;
+        this.ackTracker = ackTracker;
+        this.confirmAckTimeoutMillis = confirmAckTimeoutMillis;
+        this.spool = spool;
+        this.circuitBreaker = circuitBreaker;
+        this.meters = meters;
+        this.scheduler = scheduler;
+        this.sendExecutor = sendExecutor;
+    }
+    
+    /**
+     * @param messageContentType
+     *            the content type header for messages, or null if the binder's default content type applies
+     */
+    public void setMessageContentType(String messageContentType) {
+        MimeType contentType = messageContentType != null ? MimeTypeUtils.parseMimeType(messageContentType) : MimeTypeUtils.APPLICATION_JSON;
+        this.batchContentType = new MimeType(contentType, Collections.singletonMap(BATCH_VERSION_PARAMETER, BATCH_VERSION)).toString();
+        this.messageContentType = messageContentType;
+    }
+    
+    /**
+     * Delivers each of the updates independently of the others, spooling those which can't be delivered if the spool is enabled.
+     *
+     * @param updates
+     *            the query metric updates, not null
+     * @param blocking
+     *            whether the caller is waiting on the delivery, in which case the first send of each update may wait out a full buffer according to the
+     *            BLOCK overflow policy
+     * @return a future which completes with the outcome once every update has been delivered, spooled or has failed
+     */
+    public CompletableFuture<SubmitResult> deliver(List<QueryMetricUpdate> updates, boolean blocking) {
+        UpdateState state = new UpdateState(updates, queryMetricClientProperties.getRetry().getMaxAttempts(), spool != null);
+        pipelineUpdates(state, blocking);
+        return state.result;
+    }
+    
+    /**
+     * Delivers the updates as a batch, in send and confirm ack rounds, spooling whatever remains undelivered if the spool is enabled. Batches are only ever
+     * delivered from the send executor, so their sends never wait for room in a full buffer. Without a batch binding, the updates are pipelined individually.
+     *
+     * @param updates
+     *            the query metric updates, not null
+     * @return a future which completes with the outcome once the batch has been delivered, spooled or has failed
+     */
+    public CompletableFuture<SubmitResult> deliverBatch(List<QueryMetricUpdate> updates) {
+        if (queryMetricBatchSupplier == null) {
+            return deliver(updates, false);
+        }
+        UpdateState state = new UpdateState(updates, queryMetricClientProperties.getRetry().getMaxAttempts(), spool != null);
+        attemptRound(state);
+        return state.result;
+    }
+    
+    /**
+     * Makes a single delivery attempt for each of the updates, without spooling them, e.g. to replay updates which have been read from the spool.
+     *
+     * @param updates
+     *            the query metric updates, not null
+     * @return a future which completes with the outcome once every update has been acknowledged or has failed
+     */
+    public CompletableFuture<SubmitResult> deliverOnce(List<QueryMetricUpdate> updates) {
+        UpdateState state = new UpdateState(updates, 1, false);
+        pipelineUpdates(state, false);
+        return state.result;
+    }
+    
+    /**
+     * Delivers each of the metric updates independently of the others. Every update is sent, and its confirm ack awaited, as soon as possible, and has its own
+     * attempt count, deadline and retry backoff, so that sends, confirm ack waits and retries of different updates all overlap. An update which is
+     * acknowledged is finished straight away, and the bulk update completes once its slowest update has finished, rather than after a number of rounds
+     * which are each as slow as their slowest update.
+     *
+     * @param state
+     *            the state of the bulk update, not null
+     * @param blocking
+     *            whether the first send of each update may wait for room in a full buffer
+     */
+    private void pipelineUpdates(UpdateState state, boolean blocking) {
+        if (state.updates.isEmpty()) {
+            state.result.complete(new SubmitResult(true, 0, 0L));
+            return;
+        }
+        List<PendingUpdate> pendingUpdates = new ArrayList<>(state.updates.size());
+        long deadline = state.startTime + queryMetricClientProperties.getRetry().getFailTimeoutMillis();
+        for (QueryMetricUpdate update : state.updates) {
+            pendingUpdates.add(new PendingUpdate(update, deadline));
+        }
+        state.outstanding = pendingUpdates.size();
+        for (PendingUpdate pendingUpdate : pendingUpdates) {
+            attemptUpdate(state, pendingUpdate, blocking);
+        }
+    }
+    
+    /**
+     * Performs a single send and confirm ack attempt for one of the updates of a pipelined bulk update. If the attempt fails, the next attempt is scheduled
+     * after the backoff interval rather than sleeping on the current thread.
+     *
+     * @param state
+     *            the state of the bulk update, not null
+     * @param pendingUpdate
+     *            the update to attempt, not null
+     * @param blocking
+     *            whether the send may wait for room in a full buffer, which is only true for the first attempt of a synchronous submit
+     */
+    private void attemptUpdate(UpdateState state, PendingUpdate pendingUpdate, boolean blocking) {
+        if (!admit(state)) {
+            completeAttempt(state, pendingUpdate, false, true);
+            return;
+        }
+        
+        pendingUpdate.attempts++;
+        state.attempted = true;
+        CompletableFuture<Boolean> attempt;
+        PendingAck pendingAck = null;
+        try {
+            // register the pending ack before sending so that a fast ack can't beat us to it
+            if (ackTracker != null) {
+                pendingAck = ackTracker.register(1, Collections.singletonList(pendingUpdate.update));
+            }
+            final long sendStart = System.nanoTime();
+            EmitOutcome outcome = sendMessage(pendingUpdate.update, pendingAck, blocking);
+            meters.recordSend(false, System.nanoTime() - sendStart);
+            if (outcome == EmitOutcome.EMITTED) {
+                attempt = pendingAck == null ? CompletableFuture.completedFuture(true) : awaitConfirmAck(pendingAck);
+            } else {
+                if (pendingAck != null) {
+                    ackTracker.unregister(pendingAck);
+                }
+                pendingUpdate.overflowed = outcome == EmitOutcome.OVERFLOW;
+                attempt = CompletableFuture.completedFuture(false);
+            }
+        } catch (Exception e) {
+            log.warn("Update attempt {} failed", pendingUpdate.attempts, e);
+            if (pendingAck != null) {
+                ackTracker.unregister(pendingAck);
+            }
+            attempt = CompletableFuture.completedFuture(false);
+        }
+        
+        attempt.whenComplete((success, throwable) -> completeAttempt(state, pendingUpdate, throwable == null && success, false));
+    }
+    
+    /**
+     * Decides whether the updates of a pipelined bulk update may be attempted. The circuit breaker admits the bulk update as a whole, rather than each of its
+     * updates, so that when the breaker is half open and the bulk update is its probe, all of its updates are sent together rather than all but the first being
+     * rejected. A fresh admission is only sought once the breaker has opened since the last one.
+     *
+     * @param state
+     *            the state of the bulk update, not null
+     * @return true if the update may be attempted, false if the breaker rejected it
+     */
+    private boolean admit(UpdateState state) {
+        if (circuitBreaker == null) {
+            return true;
+        }
+        synchronized (state) {
+            if (!circuitBreaker.isAdmitted(state.admission)) {
+                state.admission = circuitBreaker.admit();
+            }
+            return state.admission >= 0;
+        }
+    }
+    
+    /**
+     * Decides what to do once an attempt for one of the updates of a pipelined bulk update has completed: finish the update, spool it, or schedule another
+     * attempt.
+     *
+     * @param state
+     *            the state of the bulk update, not null
+     * @param pendingUpdate
+     *            the update which was attempted, not null
+     * @param succeeded
+     *            whether the attempt succeeded
+     * @param rejected
+     *            whether the attempt was rejected by the circuit breaker without being made
+     */
+    private void completeAttempt(UpdateState state, PendingUpdate pendingUpdate, boolean succeeded, boolean rejected) {
+        if (succeeded) {
+            state.acknowledged = true;
+            finishUpdate(state, pendingUpdate, true, false);
+            return;
+        }
+        boolean retriesRemaining = !rejected && System.currentTimeMillis() < pendingUpdate.deadline && pendingUpdate.attempts < state.maxAttempts;
+        boolean spoolNow = rejected || !retriesRemaining || spoolAfter(pendingUpdate.attempts)
+                        || (pendingUpdate.overflowed && queryMetricClientProperties.getSource().getOverflowPolicy() == QueryMetricOverflowPolicy.SPILL);
+        if (state.spoolOnFailure && spoolNow) {
+            int spooled = spool.append(Collections.singletonList(pendingUpdate.update));
+            meters.spooled(spooled);
+            if (spooled > 0) {
+                finishUpdate(state, pendingUpdate, true, true);
+                return;
+            }
+        }
+        if (retriesRemaining) {
+            try {
+                // retries run on the send executor, so they never wait for room in a full buffer
+                scheduleSend(() -> attemptUpdate(state, pendingUpdate, false), backoffMillis(pendingUpdate.attempts));
+                meters.retry();
+                return;
+            } catch (Exception e) {
+                log.warn("Unable to schedule update attempt {}", pendingUpdate.attempts + 1, e);
+            }
+        }
+        finishUpdate(state, pendingUpdate, false, false);
+    }
+    
+    private void finishUpdate(UpdateState state, PendingUpdate pendingUpdate, boolean delivered, boolean spooled) {
+        if (state.finish(pendingUpdate.attempts, delivered, spooled)) {
+            // the whole bulk update counts as one outcome, rather than each of its updates, so that one failed bulk update can't open the breaker by itself
+            recordOutcome(state);
+            long elapsedMillis = System.currentTimeMillis() - state.startTime;
+            if (state.failed) {
+                log.warn("Bulk update failed. {attempts = {}, elapsedMillis = {}}", state.attempts, elapsedMillis);
+            } else if (state.spooled) {
+                log.info("Bulk update spooled. {attempts = {}, elapsedMillis = {}}", state.attempts, elapsedMillis);
+            } else {
+                log.debug("Bulk update successful. {attempts = {}, elapsedMillis = {}}", state.attempts, elapsedMillis);
+            }
+            Outcome outcome = state.failed ? Outcome.FAILED : state.spooled ? Outcome.SPOOLED : Outcome.DELIVERED;
+            state.result.complete(new SubmitResult(outcome, state.attempts, elapsedMillis));
+        }
+    }
+    
+    /**
+     * Performs a single send and confirm ack round for a batch of metric updates. If the round fails, the next round is scheduled after the backoff interval
+     * rather than sleeping on the current thread.
+     *
+     * @param state
+     *            the state of the bulk update, not null
+     */
+    private void attemptRound(UpdateState state) {
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            // the transport is known to be unavailable, so don't spend this update's retry budget against it
+            log.debug("Circuit breaker for MESSAGE transport is open, not attempting bulk update");
+            completeRound(state, false, true);
+            return;
+        }
+        
+        state.attempts++;
+        state.acknowledged = false;
+        if (log.isDebugEnabled()) {
+            log.debug("Bulk update attempt {} of {}", state.attempts, state.maxAttempts);
+        }
+        
+        CompletableFuture<Boolean> round;
+        try {
+            // send all of the remaining metric updates
+            final long sendStart = System.nanoTime();
+            boolean sent = sendBatch(state);
+            meters.recordSend(true, System.nanoTime() - sendStart);
+            if (sent) {
+                round = awaitConfirmAcks(state);
+            } else {
+                round = CompletableFuture.completedFuture(false);
+            }
+        } catch (Exception e) {
+            log.warn("Bulk update attempt {} failed", state.attempts, e);
+            round = CompletableFuture.completedFuture(false);
+        }
+        
+        round.whenComplete((success, throwable) -> {
+            boolean succeeded = throwable == null && success;
+            state.acknowledged |= succeeded;
+            state.attempted = true;
+            recordOutcome(state);
+            completeRound(state, succeeded, false);
+        });
+    }
+    
+    /**
+     * Decides what to do once a send and confirm ack round has completed: finish the bulk update, spool whatever remains, or schedule another round.
+     *
+     * @param state
+     *            the state of the bulk update, not null
+     * @param succeeded
+     *            whether the round succeeded
+     * @param rejected
+     *            whether the round was rejected by the circuit breaker without being attempted
+     */
+    private void completeRound(UpdateState state, boolean succeeded, boolean rejected) {
+        Retry retry = queryMetricClientProperties.getRetry();
+        long elapsedMillis = System.currentTimeMillis() - state.startTime;
+        boolean retriesRemaining = !rejected && elapsedMillis < retry.getFailTimeoutMillis() && state.attempts < state.maxAttempts;
+        boolean spoolNow = rejected || !retriesRemaining || spoolAfter(state.attempts)
+                        || (state.overflowed && queryMetricClientProperties.getSource().getOverflowPolicy() == QueryMetricOverflowPolicy.SPILL);
+        // hand the remaining updates off to the spool rather than holding up the caller while the outage lasts
+        if (!succeeded && state.spoolOnFailure && spoolNow && spoolUpdates(state)) {
+            log.info("Bulk update spooled. {attempts = {}, elapsedMillis = {}}", state.attempts, elapsedMillis);
+            state.result.complete(new SubmitResult(Outcome.SPOOLED, state.attempts, elapsedMillis));
+            return;
+        }
+        if (!succeeded && retriesRemaining) {
+            try {
+                scheduleSend(() -> attemptRound(state), backoffMillis(state.attempts));
+                meters.retry();
+                return;
+            } catch (Exception e) {
+                log.warn("Unable to schedule bulk update attempt {}", state.attempts + 1, e);
+            }
+        }
+        
+        // stop tracking any acks which were sent but never awaited
+        if (ackTracker != null) {
+            state.pendingAcks.forEach(ackTracker::unregister);
+        }
+        
+        if (!succeeded) {
+            log.warn("Bulk update failed. {attempts = {}, elapsedMillis = {}}", state.attempts, elapsedMillis);
+        } else {
+            log.debug("Bulk update successful. {attempts = {}, elapsedMillis = {}}", state.attempts, elapsedMillis);
+        }
+        state.result.complete(new SubmitResult(succeeded, state.attempts, elapsedMillis));
+    }
+    
+    /**
+     * Records the outcome of a bulk update, or of one of its rounds, with the circuit breaker for the message transport.
+     * <p>
+     * A confirm ack which times out counts as a failure, since for the message transport a missing ack is usually the only sign of an outage. However, the
+     * outcome is only a failure if none of the updates was acknowledged. The adaptive confirm ack timeout is deliberately tight, and an ack which misses it
+     * while others arrive means that the transport is slow for some updates, not that it is down. Bulk updates which were never attempted, because the breaker
+     * was already open, record nothing.
+     *
+     * @param state
+     *            the state of the bulk update, not null
+     */
+    private void recordOutcome(UpdateState state) {
+        if (circuitBreaker == null || !state.attempted) {
+            return;
+        }
+        if (state.acknowledged) {
+            circuitBreaker.recordSuccess();
+        } else {
+            circuitBreaker.recordFailure();
+        }
+    }
+    
+    /**
+     * @param attempts
+     *            the number of failed attempts made so far
+     * @return true if the configured number of attempts after which to spool has been reached. Without one, updates are only spooled once their retries
+     *         have run out.
+     */
+    private boolean spoolAfter(int attempts) {
+        Integer spoolAfterAttempts = queryMetricClientProperties.getSpool().getSpoolAfterAttempts();
+        return spoolAfterAttempts != null && attempts >= spoolAfterAttempts;
+    }
+    
+    /**
+     * Computes the backoff before the next attempt. The interval grows by the configured multiplier with each failed attempt up to the configured maximum,
+     * and is then reduced by a random amount of up to the configured jitter factor, so that failing callers don't all retry in lockstep.
+     *
+     * @param attempts
+     *            the number of attempts made so far
+     * @return the backoff in milliseconds
+     */
+    private long backoffMillis(int attempts) {
+        return backoffMillis(queryMetricClientProperties.getRetry(), attempts);
+    }
+    
+    static long backoffMillis(Retry retry, int attempts) {
+        double backoff = retry.getBackoffIntervalMillis() * Math.pow(retry.getBackoffMultiplier(), Math.max(0, attempts - 1));
+        backoff = Math.min(backoff, retry.getMaxBackoffIntervalMillis());
+        if (retry.getJitterFactor() > 0) {
+            backoff -= backoff * retry.getJitterFactor() * ThreadLocalRandom.current().nextDouble();
+        }
+        return (long) backoff;
+    }
+    
+    /**
+     * Appends the updates which have not been delivered to the spool, including those which were sent but whose confirm acks were never awaited.
+     *
+     * @param state
+     *            the state of the bulk update, not null
+     * @return true if all of the undelivered updates were spooled, false otherwise
+     */
+    private boolean spoolUpdates(UpdateState state) {
+        List<QueryMetricUpdate> undelivered = new ArrayList<>(state.updates);
+        for (PendingAck pendingAck : state.pendingAcks) {
+            ackTracker.unregister(pendingAck);
+            undelivered.addAll(pendingAck.getUnackedUpdates());
+        }
+        state.pendingAcks.clear();
+        
+        int spooled = spool.append(undelivered);
+        meters.spooled(spooled);
+        state.updates.clear();
+        state.updates.addAll(undelivered.subList(spooled, undelivered.size()));
+        return state.updates.isEmpty();
+    }
+    
+    /**
+     * Handles a message which the supplier reported as emitted, but then evicted from its buffer under the DROP_OLDEST policy. If its confirm ack is still
+     * awaited, the ack is failed straight away, so that its updates are resent or spooled like any other unacknowledged updates. If confirm acks are not
+     * tracked, nothing else will notice the loss, so the updates are spooled if the spool is enabled. An ack which is no longer tracked has already timed out,
+     * and its updates have been handed back for resending, so nothing more is done.
+     *
+     * @param message
+     *            the evicted message, whose payload is either an update or a packed batch of updates, not null
+     */
+    public void evicted(Message<?> message) {
+        if (ackTracker != null) {
+            Object correlationId = message.getHeaders().get(IntegrationMessageHeaderAccessor.CORRELATION_ID);
+            if (correlationId != null && ackTracker.fail(correlationId.toString())) {
+                log.debug("Query metric message {} was evicted from the supplier's buffer, failing its confirm ack", correlationId);
+            }
+            return;
+        }
+        List<QueryMetricUpdate> updates = new ArrayList<>();
+        Object payload = message.getPayload();
+        if (payload instanceof QueryMetricUpdate) {
+            updates.add((QueryMetricUpdate) payload);
+        } else if (payload instanceof List) {
+            for (Object update : (List<?>) payload) {
+                updates.add((QueryMetricUpdate) update);
+            }
+        }
+        int dropped = updates.size();
+        if (spool != null) {
+            int spooled = spool.append(updates);
+            meters.spooled(spooled);
+            dropped -= spooled;
+        }
+        if (dropped > 0) {
+            log.warn("Dropped {} query metric updates which were evicted from the supplier's buffer", dropped);
+        }
+    }
+    
+    /**
+     * @return a correlation id for a message whose confirm ack will not be tracked
+     */
+    private String nextCorrelationId() {
+        return ackTracker != null ? ackTracker.nextCorrelationId() : correlationIdPrefix + Long.toHexString(nextCorrelationId.getAndIncrement());
+    }
+    
+    /**
+     * Schedules a send on the timer, to run on the send executor once the delay has elapsed.
+     */
+    private void scheduleSend(Runnable send, long delayMillis) {
+        scheduler.schedule(() -> sendExecutor.execute(send), delayMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Passes a query metric message to the messaging infrastructure.
+     *
+     * @param update
+     *            the metric update to send, not null
+     * @param pendingAck
+     *            the registered pending ack for the update, or null if its confirm ack will not be tracked
+     * @param blocking
+     *            whether the send may wait for room in a full buffer, which only a caller of the synchronous submit may do
+     * @return the outcome of the send
+     */
+    private EmitOutcome sendMessage(QueryMetricUpdate update, PendingAck pendingAck, boolean blocking) {
+        String correlationId = pendingAck != null ? pendingAck.getCorrelationId() : nextCorrelationId();
+        // build the message directly rather than through a builder, since it usually only needs the one header
+        String contentType = messageContentType;
+        Map<String,Object> headers;
+        if (contentType == null) {
+            headers = Collections.singletonMap(IntegrationMessageHeaderAccessor.CORRELATION_ID, correlationId);
+        } else {
+            headers = new HashMap<>(4);
+            headers.put(IntegrationMessageHeaderAccessor.CORRELATION_ID, correlationId);
+            headers.put(MessageHeaders.CONTENT_TYPE, contentType);
+        }
+        Message<QueryMetricUpdate> message = new GenericMessage<>(update, headers);
+        return queryMetricSupplier.emit(message, blocking);
+    }
+    
+    /**
+     * Passes the remaining query metric updates to the messaging infrastructure as a single packed message on the batch binding, whose payload is the list
+     * of updates and whose content type carries the {@link #BATCH_VERSION_PARAMETER}, so that the query metric service can tell it apart from a single update.
+     * The batch has one correlation id and is acknowledged by one confirm ack, and a batch which is not acknowledged is resent as a whole.
+     *
+     * @param state
+     *            The state of the bulk update, whose remaining updates will be sent, and whose list of pending acks will be populated, not null
+     * @return true if the batch was successfully sent, false otherwise
+     */
+    private boolean sendBatch(UpdateState state) {
+        // the message keeps its own copy of the updates, since the state's remaining updates are refilled if the batch has to be resent
+        List<QueryMetricUpdate> updates = new ArrayList<>(state.updates);
+        
+        // register the pending ack before sending so that a fast ack can't beat us to it
+        PendingAck pendingAck = null;
+        String correlationId;
+        if (ackTracker != null) {
+            pendingAck = ackTracker.register(1, updates);
+            correlationId = pendingAck.getCorrelationId();
+        } else {
+            correlationId = nextCorrelationId();
+        }
+        
+        Map<String,Object> headers = new HashMap<>(4);
+        headers.put(IntegrationMessageHeaderAccessor.CORRELATION_ID, correlationId);
+        headers.put(MessageHeaders.CONTENT_TYPE, batchContentType);
+        
+        // batches are only ever sent from the send executor
+        EmitOutcome outcome = queryMetricBatchSupplier.emit(new GenericMessage<>(updates, headers), false);
+        if (outcome == EmitOutcome.EMITTED) {
+            if (pendingAck != null) {
+                state.pendingAcks.add(pendingAck);
+            }
+            state.updates.clear();
+        } else {
+            if (pendingAck != null) {
+                ackTracker.unregister(pendingAck);
+            }
+            state.overflowed |= outcome == EmitOutcome.OVERFLOW;
+        }
+        return outcome == EmitOutcome.EMITTED;
+    }
+    
+    /**
+     * Waits for the producer confirm ack of the batch which was sent in the current round. If it is not received in time, the batch's updates are returned to
+     * its remaining updates, to be resent or spooled. No thread is blocked while waiting.
+     *
+     * @param state
+     *            the state of the bulk update, whose pending acks are awaited and then cleared, not null
+     * @return a future which completes with true if the confirm ack was successfully received, false otherwise
+     */
+    private CompletableFuture<Boolean> awaitConfirmAcks(UpdateState state) {
+        List<PendingAck> pendingAcks = state.pendingAcks;
+        // wait for the confirm acks only after all sends are successful
+        if (ackTracker == null || pendingAcks.isEmpty()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        
+        final long ackStart = System.nanoTime();
+        // expired acks complete on the timer thread, so handle the outcome, which may resend, on the send executor
+        return ackTracker.await(pendingAcks, confirmAckTimeoutMillis.getAsLong()).thenApplyAsync(failedAcks -> {
+            meters.recordConfirmAck(failedAcks.isEmpty(), System.nanoTime() - ackStart);
+            for (PendingAck failedAck : failedAcks) {
+                state.updates.addAll(failedAck.getUpdates());
+            }
+            state.acknowledged = failedAcks.size() < pendingAcks.size();
+            pendingAcks.clear();
+            return failedAcks.isEmpty();
+        }, sendExecutor);
+    }
+    
+    private CompletableFuture<Boolean> awaitConfirmAck(PendingAck pendingAck) {
+        final long ackStart = System.nanoTime();
+        return ackTracker.await(Collections.singletonList(pendingAck), confirmAckTimeoutMillis.getAsLong()).thenApplyAsync(failedAcks -> {
+            meters.recordConfirmAck(failedAcks.isEmpty(), System.nanoTime() - ackStart);
+            return failedAcks.isEmpty();
+        }, sendExecutor);
+    }
+    
+    /**
+     * Tracks the progress of a bulk update, either across the send and confirm ack rounds of a batch, or across the independent attempts of its pipelined
+     * updates
+     */
+    private static class UpdateState {
+        private final List<QueryMetricUpdate> updates;
+        private final int maxAttempts;
+        private final boolean spoolOnFailure;
+        private final List<PendingAck> pendingAcks = new ArrayList<>();
+        private final CompletableFuture<SubmitResult> result = new CompletableFuture<>();
+        private final long startTime = System.currentTimeMillis();
+        private int attempts = 0;
+        private boolean overflowed = false;
+        // pipelined updates which have yet to finish, and whether any of those which have finished failed or were spooled
+        private int outstanding = 0;
+        private boolean failed = false;
+        private boolean spooled = false;
+        // whether any update was attempted, and whether any was acknowledged, which decide the outcome recorded with the circuit breaker
+        private volatile boolean attempted = false;
+        private volatile boolean acknowledged = false;
+        // the circuit breaker's admission of the pipelined updates, or -1 if they have yet to be admitted
+        private long admission = -1L;
+        
+        private UpdateState(List<QueryMetricUpdate> updates, int maxAttempts, boolean spoolOnFailure) {
+            this.updates = updates;
+            this.maxAttempts = maxAttempts;
+            this.spoolOnFailure = spoolOnFailure;
+        }
+        
+        /**
+         * @return true if this was the last of the pipelined updates to finish
+         */
+        private synchronized boolean finish(int updateAttempts, boolean delivered, boolean updateSpooled) {
+            attempts = Math.max(attempts, updateAttempts);
+            failed |= !delivered;
+            spooled |= updateSpooled;
+            return --outstanding == 0;
+        }
+    }
+    
+    /**
+     * One of the updates of a pipelined bulk update, along with its own attempt count and deadline
+     */
+    private static class PendingUpdate {
+        private final QueryMetricUpdate update;
+        private final long deadline;
+        private int attempts = 0;
+        private boolean overflowed = false;
+        
+        private PendingUpdate(QueryMetricUpdate update, long deadline) {
+            this.update = update;
+            this.deadline = deadline;
+        }
+    }
+}
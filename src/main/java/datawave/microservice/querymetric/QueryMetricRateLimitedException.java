@@ -0,0 +1,24 @@
+package datawave.microservice.querymetric;
+
+/**
+ * Thrown by a synchronous submit which has been rejected by the per-user rate limit. Asynchronous submissions which are rejected complete with a result which
+ * is {@link QueryMetricClient.SubmitResult#isRateLimited() rate limited} instead.
+ */
+public class QueryMetricRateLimitedException extends RuntimeException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final String identity;
+    
+    public QueryMetricRateLimitedException(String identity) {
+        super("Query metric update rate limit exceeded for " + identity);
+        this.identity = identity;
+    }
+    
+    /**
+     * @return the identity of the user whose submission was rejected
+     */
+    public String getIdentity() {
+        return identity;
+    }
+}
@@ -0,0 +1,100 @@
+package datawave.microservice.querymetric;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.RateLimit;
+
+/**
+ * Per-user token bucket rate limiter for query metric submissions, so that a single user who creates a flood of queries can't crowd out everybody else's
+ * metrics.
+ * <p>
+ * Each metric in a submission takes one token from the submitting user's bucket, which refills at the configured rate up to the configured burst. A
+ * submission which needs more tokens than remain is rejected, unless its metric type is exempt, in which case it is let through and the user's bucket goes into
+ * debt instead, so that final metrics are never lost to rate limiting but still count against the user.
+ */
+public class QueryMetricRateLimiter {
+    
+    private final RateLimit rateLimit;
+    
+    private final Cache<String,TokenBucket> buckets;
+    
+    private final LongAdder rejected = new LongAdder();
+    
+    public QueryMetricRateLimiter(RateLimit rateLimit) {
+        this.rateLimit = rateLimit;
+        // @formatter:off
+        this.buckets = CacheBuilder.newBuilder()
+                .expireAfterAccess(rateLimit.getExpiryMillis(), TimeUnit.MILLISECONDS)
+                .maximumSize(rateLimit.getMaxUsers())
+                .build();
+        // @formatter:on
+    }
+    
+    /**
+     * Takes tokens for a submission from the user's bucket.
+     *
+     * @param identity
+     *            the identity of the submitting user, not null
+     * @param metricType
+     *            the metric type of the submission, not null
+     * @param metrics
+     *            the number of metrics in the submission
+     * @return true if the submission may proceed, false if it has been rate limited
+     */
+    public boolean tryAcquire(String identity, QueryMetricType metricType, int metrics) {
+        TokenBucket bucket;
+        try {
+            bucket = buckets.get(identity, () -> new TokenBucket(rateLimit.getBurst()));
+        } catch (ExecutionException e) {
+            // the bucket constructor doesn't throw
+            throw new IllegalStateException(e.getCause());
+        }
+        if (bucket.take(metrics, rateLimit.getExemptMetricTypes().contains(metricType))) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+    
+    /**
+     * @return the number of submissions which have been rate limited
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+    
+    /**
+     * @return the number of users with a bucket
+     */
+    public long size() {
+        return buckets.size();
+    }
+    
+    private final class TokenBucket {
+        private double tokens;
+        private long lastRefillNanos = System.nanoTime();
+        
+        private TokenBucket(double tokens) {
+            this.tokens = tokens;
+        }
+        
+        private synchronized boolean take(int permits, boolean exempt) {
+            final long now = System.nanoTime();
+            double burst = rateLimit.getBurst();
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) * rateLimit.getPermitsPerSecond() / TimeUnit.SECONDS.toNanos(1));
+            lastRefillNanos = now;
+            // a submission which is bigger than the burst can only ever go through on a full bucket
+            if (exempt || tokens >= Math.min(permits, burst)) {
+                // bound the debt, so that a user can't be locked out for longer than it takes to refill twice over
+                tokens = Math.max(-burst, tokens - permits);
+                return true;
+            }
+            return false;
+        }
+    }
+}
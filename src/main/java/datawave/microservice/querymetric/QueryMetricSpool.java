@@ -0,0 +1,456 @@
+package datawave.microservice.querymetric;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Spool;
+
+/**
+ * Durable, memory-mapped write-ahead log for query metric updates which could not be delivered.
+ * <p>
+ * Updates are appended to fixed size segment files in the configured directory, rolling to a new segment when the current one is full. Each record is laid
+ * out as {@code [int length][int state][long crc][payload]}, where the payload is the JSON encoding of the update. Once a record has been delivered its state
+ * is flipped to acknowledged in place, and segments which contain only acknowledged records are deleted. Pending records therefore survive a restart, and
+ * are picked up again when the spool is reopened.
+ * <p>
+ * Unless disabled, each append is forced to disk before it returns, so that spooled records also survive a crash of the host rather than just of the process.
+ * Acknowledgements are not forced, since losing one only means that its record is delivered again.
+ * <p>
+ * The spool holds an exclusive lock on a lock file in its directory until it is closed, since two spools writing to the same segments would corrupt each
+ * other's records. Opening a spool on a directory which is already in use fails.
+ * <p>
+ * Segment buffers are never unmapped explicitly, since records which were read from a segment may still refer to it, and touching a buffer after it has
+ * been unmapped crashes the JVM. They are unmapped once they are garbage collected instead. A segment which has been retired, or whose spool has been
+ * closed, is never written again. Where the platform won't delete a file while it is still mapped, deleting a retired segment is retried until it has been
+ * unmapped, and any which are left are deleted when the spool is next opened.
+ */
+public class QueryMetricSpool {
+    
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = "spool.lock";
+    
+    private static final int HEADER_BYTES = 16;
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_ACKED = 1;
+    
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    
+    private final Spool spool;
+    
+    private final ObjectMapper objectMapper;
+    
+    private final File directory;
+    
+    private final FileChannel lockChannel;
+    
+    private final FileLock lock;
+    
+    private final LinkedList<Segment> segments = new LinkedList<>();
+    
+    // the files of retired segments which could not be deleted yet, because they were still mapped
+    private final List<File> retiredFiles = new ArrayList<>();
+    
+    private long pendingCount = 0;
+    
+    private boolean closed = false;
+    
+    /**
+     * Opens the spool, recovering any records which are still pending in its directory.
+     *
+     * @param spool
+     *            the spool configuration, whose directory must be set
+     * @param objectMapper
+     *            the object mapper used to encode spooled updates, not null
+     * @throws IOException
+     *             if the directory can't be created or read, or is in use by another spool
+     */
+    public QueryMetricSpool(Spool spool, ObjectMapper objectMapper) throws IOException {
+        if (spool.getDirectory() == null || spool.getDirectory().isBlank()) {
+            throw new IllegalArgumentException("The query metric spool directory must be set");
+        }
+        this.spool = spool;
+        this.objectMapper = objectMapper;
+        this.directory = new File(spool.getDirectory());
+        Files.createDirectories(directory.toPath());
+        
+        this.lockChannel = FileChannel.open(new File(directory, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            this.lock = tryLock(lockChannel);
+            if (lock == null) {
+                throw new IOException("Query metric spool directory " + directory + " is in use by another spool");
+            }
+            recover();
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+    
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another spool in this JVM
+            return null;
+        }
+    }
+    
+    /**
+     * Appends the updates to the spool.
+     *
+     * @param updates
+     *            the query metric updates, not null
+     * @return the number of updates which were spooled. Updates are dropped if the spool has reached its maximum number of segments.
+     */
+    public synchronized int append(List<QueryMetricUpdate> updates) {
+        if (closed) {
+            log.warn("Query metric spool is closed, dropping {} updates", updates.size());
+            return 0;
+        }
+        int appended = 0;
+        Segment written = null;
+        for (QueryMetricUpdate update : updates) {
+            try {
+                byte[] payload = encode(update);
+                Segment segment = segmentFor(HEADER_BYTES + payload.length);
+                if (segment == null) {
+                    log.warn("Query metric spool is full, dropping {} updates", updates.size() - appended);
+                    break;
+                }
+                if (written != null && written != segment) {
+                    // the previous segment is full, so it won't be written again
+                    sync(written);
+                }
+                segment.write(payload);
+                written = segment;
+                pendingCount++;
+                appended++;
+            } catch (IOException e) {
+                log.error("Unable to spool query metric update", e);
+            }
+        }
+        if (written != null) {
+            sync(written);
+        }
+        return appended;
+    }
+    
+    private void sync(Segment segment) {
+        if (spool.isSyncOnAppend()) {
+            segment.buffer.force();
+        }
+    }
+    
+    /**
+     * Reads up to the given number of pending records, oldest first, without acknowledging them.
+     *
+     * @param max
+     *            the maximum number of records to read
+     * @return the pending records
+     */
+    public synchronized List<Record> peek(int max) {
+        List<Record> records = new ArrayList<>();
+        for (Segment segment : new ArrayList<>(segments)) {
+            readPending(segment, records, max);
+            if (records.size() >= max) {
+                break;
+            }
+        }
+        return records;
+    }
+    
+    private void readPending(Segment segment, List<Record> records, int max) {
+        int position = segment.skipAcknowledged();
+        while (position < segment.writePosition && records.size() < max) {
+            int length = segment.buffer.getInt(position);
+            if (segment.buffer.getInt(position + 4) == STATE_PENDING) {
+                byte[] payload = new byte[length];
+                segment.buffer.position(position + HEADER_BYTES);
+                segment.buffer.get(payload);
+                try {
+                    records.add(new Record(segment, position, decode(payload)));
+                } catch (IOException e) {
+                    log.error("Discarding unreadable query metric spool record in {}", segment.file, e);
+                    if (segment.acknowledge(position)) {
+                        pendingCount--;
+                    }
+                }
+            }
+            position += HEADER_BYTES + length;
+        }
+    }
+    
+    /**
+     * Marks the records as delivered, and deletes any segments which no longer contain pending records.
+     *
+     * @param records
+     *            the delivered records, not null
+     */
+    public synchronized void acknowledge(List<Record> records) {
+        for (Record record : records) {
+            if (record.segment.acknowledge(record.position)) {
+                pendingCount--;
+            }
+        }
+        compact();
+    }
+    
+    public synchronized long getPendingCount() {
+        return pendingCount;
+    }
+    
+    /**
+     * Releases the lock on the spool directory, after which the spool drops any further appends. Pending records stay on disk for the next spool opened on
+     * the directory.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // pending records are left on disk, and records which were read before closing can no longer be acknowledged
+        segments.forEach(segment -> segment.released = true);
+        segments.clear();
+        deleteRetiredFiles();
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            log.warn("Unable to release query metric spool lock in {}", directory, e);
+        }
+    }
+    
+    private void compact() {
+        // never delete the segment currently being written to
+        while (segments.size() > 1 && segments.getFirst().pending == 0) {
+            Segment segment = segments.removeFirst();
+            // the buffer is left for the garbage collector to unmap, since records which were read from the segment may still refer to it
+            segment.released = true;
+            retiredFiles.add(segment.file);
+        }
+        deleteRetiredFiles();
+    }
+    
+    /**
+     * Deletes the files of retired segments. A file which is still mapped can't be deleted on some platforms, so any which can't be deleted are kept and
+     * retried the next time, by which time their buffers may have been collected.
+     */
+    private void deleteRetiredFiles() {
+        for (Iterator<File> files = retiredFiles.iterator(); files.hasNext();) {
+            File file = files.next();
+            if (file.delete() || !file.exists()) {
+                files.remove();
+            } else {
+                log.debug("Spool segment {} is still mapped, deleting it later", file);
+            }
+        }
+    }
+    
+    private Segment segmentFor(int recordBytes) throws IOException {
+        Segment current = segments.peekLast();
+        if (current != null && current.remaining() >= recordBytes + Integer.BYTES) {
+            return current;
+        }
+        if (segments.size() >= spool.getMaxSegments()) {
+            return null;
+        }
+        long sequence = current == null ? 0 : current.sequence + 1;
+        // leave room for the zero length marker which terminates the segment
+        Segment segment = Segment.create(new File(directory, SEGMENT_PREFIX + sequence + SEGMENT_SUFFIX), sequence,
+                        Math.max(spool.getSegmentSizeBytes(), recordBytes + Integer.BYTES));
+        segments.addLast(segment);
+        return segment;
+    }
+    
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(QueryMetricSpool::sequenceOf));
+        for (File file : files) {
+            Segment segment = Segment.open(file, sequenceOf(file));
+            segments.addLast(segment);
+            pendingCount += segment.pending;
+        }
+        compact();
+        if (pendingCount > 0) {
+            log.info("Recovered {} spooled query metric updates from {}", pendingCount, directory);
+        }
+    }
+    
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+    
+    private byte[] encode(QueryMetricUpdate update) throws IOException {
+        ObjectNode node = objectMapper.createObjectNode();
+        node.put("metricType", update.getMetricType().name());
+        node.put("metricClass", update.getMetric().getClass().getName());
+        node.set("metric", objectMapper.valueToTree(update.getMetric()));
+        return objectMapper.writeValueAsBytes(node);
+    }
+    
+    private QueryMetricUpdate decode(byte[] payload) throws IOException {
+        JsonNode node = objectMapper.readTree(payload);
+        String metricClassName = node.path("metricClass").asText();
+        Class<? extends BaseQueryMetric> metricClass;
+        try {
+            // the spool directory may have been tampered with, so check the class before it is initialized or deserialized into
+            metricClass = Class.forName(metricClassName, false, getClass().getClassLoader()).asSubclass(BaseQueryMetric.class);
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Spool record has an unknown query metric class " + metricClassName, e);
+        }
+        try {
+            BaseQueryMetric metric = objectMapper.treeToValue(node.get("metric"), metricClass);
+            return new QueryMetricUpdate(metric, QueryMetricType.valueOf(node.path("metricType").asText()));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Spool record has an unknown query metric type", e);
+        }
+    }
+    
+    /**
+     * A pending record read from the spool
+     */
+    public static class Record {
+        private final Segment segment;
+        private final int position;
+        private final QueryMetricUpdate update;
+        
+        private Record(Segment segment, int position, QueryMetricUpdate update) {
+            this.segment = segment;
+            this.position = position;
+            this.update = update;
+        }
+        
+        public QueryMetricUpdate getUpdate() {
+            return update;
+        }
+    }
+    
+    private static class Segment {
+        private final File file;
+        private final long sequence;
+        private final MappedByteBuffer buffer;
+        private int writePosition = 0;
+        private int readPosition = 0;
+        private int pending = 0;
+        private boolean released = false;
+        
+        private Segment(File file, long sequence, MappedByteBuffer buffer) {
+            this.file = file;
+            this.sequence = sequence;
+            this.buffer = buffer;
+        }
+        
+        private static Segment create(File file, long sequence, int size) throws IOException {
+            return new Segment(file, sequence, map(file, size));
+        }
+        
+        private static Segment open(File file, long sequence) throws IOException {
+            Segment segment = new Segment(file, sequence, map(file, (int) file.length()));
+            segment.scan();
+            return segment;
+        }
+        
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+        
+        private int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+        
+        /**
+         * Finds the end of the written records, and counts those which are still pending. A record with a bad checksum is treated as the end of the segment,
+         * since it can only be the result of a torn write.
+         */
+        private void scan() {
+            int position = 0;
+            while (position + HEADER_BYTES <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + HEADER_BYTES + length > buffer.capacity()) {
+                    break;
+                }
+                if (crc(position + HEADER_BYTES, length) != buffer.getLong(position + 8)) {
+                    break;
+                }
+                if (buffer.getInt(position + 4) == STATE_PENDING) {
+                    pending++;
+                }
+                position += HEADER_BYTES + length;
+            }
+            writePosition = position;
+        }
+        
+        private void write(byte[] payload) {
+            int position = writePosition;
+            buffer.position(position + HEADER_BYTES);
+            buffer.put(payload);
+            buffer.putLong(position + 8, crc(position + HEADER_BYTES, payload.length));
+            buffer.putInt(position + 4, STATE_PENDING);
+            // write the length last, so that a partially written record is never considered valid
+            buffer.putInt(position, payload.length);
+            writePosition = position + HEADER_BYTES + payload.length;
+            pending++;
+        }
+        
+        /**
+         * @return the position of the first record which may still be pending
+         */
+        private int skipAcknowledged() {
+            while (readPosition < writePosition && buffer.getInt(readPosition + 4) == STATE_ACKED) {
+                readPosition += HEADER_BYTES + buffer.getInt(readPosition);
+            }
+            return readPosition;
+        }
+        
+        private boolean acknowledge(int position) {
+            // the records of a segment which has been deleted were all acknowledged already
+            if (released) {
+                return false;
+            }
+            if (buffer.getInt(position + 4) == STATE_PENDING) {
+                buffer.putInt(position + 4, STATE_ACKED);
+                pending--;
+                return true;
+            }
+            return false;
+        }
+        
+        private long crc(int position, int length) {
+            ByteBuffer bytes = buffer.duplicate();
+            bytes.limit(position + length);
+            bytes.position(position);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            return crc.getValue();
+        }
+    }
+}
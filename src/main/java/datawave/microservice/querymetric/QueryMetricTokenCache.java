@@ -0,0 +1,185 @@
+package datawave.microservice.querymetric;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.TokenCache;
+import datawave.security.authorization.DatawaveUser;
+import datawave.security.authorization.JWTTokenHandler;
+
+/**
+ * Caches the signed JWTs used to authenticate REST submissions, keyed by username and proxied user chain, so that a token is not signed for every update.
+ * The key includes the authorizations and roles of every user in the chain, so that a user whose authorizations or roles change is never sent a token
+ * signed with the old ones.
+ * <p>
+ * A token is reused until it comes within the configured expiration margin of the expiration time in its {@code exp} claim, and is then signed afresh, so
+ * that a cached token is never sent close to its expiration however long the {@link JWTTokenHandler} makes its tokens last. The configured time to live
+ * caps how long any token is reused, and is all that applies to a token without an {@code exp} claim.
+ */
+public class QueryMetricTokenCache {
+    
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    
+    private final JWTTokenHandler jwtTokenHandler;
+    
+    private final ObjectMapper objectMapper;
+    
+    private final long expirationMarginMillis;
+    
+    private final Cache<Key,CachedToken> tokens;
+    
+    private final LongAdder expired = new LongAdder();
+    
+    public QueryMetricTokenCache(JWTTokenHandler jwtTokenHandler, TokenCache tokenCache, ObjectMapper objectMapper) {
+        this.jwtTokenHandler = jwtTokenHandler;
+        this.objectMapper = objectMapper;
+        this.expirationMarginMillis = tokenCache.getExpirationMarginMillis();
+        // @formatter:off
+        this.tokens = CacheBuilder.newBuilder()
+                .expireAfterWrite(tokenCache.getTtlMillis(), TimeUnit.MILLISECONDS)
+                .maximumSize(tokenCache.getMaxSize())
+                .recordStats()
+                .build();
+        // @formatter:on
+    }
+    
+    /**
+     * Returns the cached token for the given users, signing a new one if there is none or it has expired.
+     *
+     * @param username
+     *            the username, not null
+     * @param proxiedUsers
+     *            the proxied user chain, not null
+     * @return the signed token
+     */
+    public String getToken(String username, Collection<? extends DatawaveUser> proxiedUsers) {
+        Key key = new Key(username, proxiedUsers);
+        // look the token up through the map view first, so that a token which has to be replaced isn't also counted as a hit
+        CachedToken cached = tokens.asMap().get(key);
+        if (cached != null && System.currentTimeMillis() >= cached.reuseUntilMillis) {
+            expired.increment();
+            tokens.asMap().remove(key, cached);
+        }
+        try {
+            return tokens.get(key, () -> sign(username, proxiedUsers)).token;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to create token for " + username, e.getCause());
+        }
+    }
+    
+    private CachedToken sign(String username, Collection<? extends DatawaveUser> proxiedUsers) {
+        String token = jwtTokenHandler.createTokenFromUsers(username, proxiedUsers);
+        long expirationMillis = expirationMillis(token);
+        return new CachedToken(token, expirationMillis < 0 ? Long.MAX_VALUE : expirationMillis - expirationMarginMillis);
+    }
+    
+    /**
+     * @return the expiration time of the token from its {@code exp} claim, in milliseconds since the epoch, or -1 if it has none
+     */
+    private long expirationMillis(String token) {
+        int start = token.indexOf('.');
+        int end = token.indexOf('.', start + 1);
+        if (start < 0 || end < 0) {
+            return -1L;
+        }
+        try {
+            JsonNode exp = objectMapper.readTree(Base64.getUrlDecoder().decode(token.substring(start + 1, end))).get("exp");
+            return exp != null && exp.canConvertToLong() ? TimeUnit.SECONDS.toMillis(exp.asLong()) : -1L;
+        } catch (IOException | IllegalArgumentException e) {
+            log.debug("Unable to read the expiration of a signed token, reusing it for the time to live", e);
+            return -1L;
+        }
+    }
+    
+    public long getHitCount() {
+        return tokens.stats().hitCount();
+    }
+    
+    public long getMissCount() {
+        return tokens.stats().missCount();
+    }
+    
+    /**
+     * @return the number of cached tokens which were signed afresh because they had come within the expiration margin of their expiration
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+    
+    public long getEvictionCount() {
+        return tokens.stats().evictionCount();
+    }
+    
+    public long size() {
+        return tokens.size();
+    }
+    
+    private static final class CachedToken {
+        private final String token;
+        private final long reuseUntilMillis;
+        
+        private CachedToken(String token, long reuseUntilMillis) {
+            this.token = token;
+            this.reuseUntilMillis = reuseUntilMillis;
+        }
+    }
+    
+    /**
+     * The users are part of the key, rather than just their DNs, so that a change in roles or authorizations results in a new token. Their authorizations
+     * and roles are compared explicitly, rather than relying on {@link DatawaveUser#equals(Object)} to include them.
+     */
+    private static final class Key {
+        private final String username;
+        private final List<DatawaveUser> proxiedUsers;
+        // the authorizations and then the roles of each user in the chain, in turn
+        private final List<List<String>> entitlements;
+        private final int hashCode;
+        
+        private Key(String username, Collection<? extends DatawaveUser> proxiedUsers) {
+            this.username = username;
+            this.proxiedUsers = new ArrayList<>(proxiedUsers);
+            this.entitlements = new ArrayList<>(this.proxiedUsers.size() * 2);
+            for (DatawaveUser user : this.proxiedUsers) {
+                entitlements.add(new ArrayList<>(user.getAuths()));
+                entitlements.add(new ArrayList<>(user.getRoles()));
+            }
+            this.hashCode = Objects.hash(username, this.proxiedUsers, entitlements);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return username.equals(other.username) && proxiedUsers.equals(other.proxiedUsers) && entitlements.equals(other.entitlements);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package datawave.microservice.querymetric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Batch;
+
+/**
+ * Accumulates query metric updates into batches which are delivered once they reach the configured maximum number of updates, or once the oldest update in
+ * the batch has waited for the configured maximum delay, whichever comes first.
+ */
+public class QueryMetricUpdateBatcher {
+    
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    
+    private final Batch batch;
+    
+    private final ScheduledExecutorService scheduler;
+    
+    private final Function<List<QueryMetricUpdate>,CompletableFuture<SubmitResult>> delivery;
+    
+    private final Object lock = new Object();
+    
+    private PendingBatch currentBatch;
+    
+    public QueryMetricUpdateBatcher(Batch batch, ScheduledExecutorService scheduler,
+                    Function<List<QueryMetricUpdate>,CompletableFuture<SubmitResult>> delivery) {
+        this.batch = batch;
+        this.scheduler = scheduler;
+        this.delivery = delivery;
+    }
+    
+    /**
+     * Adds the updates to the pending batch, delivering any batches which become full as a result.
+     *
+     * @param updates
+     *            the query metric updates, not null
+     * @return a future which completes once every batch containing one of the updates has been delivered
+     */
+    public CompletableFuture<SubmitResult> submit(List<QueryMetricUpdate> updates) {
+        final long startTime = System.currentTimeMillis();
+        
+        List<CompletableFuture<SubmitResult>> futures = new ArrayList<>(1);
+        List<PendingBatch> fullBatches = new ArrayList<>(1);
+        List<PendingBatch> newBatches = new ArrayList<>(1);
+        synchronized (lock) {
+            PendingBatch pendingBatch = null;
+            for (QueryMetricUpdate update : updates) {
+                if (currentBatch == null) {
+                    currentBatch = new PendingBatch(batch.getMaxUpdates());
+                    newBatches.add(currentBatch);
+                }
+                if (currentBatch != pendingBatch) {
+                    pendingBatch = currentBatch;
+                    CompletableFuture<SubmitResult> future = new CompletableFuture<>();
+                    pendingBatch.futures.add(future);
+                    futures.add(future);
+                }
+                pendingBatch.updates.add(update);
+                if (pendingBatch.updates.size() >= batch.getMaxUpdates()) {
+                    fullBatches.add(pendingBatch);
+                    currentBatch = null;
+                }
+            }
+        }
+        
+        for (PendingBatch newBatch : newBatches) {
+            if (!fullBatches.contains(newBatch)) {
+                scheduleFlush(newBatch);
+            }
+        }
+        for (PendingBatch fullBatch : fullBatches) {
+            deliver(fullBatch);
+        }
+        
+        return SubmitResult.combine(futures, startTime);
+    }
+    
+    /**
+     * Delivers the pending batch now, rather than waiting for it to fill up or for its delay to elapse.
+     */
+    public void flush() {
+        PendingBatch pendingBatch;
+        synchronized (lock) {
+            pendingBatch = currentBatch;
+        }
+        if (pendingBatch != null) {
+            flush(pendingBatch);
+        }
+    }
+    
+    private void scheduleFlush(PendingBatch pendingBatch) {
+        try {
+            pendingBatch.flushTask = scheduler.schedule(() -> flush(pendingBatch), batch.getMaxDelayMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warn("Unable to schedule batch flush, sending immediately", e);
+            flush(pendingBatch);
+        }
+    }
+    
+    private void flush(PendingBatch pendingBatch) {
+        synchronized (lock) {
+            if (currentBatch != pendingBatch) {
+                // already delivered because it filled up
+                return;
+            }
+            currentBatch = null;
+        }
+        deliver(pendingBatch);
+    }
+    
+    private void deliver(PendingBatch pendingBatch) {
+        if (pendingBatch.flushTask != null) {
+            pendingBatch.flushTask.cancel(false);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Sending batch of {} updates", pendingBatch.updates.size());
+        }
+        try {
+            delivery.apply(pendingBatch.updates).whenComplete((result, throwable) -> {
+                for (CompletableFuture<SubmitResult> future : pendingBatch.futures) {
+                    if (throwable != null) {
+                        future.completeExceptionally(throwable);
+                    } else {
+                        future.complete(result);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            pendingBatch.futures.forEach(future -> future.completeExceptionally(e));
+        }
+    }
+    
+    private static class PendingBatch {
+        private final List<QueryMetricUpdate> updates;
+        private final List<CompletableFuture<SubmitResult>> futures = new ArrayList<>();
+        private volatile ScheduledFuture<?> flushTask;
+        
+        private PendingBatch(int maxUpdates) {
+            this.updates = new ArrayList<>(maxUpdates);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package datawave.microservice.querymetric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Coalesce;
+
+/**
+ * Merges pending query metric updates for the same query id and metric type which arrive within the configured window, so that only the latest snapshot is
+ * delivered. Every caller whose update was merged is notified with the outcome of the delivery of the merged update.
+ */
+public class QueryMetricUpdateCoalescer {
+    
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    
+    private final Coalesce coalesce;
+    
+    private final ScheduledExecutorService scheduler;
+    
+    private final Function<List<QueryMetricUpdate>,CompletableFuture<SubmitResult>> delivery;
+    
+    private final Map<Key,Pending> pendingUpdates = new ConcurrentHashMap<>();
+    
+    public QueryMetricUpdateCoalescer(Coalesce coalesce, ScheduledExecutorService scheduler,
+                    Function<List<QueryMetricUpdate>,CompletableFuture<SubmitResult>> delivery) {
+        this.coalesce = coalesce;
+        this.scheduler = scheduler;
+        this.delivery = delivery;
+    }
+    
+    /**
+     * Submits the updates for delivery, coalescing those whose metric type is eligible.
+     *
+     * @param updates
+     *            the query metric updates, not null
+     * @return a future which completes once all of the updates, or the updates they were merged into, have been delivered
+     */
+    public CompletableFuture<SubmitResult> submit(List<QueryMetricUpdate> updates) {
+        final long startTime = System.currentTimeMillis();
+        
+        List<QueryMetricUpdate> passThrough = new ArrayList<>();
+        List<CompletableFuture<SubmitResult>> futures = new ArrayList<>();
+        for (QueryMetricUpdate update : updates) {
+            if (isCoalescable(update)) {
+                futures.add(coalesce(update));
+            } else {
+                passThrough.add(update);
+            }
+        }
+        if (!passThrough.isEmpty()) {
+            futures.add(delivery.apply(passThrough));
+        }
+        
+        return SubmitResult.combine(futures, startTime);
+    }
+    
+    public int getPendingCount() {
+        return pendingUpdates.size();
+    }
+    
+    /**
+     * Delivers all of the pending coalesced updates now, rather than waiting for their windows to close.
+     */
+    public void flush() {
+        for (Key key : new ArrayList<>(pendingUpdates.keySet())) {
+            flush(key);
+        }
+    }
+    
+    private boolean isCoalescable(QueryMetricUpdate update) {
+        return update.getMetric() != null && update.getMetric().getQueryId() != null && coalesce.getMetricTypes().contains(update.getMetricType());
+    }
+    
+    private CompletableFuture<SubmitResult> coalesce(QueryMetricUpdate update) {
+        Key key = new Key(update.getMetric().getQueryId(), update.getMetricType());
+        CompletableFuture<SubmitResult> future = new CompletableFuture<>();
+        boolean[] created = new boolean[1];
+        pendingUpdates.compute(key, (k, pending) -> {
+            if (pending == null) {
+                pending = new Pending();
+                created[0] = true;
+            }
+            // the latest snapshot supersedes any earlier pending snapshot
+            pending.update = update;
+            pending.futures.add(future);
+            return pending;
+        });
+        
+        if (created[0]) {
+            try {
+                scheduler.schedule(() -> flush(key), coalesce.getWindowMillis(), TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                log.warn("Unable to schedule coalesced update for {}, sending immediately", key, e);
+                flush(key);
+            }
+        }
+        return future;
+    }
+    
+    private void flush(Key key) {
+        Pending pending = pendingUpdates.remove(key);
+        if (pending != null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Sending coalesced update for {} in place of {} updates", key, pending.futures.size());
+            }
+            try {
+                delivery.apply(Lists.newArrayList(pending.update)).whenComplete((result, throwable) -> {
+                    for (CompletableFuture<SubmitResult> future : pending.futures) {
+                        if (throwable != null) {
+                            future.completeExceptionally(throwable);
+                        } else {
+                            future.complete(result);
+                        }
+                    }
+                });
+            } catch (Exception e) {
+                pending.futures.forEach(future -> future.completeExceptionally(e));
+            }
+        }
+    }
+    
+    private static class Pending {
+        private QueryMetricUpdate update;
+        private final List<CompletableFuture<SubmitResult>> futures = new ArrayList<>();
+    }
+    
+    private static class Key {
+        private final String queryId;
+        private final QueryMetricType metricType;
+        
+        private Key(String queryId, QueryMetricType metricType) {
+            this.queryId = queryId;
+            this.metricType = metricType;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return queryId.equals(key.queryId) && metricType == key.metricType;
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(queryId, metricType);
+        }
+        
+        @Override
+        public String toString() {
+            return "{queryId = " + queryId + ", metricType = " + metricType + "}";
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package datawave.microservice.querymetric;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.springframework.boot.web.server.Ssl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Rest;
+import datawave.microservice.querymetric.config.QueryMetricSslContextFactory;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import reactor.core.Disposable;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.util.concurrent.Queues;
+
+/**
+ * Non-blocking transport for posting query metric updates to the query metric service with a {@link WebClient}.
+ * <p>
+ * Posts are queued, and then taken from the queue with bounded concurrency, so that no more than the configured number of requests are in flight at once. All
+ * of the requests share the event loop threads of the HTTP client, rather than each holding a thread for its round trip. Each post is subject to an overall
+ * timeout, which is scheduled on a Reactor scheduler, and which runs from the moment the post is queued, so that it covers the wait in the queue and for a
+ * pooled connection as well as the request itself. A post whose caller has timed out or cancelled is dropped from the queue rather than sent, and is
+ * cancelled if it is already in flight.
+ * <p>
+ * Spring WebFlux and Reactor Netty are optional dependencies, so every type from them is confined to this class, which is only loaded once the REACTIVE_REST
+ * transport is used.
+ */
+public class QueryMetricWebClientTransport {
+    
+    private final Rest rest;
+    
+    private final ConnectionProvider connectionProvider;
+    
+    private final WebClient webClient;
+    
+    private final Sinks.Many<Post> posts;
+    
+    private final Object emitLock = new Object();
+    
+    private final Disposable subscription;
+    
+    // posts which have been queued, but have not yet completed
+    private final AtomicInteger pending = new AtomicInteger();
+    
+    /**
+     * @param rest
+     *            the REST transport configuration, not null
+     * @param secure
+     *            whether to use TLS
+     * @param ssl
+     *            the application's TLS configuration, whose key store supplies the client certificate, or null to present none
+     */
+    public QueryMetricWebClientTransport(Rest rest, boolean secure, Ssl ssl) {
+        this.rest = rest;
+        this.connectionProvider = createConnectionProvider(rest);
+        this.webClient = WebClient.builder().clientConnector(createClientHttpConnector(rest, secure, ssl, connectionProvider)).build();
+        this.posts = Sinks.many().unicast().onBackpressureBuffer(Queues.<Post> get(rest.getMaxPendingRequests()).get());
+        this.subscription = posts.asFlux().flatMap(this::execute, rest.getMaxConcurrentRequests()).subscribe();
+    }
+    
+    /**
+     * Posts the body to the given URI once there is room for another request in flight.
+     *
+     * @param uri
+     *            the URI, not null
+     * @param headers
+     *            the request headers, not null
+     * @param body
+     *            the encoded request body, not null
+     * @return a mono which completes once the service has accepted the post, or errors if the post failed, timed out or could not be queued
+     */
+    public Mono<Void> post(URI uri, HttpHeaders headers, byte[] body) {
+        return Mono.defer(() -> {
+            Post post = new Post(uri, headers, body, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(rest.getRequestTimeoutMillis()));
+            Sinks.EmitResult result;
+            pending.incrementAndGet();
+            // the queue only supports a single producer at a time
+            synchronized (emitLock) {
+                result = posts.tryEmitNext(post);
+            }
+            if (result.isFailure()) {
+                pending.decrementAndGet();
+                return Mono.error(new IllegalStateException("Unable to queue REACTIVE_REST request: " + result));
+            }
+            // @formatter:off
+            return post.result.asMono()
+                    .timeout(Duration.ofMillis(rest.getRequestTimeoutMillis()), Schedulers.parallel())
+                    .doOnError(TimeoutException.class, e -> post.cancel())
+                    .doOnCancel(post::cancel);
+            // @formatter:on
+        });
+    }
+    
+    /**
+     * Opens a connection to the given URI with a HEAD request, so that later posts don't pay for connection setup.
+     *
+     * @param uri
+     *            the URI, not null
+     * @return a mono which completes once any response has been received, or errors if no connection could be made
+     */
+    public Mono<Void> prime(URI uri) {
+        // @formatter:off
+        return webClient.head()
+                .uri(uri)
+                .exchangeToMono(response -> response.releaseBody())
+                .timeout(Duration.ofMillis(rest.getRequestTimeoutMillis()), Schedulers.parallel())
+                // any response at all means that the connection was established
+                .onErrorResume(WebClientResponseException.class, e -> Mono.empty());
+        // @formatter:on
+    }
+    
+    private Mono<Void> execute(Post post) {
+        long remainingNanos = post.deadlineNanos - System.nanoTime();
+        if (post.cancelled || remainingNanos <= 0) {
+            // the caller has already given up on the post while it was queued
+            pending.decrementAndGet();
+            post.result.tryEmitError(new TimeoutException("REACTIVE_REST request timed out while queued"));
+            return Mono.empty();
+        }
+        // @formatter:off
+        return webClient.post()
+                .uri(post.uri)
+                .headers(headers -> headers.addAll(post.headers))
+                .bodyValue(post.body)
+                .retrieve()
+                .toBodilessEntity()
+                .timeout(Duration.ofNanos(remainingNanos), Schedulers.parallel())
+                .takeUntilOther(post.cancellation.asMono())
+                .doOnSuccess(response -> post.result.tryEmitEmpty())
+                .doOnError(e -> post.result.tryEmitError(e))
+                .doFinally(signal -> pending.decrementAndGet())
+                .then()
+                .onErrorResume(e -> Mono.empty());
+        // @formatter:on
+    }
+    
+    /**
+     * @param e
+     *            an error from a post, not null
+     * @return true if the error, or every error combined into it when several posts failed, is a client error response
+     */
+    public static boolean isClientError(Throwable e) {
+        for (Throwable error : Exceptions.unwrapMultiple(e)) {
+            if (!(error instanceof WebClientResponseException) || !((WebClientResponseException) error).getStatusCode().is4xxClientError()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return the number of posts which are queued or in flight
+     */
+    public int getPending() {
+        return pending.get();
+    }
+    
+    public void close() {
+        subscription.dispose();
+        connectionProvider.dispose();
+    }
+    
+    /**
+     * Creates a non-blocking connector backed by a pooled Reactor Netty HTTP client.
+     *
+     * @param rest
+     *            the REST transport configuration, not null
+     * @param secure
+     *            whether to use TLS
+     * @param ssl
+     *            the application's TLS configuration, whose key store supplies the client certificate, or null to present none
+     * @param connectionProvider
+     *            the connection pool, which must be disposed of once the connector is no longer needed, not null
+     * @return the connector
+     */
+    private static ReactorClientHttpConnector createClientHttpConnector(Rest rest, boolean secure, Ssl ssl, ConnectionProvider connectionProvider) {
+        // @formatter:off
+        HttpClient httpClient = HttpClient.create(connectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) rest.getConnectTimeoutMillis())
+                .responseTimeout(Duration.ofMillis(rest.getReadTimeoutMillis()));
+        // @formatter:on
+        if (secure) {
+            SslContext sslContext = createNettySslContext(ssl);
+            httpClient = httpClient.secure(spec -> spec.sslContext(sslContext));
+        }
+        return new ReactorClientHttpConnector(httpClient);
+    }
+    
+    private static SslContext createNettySslContext(Ssl ssl) {
+        SslContextBuilder builder = SslContextBuilder.forClient();
+        if (QueryMetricSslContextFactory.hasKeyStore(ssl)) {
+            builder.keyManager(QueryMetricSslContextFactory.createKeyManagerFactory(ssl));
+        }
+        TrustManagerFactory trustManagerFactory = ssl != null ? QueryMetricSslContextFactory.createTrustManagerFactory(ssl) : null;
+        if (trustManagerFactory != null) {
+            builder.trustManager(trustManagerFactory);
+        }
+        try {
+            return builder.build();
+        } catch (SSLException e) {
+            throw new IllegalStateException("Unable to create TLS context for the REACTIVE_REST transport", e);
+        }
+    }
+    
+    /**
+     * Creates the connection pool for a connector created by {@link #createClientHttpConnector(Rest, boolean, Ssl, ConnectionProvider)}.
+     *
+     * @param rest
+     *            the REST transport configuration, not null
+     * @return the connection pool
+     */
+    private static ConnectionProvider createConnectionProvider(Rest rest) {
+        // @formatter:off
+        return ConnectionProvider.builder("query-metric-client")
+                .maxConnections(rest.getMaxConnections())
+                .pendingAcquireMaxCount(rest.getMaxPendingRequests())
+                .pendingAcquireTimeout(Duration.ofMillis(rest.getConnectionRequestTimeoutMillis()))
+                .maxIdleTime(Duration.ofMillis(rest.getIdleConnectionTimeoutMillis()))
+                .maxLifeTime(Duration.ofMillis(rest.getConnectionTimeToLiveMillis()))
+                .build();
+        // @formatter:on
+    }
+    
+    private static class Post {
+        private final URI uri;
+        private final HttpHeaders headers;
+        private final byte[] body;
+        private final long deadlineNanos;
+        private final Sinks.One<Void> result = Sinks.one();
+        // signalled once the caller has timed out or cancelled, which cancels the request if it is in flight
+        private final Sinks.One<Boolean> cancellation = Sinks.one();
+        private volatile boolean cancelled = false;
+        
+        private Post(URI uri, HttpHeaders headers, byte[] body, long deadlineNanos) {
+            this.uri = uri;
+            this.headers = headers;
+            this.body = body;
+            this.deadlineNanos = deadlineNanos;
+        }
+        
+        private void cancel() {
+            cancelled = true;
+            cancellation.tryEmitValue(true);
+        }
+    }
+}
@@ -1,15 +1,29 @@
 package datawave.microservice.querymetric.config;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+import javax.validation.Valid;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.Positive;
 import javax.validation.constraints.PositiveOrZero;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.validation.annotation.Validated;
 
+import datawave.microservice.querymetric.QueryMetricType;
+import reactor.util.concurrent.Queues;
+
+@Validated
 @ConfigurationProperties(prefix = "datawave.query.metric.client")
 public class QueryMetricClientProperties {
     private boolean enabled;
+    // REACTIVE_REST requires spring-webflux and reactor-netty-http, which are optional dependencies
     private QueryMetricTransportType transport = QueryMetricTransportType.MESSAGE;
     private String scheme = "https";
     private String host = "localhost";
@@ -18,9 +32,54 @@ public class QueryMetricClientProperties {
     private String updateMetricsUrl = "/querymetric/v1/updateMetrics";
     private boolean confirmAckEnabled = true;
     private long confirmAckTimeoutMillis = 500L;
+    private long confirmAckTickMillis = 10L;
+    // the number of slots in the ring which holds pending confirm acks. More pending acks than this still works, but is slower.
+    private int confirmAckRingSize = 65536;
+    // the encoding of metric payloads, for both the REST and message transports. The receiver must be able to decode it. SMILE requires
+    // jackson-dataformat-smile, which is an optional dependency.
+    private QueryMetricCodecType codec = QueryMetricCodecType.JSON;
+    // the number of threads which run retries, flushes and spool drains, so that the timer thread never waits on the binder
+    private int sendThreads = 4;
     
+    @Valid
     Retry retry = new Retry();
     
+    @Valid
+    Coalesce coalesce = new Coalesce();
+    
+    @Valid
+    Batch batch = new Batch();
+    
+    @Valid
+    Spool spool = new Spool();
+    
+    @Valid
+    Source source = new Source();
+    
+    @Valid
+    CircuitBreaker circuitBreaker = new CircuitBreaker();
+    
+    @Valid
+    Rest rest = new Rest();
+    
+    @Valid
+    TokenCache tokenCache = new TokenCache();
+    
+    @Valid
+    FireAndForget fireAndForget = new FireAndForget();
+    
+    @Valid
+    Delta delta = new Delta();
+    
+    @Valid
+    Lifecycle lifecycle = new Lifecycle();
+    
+    @Valid
+    RateLimit rateLimit = new RateLimit();
+    
+    @Valid
+    AdaptiveConfirmAck adaptiveConfirmAck = new AdaptiveConfirmAck();
+    
     public void setEnabled(boolean enabled) {
         this.enabled = enabled;
     }
@@ -93,6 +152,38 @@ public class QueryMetricClientProperties {
         this.confirmAckTimeoutMillis = confirmAckTimeoutMillis;
     }
     
+    public long getConfirmAckTickMillis() {
+        return confirmAckTickMillis;
+    }
+    
+    public void setConfirmAckTickMillis(long confirmAckTickMillis) {
+        this.confirmAckTickMillis = confirmAckTickMillis;
+    }
+    
+    public int getConfirmAckRingSize() {
+        return confirmAckRingSize;
+    }
+    
+    public void setConfirmAckRingSize(int confirmAckRingSize) {
+        this.confirmAckRingSize = confirmAckRingSize;
+    }
+    
+    public QueryMetricCodecType getCodec() {
+        return codec;
+    }
+    
+    public void setCodec(QueryMetricCodecType codec) {
+        this.codec = codec;
+    }
+    
+    public int getSendThreads() {
+        return sendThreads;
+    }
+    
+    public void setSendThreads(int sendThreads) {
+        this.sendThreads = sendThreads;
+    }
+    
     public Retry getRetry() {
         return retry;
     }
@@ -101,6 +192,102 @@ public class QueryMetricClientProperties {
         this.retry = retry;
     }
     
+    public Coalesce getCoalesce() {
+        return coalesce;
+    }
+    
+    public void setCoalesce(Coalesce coalesce) {
+        this.coalesce = coalesce;
+    }
+    
+    public Batch getBatch() {
+        return batch;
+    }
+    
+    public void setBatch(Batch batch) {
+        this.batch = batch;
+    }
+    
+    public Spool getSpool() {
+        return spool;
+    }
+    
+    public void setSpool(Spool spool) {
+        this.spool = spool;
+    }
+    
+    public Source getSource() {
+        return source;
+    }
+    
+    public void setSource(Source source) {
+        this.source = source;
+    }
+    
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+    
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+    
+    public Rest getRest() {
+        return rest;
+    }
+    
+    public void setRest(Rest rest) {
+        this.rest = rest;
+    }
+    
+    public TokenCache getTokenCache() {
+        return tokenCache;
+    }
+    
+    public void setTokenCache(TokenCache tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+    
+    public FireAndForget getFireAndForget() {
+        return fireAndForget;
+    }
+    
+    public void setFireAndForget(FireAndForget fireAndForget) {
+        this.fireAndForget = fireAndForget;
+    }
+    
+    public Delta getDelta() {
+        return delta;
+    }
+    
+    public void setDelta(Delta delta) {
+        this.delta = delta;
+    }
+    
+    public Lifecycle getLifecycle() {
+        return lifecycle;
+    }
+    
+    public void setLifecycle(Lifecycle lifecycle) {
+        this.lifecycle = lifecycle;
+    }
+    
+    public RateLimit getRateLimit() {
+        return rateLimit;
+    }
+    
+    public void setRateLimit(RateLimit rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+    
+    public AdaptiveConfirmAck getAdaptiveConfirmAck() {
+        return adaptiveConfirmAck;
+    }
+    
+    public void setAdaptiveConfirmAck(AdaptiveConfirmAck adaptiveConfirmAck) {
+        this.adaptiveConfirmAck = adaptiveConfirmAck;
+    }
+    
     @Validated
     public static class Retry {
         @PositiveOrZero
@@ -112,6 +299,18 @@ public class QueryMetricClientProperties {
         @PositiveOrZero
         private long backoffIntervalMillis = TimeUnit.SECONDS.toMillis(5);
         
+        // a multiplier of 1 gives a fixed backoff interval
+        @DecimalMin("1.0")
+        private double backoffMultiplier = 1.0;
+        
+        @PositiveOrZero
+        private long maxBackoffIntervalMillis = TimeUnit.MINUTES.toMillis(1);
+        
+        // the fraction of each backoff interval which may be randomly removed, between 0 and 1
+        @DecimalMin("0.0")
+        @DecimalMax("1.0")
+        private double jitterFactor = 0.0;
+        
         public int getMaxAttempts() {
             return maxAttempts;
         }
@@ -135,5 +334,968 @@ public class QueryMetricClientProperties {
         public void setBackoffIntervalMillis(long backoffIntervalMillis) {
             this.backoffIntervalMillis = backoffIntervalMillis;
         }
+        
+        public double getBackoffMultiplier() {
+            return backoffMultiplier;
+        }
+        
+        public void setBackoffMultiplier(double backoffMultiplier) {
+            this.backoffMultiplier = backoffMultiplier;
+        }
+        
+        public long getMaxBackoffIntervalMillis() {
+            return maxBackoffIntervalMillis;
+        }
+        
+        public void setMaxBackoffIntervalMillis(long maxBackoffIntervalMillis) {
+            this.maxBackoffIntervalMillis = maxBackoffIntervalMillis;
+        }
+        
+        public double getJitterFactor() {
+            return jitterFactor;
+        }
+        
+        public void setJitterFactor(double jitterFactor) {
+            this.jitterFactor = jitterFactor;
+        }
+    }
+    
+    /**
+     * Configuration for merging pending message updates for the same query id and metric type before they are sent
+     */
+    @Validated
+    public static class Coalesce {
+        private boolean enabled = false;
+        
+        @PositiveOrZero
+        private long windowMillis = 100L;
+        
+        // Only COMPLETE updates are full snapshots by default. DISTRIBUTED updates are combined additively by the service.
+        private Set<QueryMetricType> metricTypes = EnumSet.of(QueryMetricType.COMPLETE);
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public long getWindowMillis() {
+            return windowMillis;
+        }
+        
+        public void setWindowMillis(long windowMillis) {
+            this.windowMillis = windowMillis;
+        }
+        
+        public Set<QueryMetricType> getMetricTypes() {
+            return metricTypes;
+        }
+        
+        public void setMetricTypes(Set<QueryMetricType> metricTypes) {
+            this.metricTypes = metricTypes;
+        }
+    }
+    
+    /**
+     * Configuration for sending message updates in batches, each packed into a single message with a single correlation id and confirm ack.
+     * <p>
+     * A packed batch is a different message format from a single update: its payload is an array of updates, and its content type is the codec's content
+     * type with a {@code query-metric-batch=1} parameter, e.g. {@code application/json;query-metric-batch=1}. Only enable batching against a query metric
+     * service which reads that format, since one which doesn't will fail to read every packed batch.
+     * <p>
+     * Packed batches are sent on a binding of their own, {@code queryMetricBatchSource-out-0}, which needs to be named in
+     * {@code spring.cloud.function.definition} alongside {@code queryMetricSource}, and bound to the same destination. Unless it is named there, batched
+     * updates are sent as individual update messages.
+     */
+    @Validated
+    public static class Batch {
+        // requires a query metric service which reads packed batches
+        private boolean enabled = false;
+        
+        @Positive
+        private int maxUpdates = 100;
+        
+        @PositiveOrZero
+        private long maxDelayMillis = 50L;
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public int getMaxUpdates() {
+            return maxUpdates;
+        }
+        
+        public void setMaxUpdates(int maxUpdates) {
+            this.maxUpdates = maxUpdates;
+        }
+        
+        public long getMaxDelayMillis() {
+            return maxDelayMillis;
+        }
+        
+        public void setMaxDelayMillis(long maxDelayMillis) {
+            this.maxDelayMillis = maxDelayMillis;
+        }
+    }
+    
+    /**
+     * Configuration for the local on-disk spool of message updates which could not be delivered
+     */
+    @Validated
+    public static class Spool {
+        private boolean enabled = false;
+        
+        // required when the spool is enabled. Each client instance needs a directory of its own, which it locks while it is running.
+        private String directory;
+        
+        @Positive
+        private int segmentSizeBytes = 16 * 1024 * 1024;
+        
+        @Positive
+        private int maxSegments = 64;
+        
+        // force appended records to disk before returning, so that they survive a crash of the host. Turning this off trades that for append throughput.
+        private boolean syncOnAppend = true;
+        
+        // the number of failed send/ack rounds after which undelivered updates are spooled rather than retried. If unset, updates are spooled once
+        // retry.max-attempts has been reached or retry.fail-timeout-millis has passed, so that the spool only takes updates which retrying couldn't deliver.
+        @Positive
+        private Integer spoolAfterAttempts;
+        
+        @Positive
+        private long drainIntervalMillis = TimeUnit.SECONDS.toMillis(5);
+        
+        @Positive
+        private int drainBatchSize = 100;
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public String getDirectory() {
+            return directory;
+        }
+        
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+        
+        public int getSegmentSizeBytes() {
+            return segmentSizeBytes;
+        }
+        
+        public void setSegmentSizeBytes(int segmentSizeBytes) {
+            this.segmentSizeBytes = segmentSizeBytes;
+        }
+        
+        public int getMaxSegments() {
+            return maxSegments;
+        }
+        
+        public void setMaxSegments(int maxSegments) {
+            this.maxSegments = maxSegments;
+        }
+        
+        public boolean isSyncOnAppend() {
+            return syncOnAppend;
+        }
+        
+        public void setSyncOnAppend(boolean syncOnAppend) {
+            this.syncOnAppend = syncOnAppend;
+        }
+        
+        public Integer getSpoolAfterAttempts() {
+            return spoolAfterAttempts;
+        }
+        
+        public void setSpoolAfterAttempts(Integer spoolAfterAttempts) {
+            this.spoolAfterAttempts = spoolAfterAttempts;
+        }
+        
+        public long getDrainIntervalMillis() {
+            return drainIntervalMillis;
+        }
+        
+        public void setDrainIntervalMillis(long drainIntervalMillis) {
+            this.drainIntervalMillis = drainIntervalMillis;
+        }
+        
+        public int getDrainBatchSize() {
+            return drainBatchSize;
+        }
+        
+        public void setDrainBatchSize(int drainBatchSize) {
+            this.drainBatchSize = drainBatchSize;
+        }
+    }
+    
+    /**
+     * Configuration for the message source which feeds query metric updates to the messaging infrastructure
+     */
+    @Validated
+    public static class Source {
+        private boolean enabled = true;
+        
+        @Positive
+        private int bufferSize = Queues.SMALL_BUFFER_SIZE;
+        
+        private QueryMetricEmissionStrategy emissionStrategy = QueryMetricEmissionStrategy.SERIALIZED;
+        
+        // how long to keep retrying when another thread is emitting concurrently, when using the BUSY_LOOP emission strategy
+        @PositiveOrZero
+        private long busyLoopMillis = 100L;
+        
+        private QueryMetricOverflowPolicy overflowPolicy = QueryMetricOverflowPolicy.FAIL;
+        
+        // how long a synchronous submit waits for buffer space, when using the BLOCK overflow policy. Asynchronous submissions and retries never wait, and
+        // treat a full buffer as a failed attempt.
+        @PositiveOrZero
+        private long blockTimeoutMillis = 1000L;
+        
+        // how long to wait on shutdown for buffered messages to be taken by the messaging infrastructure
+        @PositiveOrZero
+        private long drainTimeoutMillis = 5000L;
+        
+        // whether messages of the priority metric types get a lane and buffer of their own, which is drained ahead of the regular lane, so that they can't be
+        // starved by other updates
+        private boolean priorityLaneEnabled = false;
+        
+        private Set<QueryMetricType> priorityMetricTypes = EnumSet.of(QueryMetricType.COMPLETE);
+        
+        @Positive
+        private int priorityBufferSize = Queues.SMALL_BUFFER_SIZE;
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public int getBufferSize() {
+            return bufferSize;
+        }
+        
+        public void setBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+        
+        public QueryMetricEmissionStrategy getEmissionStrategy() {
+            return emissionStrategy;
+        }
+        
+        public void setEmissionStrategy(QueryMetricEmissionStrategy emissionStrategy) {
+            this.emissionStrategy = emissionStrategy;
+        }
+        
+        public long getBusyLoopMillis() {
+            return busyLoopMillis;
+        }
+        
+        public void setBusyLoopMillis(long busyLoopMillis) {
+            this.busyLoopMillis = busyLoopMillis;
+        }
+        
+        public QueryMetricOverflowPolicy getOverflowPolicy() {
+            return overflowPolicy;
+        }
+        
+        public void setOverflowPolicy(QueryMetricOverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+        }
+        
+        public long getBlockTimeoutMillis() {
+            return blockTimeoutMillis;
+        }
+        
+        public void setBlockTimeoutMillis(long blockTimeoutMillis) {
+            this.blockTimeoutMillis = blockTimeoutMillis;
+        }
+        
+        public long getDrainTimeoutMillis() {
+            return drainTimeoutMillis;
+        }
+        
+        public void setDrainTimeoutMillis(long drainTimeoutMillis) {
+            this.drainTimeoutMillis = drainTimeoutMillis;
+        }
+        
+        public boolean isPriorityLaneEnabled() {
+            return priorityLaneEnabled;
+        }
+        
+        public void setPriorityLaneEnabled(boolean priorityLaneEnabled) {
+            this.priorityLaneEnabled = priorityLaneEnabled;
+        }
+        
+        public Set<QueryMetricType> getPriorityMetricTypes() {
+            return priorityMetricTypes;
+        }
+        
+        public void setPriorityMetricTypes(Set<QueryMetricType> priorityMetricTypes) {
+            this.priorityMetricTypes = priorityMetricTypes;
+        }
+        
+        public int getPriorityBufferSize() {
+            return priorityBufferSize;
+        }
+        
+        public void setPriorityBufferSize(int priorityBufferSize) {
+            this.priorityBufferSize = priorityBufferSize;
+        }
+    }
+    
+    /**
+     * Configuration for the circuit breakers which are shared by all submissions made via each transport
+     */
+    @Validated
+    public static class CircuitBreaker {
+        private boolean enabled = false;
+        
+        // the number of consecutive failures after which the breaker opens. A bulk message update counts once, however many updates it holds, or once per
+        // round when batched.
+        @Positive
+        private int failureThreshold = 5;
+        
+        @PositiveOrZero
+        private long openDurationMillis = TimeUnit.SECONDS.toMillis(30);
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public int getFailureThreshold() {
+            return failureThreshold;
+        }
+        
+        public void setFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+        }
+        
+        public long getOpenDurationMillis() {
+            return openDurationMillis;
+        }
+        
+        public void setOpenDurationMillis(long openDurationMillis) {
+            this.openDurationMillis = openDurationMillis;
+        }
+    }
+    
+    /**
+     * Configuration for the REST transport
+     */
+    @Validated
+    public static class Rest {
+        // host:port of each query metric service instance, with IPv6 literals in brackets, e.g. [::1]:8443. The port may be left out, in which case the top
+        // level port is used. If empty, the top level host and port are used.
+        private List<String> endpoints = new ArrayList<>();
+        
+        private QueryMetricLoadBalancingPolicy loadBalancingPolicy = QueryMetricLoadBalancingPolicy.CONSISTENT_HASH;
+        
+        // the number of consecutive failures after which an endpoint is ejected
+        @Positive
+        private int ejectAfterFailures = 3;
+        
+        @PositiveOrZero
+        private long ejectionMillis = TimeUnit.SECONDS.toMillis(30);
+        
+        // use a dedicated pooled, keep-alive HTTP client rather than the one provided by the RestTemplateBuilder. Its client certificate comes from the
+        // server.ssl key store. Requires httpclient, which is an optional dependency.
+        private boolean pooled = false;
+        
+        // serialize request bodies straight into the request stream rather than into an intermediate string. Streamed requests only have their headers
+        // created via QueryMetricClient.createHeaders, so this is off by default for the sake of clients which override createRequestEntity.
+        private boolean streaming = false;
+        
+        // gzip request bodies when streaming. The query metric service must accept gzip encoded requests.
+        private boolean gzipEnabled = false;
+        
+        @Positive
+        private int maxConnections = 50;
+        
+        @Positive
+        private int maxConnectionsPerRoute = 20;
+        
+        @PositiveOrZero
+        private long connectTimeoutMillis = TimeUnit.SECONDS.toMillis(5);
+        
+        @PositiveOrZero
+        private long connectionRequestTimeoutMillis = TimeUnit.SECONDS.toMillis(5);
+        
+        @PositiveOrZero
+        private long readTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+        
+        @PositiveOrZero
+        private long idleConnectionTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+        
+        @Positive
+        private long connectionTimeToLiveMillis = TimeUnit.MINUTES.toMillis(5);
+        
+        @PositiveOrZero
+        private long validateAfterInactivityMillis = TimeUnit.SECONDS.toMillis(2);
+        
+        // the number of threads posting asynchronous REST submissions. Beyond this, submissions are posted on the calling thread.
+        @Positive
+        private int maxAsyncThreads = 64;
+        
+        // the number of requests the REACTIVE_REST transport may have in flight at once
+        @Positive
+        private int maxConcurrentRequests = 256;
+        
+        // the number of requests the REACTIVE_REST transport may hold while waiting to be sent, beyond which submissions fail
+        @Positive
+        private int maxPendingRequests = 10000;
+        
+        // the overall time limit for a REACTIVE_REST request, including the wait for a connection
+        @Positive
+        private long requestTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+        
+        public List<String> getEndpoints() {
+            return endpoints;
+        }
+        
+        public void setEndpoints(List<String> endpoints) {
+            this.endpoints = endpoints;
+        }
+        
+        public QueryMetricLoadBalancingPolicy getLoadBalancingPolicy() {
+            return loadBalancingPolicy;
+        }
+        
+        public void setLoadBalancingPolicy(QueryMetricLoadBalancingPolicy loadBalancingPolicy) {
+            this.loadBalancingPolicy = loadBalancingPolicy;
+        }
+        
+        public int getEjectAfterFailures() {
+            return ejectAfterFailures;
+        }
+        
+        public void setEjectAfterFailures(int ejectAfterFailures) {
+            this.ejectAfterFailures = ejectAfterFailures;
+        }
+        
+        public long getEjectionMillis() {
+            return ejectionMillis;
+        }
+        
+        public void setEjectionMillis(long ejectionMillis) {
+            this.ejectionMillis = ejectionMillis;
+        }
+        
+        public boolean isPooled() {
+            return pooled;
+        }
+        
+        public void setPooled(boolean pooled) {
+            this.pooled = pooled;
+        }
+        
+        public boolean isStreaming() {
+            return streaming;
+        }
+        
+        public void setStreaming(boolean streaming) {
+            this.streaming = streaming;
+        }
+        
+        public boolean isGzipEnabled() {
+            return gzipEnabled;
+        }
+        
+        public void setGzipEnabled(boolean gzipEnabled) {
+            this.gzipEnabled = gzipEnabled;
+        }
+        
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+        
+        public void setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+        
+        public int getMaxConnectionsPerRoute() {
+            return maxConnectionsPerRoute;
+        }
+        
+        public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        }
+        
+        public long getConnectTimeoutMillis() {
+            return connectTimeoutMillis;
+        }
+        
+        public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+            this.connectTimeoutMillis = connectTimeoutMillis;
+        }
+        
+        public long getConnectionRequestTimeoutMillis() {
+            return connectionRequestTimeoutMillis;
+        }
+        
+        public void setConnectionRequestTimeoutMillis(long connectionRequestTimeoutMillis) {
+            this.connectionRequestTimeoutMillis = connectionRequestTimeoutMillis;
+        }
+        
+        public long getReadTimeoutMillis() {
+            return readTimeoutMillis;
+        }
+        
+        public void setReadTimeoutMillis(long readTimeoutMillis) {
+            this.readTimeoutMillis = readTimeoutMillis;
+        }
+        
+        public long getIdleConnectionTimeoutMillis() {
+            return idleConnectionTimeoutMillis;
+        }
+        
+        public void setIdleConnectionTimeoutMillis(long idleConnectionTimeoutMillis) {
+            this.idleConnectionTimeoutMillis = idleConnectionTimeoutMillis;
+        }
+        
+        public long getConnectionTimeToLiveMillis() {
+            return connectionTimeToLiveMillis;
+        }
+        
+        public void setConnectionTimeToLiveMillis(long connectionTimeToLiveMillis) {
+            this.connectionTimeToLiveMillis = connectionTimeToLiveMillis;
+        }
+        
+        public long getValidateAfterInactivityMillis() {
+            return validateAfterInactivityMillis;
+        }
+        
+        public void setValidateAfterInactivityMillis(long validateAfterInactivityMillis) {
+            this.validateAfterInactivityMillis = validateAfterInactivityMillis;
+        }
+        
+        public int getMaxAsyncThreads() {
+            return maxAsyncThreads;
+        }
+        
+        public void setMaxAsyncThreads(int maxAsyncThreads) {
+            this.maxAsyncThreads = maxAsyncThreads;
+        }
+        
+        public int getMaxConcurrentRequests() {
+            return maxConcurrentRequests;
+        }
+        
+        public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+            this.maxConcurrentRequests = maxConcurrentRequests;
+        }
+        
+        public int getMaxPendingRequests() {
+            return maxPendingRequests;
+        }
+        
+        public void setMaxPendingRequests(int maxPendingRequests) {
+            this.maxPendingRequests = maxPendingRequests;
+        }
+        
+        public long getRequestTimeoutMillis() {
+            return requestTimeoutMillis;
+        }
+        
+        public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+            this.requestTimeoutMillis = requestTimeoutMillis;
+        }
+    }
+    
+    /**
+     * Configuration for the cache of signed JWTs used by the REST transport. A cached token is keyed by the username and by the DN, authorizations and roles
+     * of every user in the proxied chain, so a change to any of them is signed afresh, but a user whose access is revoked outside of those keeps it for up
+     * to the time to live.
+     */
+    @Validated
+    public static class TokenCache {
+        private boolean enabled = false;
+        
+        // the longest a signed token is reused, whatever its expiration
+        @Positive
+        private long ttlMillis = TimeUnit.MINUTES.toMillis(5);
+        
+        // how long before the expiration in its exp claim a signed token stops being reused
+        @PositiveOrZero
+        private long expirationMarginMillis = TimeUnit.MINUTES.toMillis(1);
+        
+        @Positive
+        private long maxSize = 1000;
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public long getTtlMillis() {
+            return ttlMillis;
+        }
+        
+        public void setTtlMillis(long ttlMillis) {
+            this.ttlMillis = ttlMillis;
+        }
+        
+        public long getExpirationMarginMillis() {
+            return expirationMarginMillis;
+        }
+        
+        public void setExpirationMarginMillis(long expirationMarginMillis) {
+            this.expirationMarginMillis = expirationMarginMillis;
+        }
+        
+        public long getMaxSize() {
+            return maxSize;
+        }
+        
+        public void setMaxSize(long maxSize) {
+            this.maxSize = maxSize;
+        }
+    }
+    
+    /**
+     * Configuration for background delivery of message updates
+     */
+    @Validated
+    public static class FireAndForget {
+        private boolean enabled = false;
+        
+        // only updates of these types are delivered in the background. Callers still wait on the rest.
+        private Set<QueryMetricType> metricTypes = EnumSet.of(QueryMetricType.DISTRIBUTED);
+        
+        // once the queue is full, updates are delivered on the calling thread
+        @Positive
+        private int queueCapacity = 10000;
+        
+        @Positive
+        private int workerThreads = 2;
+        
+        // use virtual threads for the workers when the runtime supports them
+        private boolean virtualThreads = true;
+        
+        // the maximum number of updates which have been handed off for delivery, but not yet acknowledged
+        @Positive
+        private int maxInFlight = 1000;
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public Set<QueryMetricType> getMetricTypes() {
+            return metricTypes;
+        }
+        
+        public void setMetricTypes(Set<QueryMetricType> metricTypes) {
+            this.metricTypes = metricTypes;
+        }
+        
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+        
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+        
+        public int getWorkerThreads() {
+            return workerThreads;
+        }
+        
+        public void setWorkerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+        }
+        
+        public boolean isVirtualThreads() {
+            return virtualThreads;
+        }
+        
+        public void setVirtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+        }
+        
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+        
+        public void setMaxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+        }
+    }
+    
+    /**
+     * Configuration for delta encoding of query metric updates
+     */
+    @Validated
+    public static class Delta {
+        private boolean enabled = false;
+        
+        // only types which the query metric service adds to what it already has may be delta encoded
+        private Set<QueryMetricType> metricTypes = EnumSet.of(QueryMetricType.DISTRIBUTED);
+        
+        // every nth update for a query is sent in full
+        @Positive
+        private int fullSnapshotInterval = 10;
+        
+        @Positive
+        private long maxQueries = 10000;
+        
+        // how long to remember what was sent for a query which has stopped sending updates
+        @Positive
+        private long expiryMillis = TimeUnit.HOURS.toMillis(1);
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public Set<QueryMetricType> getMetricTypes() {
+            return metricTypes;
+        }
+        
+        public void setMetricTypes(Set<QueryMetricType> metricTypes) {
+            this.metricTypes = metricTypes;
+        }
+        
+        public int getFullSnapshotInterval() {
+            return fullSnapshotInterval;
+        }
+        
+        public void setFullSnapshotInterval(int fullSnapshotInterval) {
+            this.fullSnapshotInterval = fullSnapshotInterval;
+        }
+        
+        public long getMaxQueries() {
+            return maxQueries;
+        }
+        
+        public void setMaxQueries(long maxQueries) {
+            this.maxQueries = maxQueries;
+        }
+        
+        public long getExpiryMillis() {
+            return expiryMillis;
+        }
+        
+        public void setExpiryMillis(long expiryMillis) {
+            this.expiryMillis = expiryMillis;
+        }
+    }
+    
+    /**
+     * Configuration for the startup and shutdown of the client
+     */
+    @Validated
+    public static class Lifecycle {
+        // how long to wait on shutdown for pending updates to be delivered and acknowledged
+        @PositiveOrZero
+        private long drainTimeoutMillis = 10000L;
+        
+        // whether to prime the serializers and REST connections on startup, before the application reports that it is ready
+        private boolean warmUpEnabled = false;
+        
+        @Positive
+        private long warmUpTimeoutMillis = 5000L;
+        
+        public long getDrainTimeoutMillis() {
+            return drainTimeoutMillis;
+        }
+        
+        public void setDrainTimeoutMillis(long drainTimeoutMillis) {
+            this.drainTimeoutMillis = drainTimeoutMillis;
+        }
+        
+        public boolean isWarmUpEnabled() {
+            return warmUpEnabled;
+        }
+        
+        public void setWarmUpEnabled(boolean warmUpEnabled) {
+            this.warmUpEnabled = warmUpEnabled;
+        }
+        
+        public long getWarmUpTimeoutMillis() {
+            return warmUpTimeoutMillis;
+        }
+        
+        public void setWarmUpTimeoutMillis(long warmUpTimeoutMillis) {
+            this.warmUpTimeoutMillis = warmUpTimeoutMillis;
+        }
+    }
+    
+    /**
+     * Configuration for per-user rate limiting of submissions. Submissions are keyed on their user, or else their trusted user, and those with neither are
+     * never rate limited.
+     */
+    @Validated
+    public static class RateLimit {
+        private boolean enabled = false;
+        
+        // the sustained number of metrics per second each user may submit
+        @Positive
+        private double permitsPerSecond = 100.0;
+        
+        // the number of metrics each user may submit in a burst
+        @Positive
+        private int burst = 1000;
+        
+        // types which are never rejected, although they still count against the user's rate
+        private Set<QueryMetricType> exemptMetricTypes = EnumSet.of(QueryMetricType.COMPLETE);
+        
+        @Positive
+        private long maxUsers = 10000;
+        
+        // how long to remember the rate of a user who has stopped submitting
+        @Positive
+        private long expiryMillis = TimeUnit.MINUTES.toMillis(10);
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public double getPermitsPerSecond() {
+            return permitsPerSecond;
+        }
+        
+        public void setPermitsPerSecond(double permitsPerSecond) {
+            this.permitsPerSecond = permitsPerSecond;
+        }
+        
+        public int getBurst() {
+            return burst;
+        }
+        
+        public void setBurst(int burst) {
+            this.burst = burst;
+        }
+        
+        public Set<QueryMetricType> getExemptMetricTypes() {
+            return exemptMetricTypes;
+        }
+        
+        public void setExemptMetricTypes(Set<QueryMetricType> exemptMetricTypes) {
+            this.exemptMetricTypes = exemptMetricTypes;
+        }
+        
+        public long getMaxUsers() {
+            return maxUsers;
+        }
+        
+        public void setMaxUsers(long maxUsers) {
+            this.maxUsers = maxUsers;
+        }
+        
+        public long getExpiryMillis() {
+            return expiryMillis;
+        }
+        
+        public void setExpiryMillis(long expiryMillis) {
+            this.expiryMillis = expiryMillis;
+        }
+    }
+    
+    /**
+     * Configuration for deriving the confirm ack timeout from the observed round trip time of confirm acks, so that the timeout follows the broker's latency
+     * rather than being fixed
+     */
+    @Validated
+    public static class AdaptiveConfirmAck {
+        // derive the confirm ack timeout from observed ack latency, rather than using the fixed confirmAckTimeoutMillis
+        private boolean enabled = false;
+        
+        // the ack latency percentile to track, between 0 and 1
+        @DecimalMin("0.5")
+        @DecimalMax("0.999")
+        private double percentile = 0.99;
+        
+        // the timeout is the tracked percentile multiplied by this
+        @DecimalMin("1.0")
+        private double multiplier = 2.0;
+        
+        @Positive
+        private long minTimeoutMillis = 50L;
+        
+        @Positive
+        private long maxTimeoutMillis = TimeUnit.SECONDS.toMillis(5);
+        
+        // the number of acks over which each percentile estimate is made
+        @Min(5)
+        private int windowSize = 500;
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+        
+        public double getPercentile() {
+            return percentile;
+        }
+        
+        public void setPercentile(double percentile) {
+            this.percentile = percentile;
+        }
+        
+        public double getMultiplier() {
+            return multiplier;
+        }
+        
+        public void setMultiplier(double multiplier) {
+            this.multiplier = multiplier;
+        }
+        
+        public long getMinTimeoutMillis() {
+            return minTimeoutMillis;
+        }
+        
+        public void setMinTimeoutMillis(long minTimeoutMillis) {
+            this.minTimeoutMillis = minTimeoutMillis;
+        }
+        
+        public long getMaxTimeoutMillis() {
+            return maxTimeoutMillis;
+        }
+        
+        public void setMaxTimeoutMillis(long maxTimeoutMillis) {
+            this.maxTimeoutMillis = maxTimeoutMillis;
+        }
+        
+        public int getWindowSize() {
+            return windowSize;
+        }
+        
+        public void setWindowSize(int windowSize) {
+            this.windowSize = windowSize;
+        }
     }
 }
@@ -0,0 +1,5 @@
+package datawave.microservice.querymetric.config;
+
+public enum QueryMetricCodecType {
+    JSON, SMILE
+}
@@ -0,0 +1,5 @@
+package datawave.microservice.querymetric.config;
+
+public enum QueryMetricEmissionStrategy {
+    SERIALIZED, BUSY_LOOP
+}
@@ -0,0 +1,79 @@
+package datawave.microservice.querymetric.config;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Rest;
+
+/**
+ * Creates the pooled, keep-alive HTTP client used by the REST transport. Only loaded when pooling is enabled, since Apache HttpClient is an optional
+ * dependency.
+ */
+public class QueryMetricHttpClientFactory {
+    
+    private QueryMetricHttpClientFactory() {}
+    
+    /**
+     * Creates a request factory backed by a pooled HTTP client.
+     *
+     * @param rest
+     *            the REST transport configuration, not null
+     * @param sslContext
+     *            the TLS context, e.g. from {@link QueryMetricSslContextFactory}, or null to take TLS settings from the standard {@code javax.net.ssl} system
+     *            properties
+     * @return the request factory
+     */
+    public static HttpComponentsClientHttpRequestFactory createRequestFactory(Rest rest, SSLContext sslContext) {
+        // the connection manager owns the socket factories, so the TLS context must be given to it rather than to the client builder
+        SSLConnectionSocketFactory sslSocketFactory = sslContext != null ? new SSLConnectionSocketFactory(sslContext)
+                        : SSLConnectionSocketFactory.getSystemSocketFactory();
+        // @formatter:off
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory> create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", sslSocketFactory)
+                        .build(),
+                null, null, null, rest.getConnectionTimeToLiveMillis(), TimeUnit.MILLISECONDS);
+        // @formatter:on
+        connectionManager.setMaxTotal(rest.getMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(rest.getMaxConnectionsPerRoute());
+        connectionManager.setValidateAfterInactivity((int) rest.getValidateAfterInactivityMillis());
+        
+        // @formatter:off
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout((int) rest.getConnectTimeoutMillis())
+                .setConnectionRequestTimeout((int) rest.getConnectionRequestTimeoutMillis())
+                .setSocketTimeout((int) rest.getReadTimeoutMillis())
+                .build();
+        
+        // connection state is disabled since otherwise a connection which presented the client certificate is tagged with its principal, and can't be
+        // leased again by requests which don't carry that principal, which defeats keep-alive. The client only ever has the one identity.
+        CloseableHttpClient httpClient = HttpClientBuilder.create()
+                .useSystemProperties()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .evictIdleConnections(rest.getIdleConnectionTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .evictExpiredConnections()
+                .disableConnectionState()
+                .build();
+        // @formatter:on
+        
+        HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+        // stream request bodies rather than buffering them in memory
+        requestFactory.setBufferRequestBody(false);
+        return requestFactory;
+    }
+}
@@ -0,0 +1,5 @@
+package datawave.microservice.querymetric.config;
+
+public enum QueryMetricLoadBalancingPolicy {
+    LEAST_OUTSTANDING, CONSISTENT_HASH
+}
@@ -0,0 +1,24 @@
+package datawave.microservice.querymetric.config;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import datawave.microservice.querymetric.MicrometerQueryMetricClientMeters;
+import datawave.microservice.querymetric.QueryMetricClientMeters;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Publishes the query metric client meters to the application's Micrometer registry. Micrometer is an optional dependency, so this only applies when it is
+ * on the classpath, and the client records nothing otherwise.
+ */
+@Configuration
+@ConditionalOnClass(name = "io.micrometer.core.instrument.MeterRegistry")
+public class QueryMetricMetersConfiguration {
+    @Bean
+    public QueryMetricClientMeters queryMetricClientMeters(ObjectProvider<MeterRegistry> meterRegistry) {
+        MeterRegistry registry = meterRegistry.getIfAvailable();
+        return registry != null ? new MicrometerQueryMetricClientMeters(registry) : QueryMetricClientMeters.NOOP;
+    }
+}
@@ -0,0 +1,5 @@
+package datawave.microservice.querymetric.config;
+
+public enum QueryMetricOverflowPolicy {
+    FAIL, BLOCK, DROP_OLDEST, SPILL
+}
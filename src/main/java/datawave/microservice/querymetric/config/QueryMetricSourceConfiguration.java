@@ -1,16 +1,38 @@
 package datawave.microservice.querymetric.config;
 
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.converter.MessageConverter;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import datawave.microservice.querymetric.JacksonQueryMetricCodec;
+import datawave.microservice.querymetric.QueryMetricCodecMessageConverter;
+import datawave.microservice.querymetric.function.QueryMetricBatchSupplier;
 import datawave.microservice.querymetric.function.QueryMetricSupplier;
 
 @Configuration
 @ConditionalOnProperty(name = "datawave.query.metric.client.source.enabled", havingValue = "true", matchIfMissing = true)
 public class QueryMetricSourceConfiguration {
+    
+    @Bean
+    public QueryMetricSupplier queryMetricSource(QueryMetricClientProperties queryMetricClientProperties) {
+        return new QueryMetricSupplier(queryMetricClientProperties.getSource());
+    }
+    
+    // only created when it will be bound, since the client otherwise sends batched updates as individual update messages, rather than buffering them here
+    @Bean
+    @ConditionalOnExpression("${datawave.query.metric.client.batch.enabled:false}"
+                    + " and '${spring.cloud.function.definition:}'.contains('queryMetricBatchSource')")
+    public QueryMetricBatchSupplier queryMetricBatchSource(QueryMetricClientProperties queryMetricClientProperties) {
+        return new QueryMetricBatchSupplier(queryMetricClientProperties.getSource());
+    }
+    
     @Bean
-    public QueryMetricSupplier queryMetricSource() {
-        return new QueryMetricSupplier();
+    @ConditionalOnProperty(name = "datawave.query.metric.client.codec", havingValue = "SMILE")
+    public MessageConverter queryMetricCodecMessageConverter(QueryMetricClientProperties queryMetricClientProperties, ObjectMapper objectMapper) {
+        return new QueryMetricCodecMessageConverter(JacksonQueryMetricCodec.create(queryMetricClientProperties.getCodec(), objectMapper));
     }
 }
@@ -0,0 +1,94 @@
+package datawave.microservice.querymetric.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.springframework.boot.web.server.Ssl;
+import org.springframework.util.ResourceUtils;
+
+/**
+ * Creates the key and trust material for the pooled HTTP clients from the application's own key store and trust store, i.e. the {@code server.ssl}
+ * properties. The key store then supplies the client certificate which the query metric service uses to authenticate trusted users.
+ */
+public class QueryMetricSslContextFactory {
+    
+    private QueryMetricSslContextFactory() {}
+    
+    /**
+     * @param ssl
+     *            the application's TLS configuration, or null
+     * @return a TLS context which presents the application's client certificate and trusts its trust store, or null if no key store is configured
+     */
+    public static SSLContext createSslContext(Ssl ssl) {
+        if (!hasKeyStore(ssl)) {
+            return null;
+        }
+        try {
+            TrustManagerFactory trustManagerFactory = createTrustManagerFactory(ssl);
+            SSLContext sslContext = SSLContext.getInstance(ssl.getProtocol() != null ? ssl.getProtocol() : "TLS");
+            sslContext.init(createKeyManagerFactory(ssl).getKeyManagers(), trustManagerFactory != null ? trustManagerFactory.getTrustManagers() : null, null);
+            return sslContext;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to create TLS context for the query metric client", e);
+        }
+    }
+    
+    /**
+     * @param ssl
+     *            the application's TLS configuration, or null
+     * @return true if a key store is configured
+     */
+    public static boolean hasKeyStore(Ssl ssl) {
+        return ssl != null && ssl.isEnabled() && ssl.getKeyStore() != null;
+    }
+    
+    /**
+     * @param ssl
+     *            the application's TLS configuration, with a key store, not null
+     * @return a key manager factory initialized from the key store
+     */
+    public static KeyManagerFactory createKeyManagerFactory(Ssl ssl) {
+        try {
+            KeyStore keyStore = loadKeyStore(ssl.getKeyStore(), ssl.getKeyStoreType(), ssl.getKeyStorePassword());
+            String keyPassword = ssl.getKeyPassword() != null ? ssl.getKeyPassword() : ssl.getKeyStorePassword();
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, keyPassword != null ? keyPassword.toCharArray() : null);
+            return keyManagerFactory;
+        } catch (GeneralSecurityException | IOException e) {
+            throw new IllegalStateException("Unable to load key store " + ssl.getKeyStore() + " for the query metric client", e);
+        }
+    }
+    
+    /**
+     * @param ssl
+     *            the application's TLS configuration, not null
+     * @return a trust manager factory initialized from the trust store, or null if no trust store is configured, in which case the JVM's default trust applies
+     */
+    public static TrustManagerFactory createTrustManagerFactory(Ssl ssl) {
+        if (ssl.getTrustStore() == null) {
+            return null;
+        }
+        try {
+            KeyStore trustStore = loadKeyStore(ssl.getTrustStore(), ssl.getTrustStoreType(), ssl.getTrustStorePassword());
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(trustStore);
+            return trustManagerFactory;
+        } catch (GeneralSecurityException | IOException e) {
+            throw new IllegalStateException("Unable to load trust store " + ssl.getTrustStore() + " for the query metric client", e);
+        }
+    }
+    
+    private static KeyStore loadKeyStore(String location, String type, String password) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(type != null ? type : KeyStore.getDefaultType());
+        try (InputStream in = ResourceUtils.getURL(location).openStream()) {
+            keyStore.load(in, password != null ? password.toCharArray() : null);
+        }
+        return keyStore;
+    }
+}
@@ -1,5 +1,5 @@
 package datawave.microservice.querymetric.config;
 
 public enum QueryMetricTransportType {
-    REST, MESSAGE
+    REST, MESSAGE, REACTIVE_REST
 }
@@ -0,0 +1,20 @@
+package datawave.microservice.querymetric.function;
+
+import java.util.List;
+
+import datawave.microservice.querymetric.QueryMetricUpdate;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Source;
+
+/**
+ * Source of packed batches of query metric updates for the messaging infrastructure, each of which carries a list of updates with a single correlation id.
+ * <p>
+ * Batches have an output binding of their own, {@code queryMetricBatchSource-out-0}, so that the update binding of the {@link QueryMetricSupplier} keeps
+ * its payload type. The supplier is only created when batching is enabled and it is named in {@code spring.cloud.function.definition}, alongside the
+ * update supplier, and the batch binding's destination then needs to be set to that of the update binding.
+ */
+public class QueryMetricBatchSupplier extends QueryMetricMessageSupplier<List<QueryMetricUpdate>> {
+    
+    public QueryMetricBatchSupplier(Source source) {
+        super(source);
+    }
+}
@@ -0,0 +1,366 @@
+package datawave.microservice.querymetric.function;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.messaging.Message;
+
+import datawave.microservice.querymetric.QueryMetricUpdate;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Source;
+import datawave.microservice.querymetric.config.QueryMetricEmissionStrategy;
+import datawave.microservice.querymetric.config.QueryMetricOverflowPolicy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Source of query metric messages for the messaging infrastructure, which is bound to an output binding of its own.
+ * <p>
+ * Emission is either serialized across producer threads, or retried in a busy loop when another thread is emitting concurrently, so that contention between
+ * producers is never reported as a send failure. What happens when the buffer is full is governed by the configured {@link QueryMetricOverflowPolicy}.
+ * A message which was emitted, but is later evicted by the DROP_OLDEST policy, is passed to the eviction listener, so that its sender can resend or spool
+ * it. On shutdown, the supplier waits for the buffered messages of both lanes to be taken by the messaging infrastructure before stopping.
+ * <p>
+ * When the priority lane is enabled, messages of the priority metric types, and packed batches containing any, are emitted into a lane with a buffer of its
+ * own. Whenever the messaging infrastructure asks for more messages, they are taken from the priority lane for as long as it has any, and only then from
+ * the regular lane. A flood of intermediate updates can then neither overflow the buffer for final updates, nor keep them waiting behind it.
+ *
+ * @param <T>
+ *            the payload type of the messages, which is the type that the messaging infrastructure sees for the binding
+ */
+public abstract class QueryMetricMessageSupplier<T> implements Supplier<Flux<Message<T>>>, SmartLifecycle {
+    
+    // stop after the client which feeds us, but before the output bindings which take our messages
+    public static final int PHASE = SmartLifecycle.DEFAULT_PHASE - 4096;
+    
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    
+    private static final long DRAIN_POLL_MILLIS = 10L;
+    
+    /**
+     * The outcome of an attempt to emit a message
+     */
+    public enum EmitOutcome {
+        EMITTED, OVERFLOW, CONTENDED, NO_SUBSCRIBER, TERMINATED, DROPPED
+    }
+    
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+    
+    private final Source source;
+    
+    private final Lane lane;
+    
+    private final Lane priorityLane;
+    
+    // the subscriber, and a count of the drains requested while one is running, when the lanes keep buffers of their own
+    private volatile FluxSink<Message<T>> subscriber;
+    
+    private final AtomicInteger drainRequests = new AtomicInteger();
+    
+    private final Map<EmitOutcome,LongAdder> outcomeCounts = new EnumMap<>(EmitOutcome.class);
+    
+    private final LongAdder delivered = new LongAdder();
+    
+    private volatile Consumer<Message<?>> evictionListener;
+    
+    private volatile boolean running = false;
+    
+    protected QueryMetricMessageSupplier(Source source) {
+        this.source = source;
+        for (EmitOutcome outcome : EmitOutcome.values()) {
+            outcomeCounts.put(outcome, new LongAdder());
+        }
+        boolean buffered = source.isPriorityLaneEnabled() || source.getOverflowPolicy() == QueryMetricOverflowPolicy.DROP_OLDEST;
+        this.lane = new Lane(source.getBufferSize(), buffered);
+        this.priorityLane = source.isPriorityLaneEnabled() ? new Lane(source.getPriorityBufferSize(), buffered) : null;
+    }
+    
+    /**
+     * @param evictionListener
+     *            receives each message which was emitted, but then evicted from its lane's buffer by the DROP_OLDEST policy before the messaging
+     *            infrastructure took it, or null
+     */
+    public void setEvictionListener(Consumer<Message<?>> evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+    
+    /**
+     * Emits a query metric update message according to the configured emission strategy and overflow policy.
+     *
+     * @param queryMetricUpdate
+     *            the message to emit, not null
+     * @return the outcome of the emission
+     */
+    public EmitOutcome emit(Message<T> queryMetricUpdate) {
+        return emit(queryMetricUpdate, true);
+    }
+    
+    /**
+     * Emits a query metric update message according to the configured emission strategy and overflow policy.
+     *
+     * @param queryMetricUpdate
+     *            the message to emit, not null
+     * @param block
+     *            whether to wait for room in a full buffer when the overflow policy is {@link QueryMetricOverflowPolicy#BLOCK}. Threads which other work
+     *            depends on, such as those of the query metric client, must not block, and get {@link EmitOutcome#OVERFLOW} straight away instead.
+     * @return the outcome of the emission
+     */
+    public EmitOutcome emit(Message<T> queryMetricUpdate, boolean block) {
+        Lane target = laneFor(queryMetricUpdate);
+        EmitOutcome outcome = tryEmit(target, queryMetricUpdate);
+        if (outcome == EmitOutcome.OVERFLOW && block && source.getOverflowPolicy() == QueryMetricOverflowPolicy.BLOCK) {
+            final long blockDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(source.getBlockTimeoutMillis());
+            while (outcome == EmitOutcome.OVERFLOW && System.nanoTime() < blockDeadline) {
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                outcome = tryEmit(target, queryMetricUpdate);
+            }
+        }
+        outcomeCounts.get(outcome).increment();
+        return outcome;
+    }
+    
+    private Lane laneFor(Message<T> queryMetricUpdate) {
+        if (priorityLane != null && isPriority(queryMetricUpdate.getPayload())) {
+            return priorityLane;
+        }
+        return lane;
+    }
+    
+    /**
+     * @return true if the payload is an update of one of the priority metric types, or a packed batch which contains one
+     */
+    private boolean isPriority(Object payload) {
+        if (payload instanceof QueryMetricUpdate) {
+            return source.getPriorityMetricTypes().contains(((QueryMetricUpdate) payload).getMetricType());
+        }
+        if (payload instanceof Collection) {
+            for (Object element : (Collection<?>) payload) {
+                if (isPriority(element)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    private EmitOutcome tryEmit(Lane target, Message<T> queryMetricUpdate) {
+        if (target.sink == null) {
+            return target.offer(queryMetricUpdate);
+        }
+        Sinks.EmitResult result;
+        if (source.getEmissionStrategy() == QueryMetricEmissionStrategy.SERIALIZED) {
+            synchronized (target.emitLock) {
+                result = target.sink.tryEmitNext(queryMetricUpdate);
+            }
+        } else {
+            final long contentionDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(source.getBusyLoopMillis());
+            do {
+                result = target.sink.tryEmitNext(queryMetricUpdate);
+            } while (result == Sinks.EmitResult.FAIL_NON_SERIALIZED && System.nanoTime() < contentionDeadline);
+        }
+        return toOutcome(result);
+    }
+    
+    private static EmitOutcome toOutcome(Sinks.EmitResult result) {
+        switch (result) {
+            case OK:
+                return EmitOutcome.EMITTED;
+            case FAIL_OVERFLOW:
+                return EmitOutcome.OVERFLOW;
+            case FAIL_NON_SERIALIZED:
+                return EmitOutcome.CONTENDED;
+            case FAIL_ZERO_SUBSCRIBER:
+                return EmitOutcome.NO_SUBSCRIBER;
+            default:
+                return EmitOutcome.TERMINATED;
+        }
+    }
+    
+    /**
+     * @param outcome
+     *            the emission outcome
+     * @return the number of emissions which have resulted in the given outcome
+     */
+    public long getOutcomeCount(EmitOutcome outcome) {
+        return outcomeCounts.get(outcome).sum();
+    }
+    
+    /**
+     * @return the number of emitted messages which have not yet been taken by the messaging infrastructure, nor dropped
+     */
+    public long getPendingCount() {
+        return Math.max(0L, getOutcomeCount(EmitOutcome.EMITTED) - delivered.sum() - getOutcomeCount(EmitOutcome.DROPPED));
+    }
+    
+    @Override
+    public void start() {
+        running = true;
+    }
+    
+    /**
+     * Waits, up to the configured drain timeout, for the buffered messages of both lanes to be taken by the messaging infrastructure. The pending count covers
+     * every message emitted into either lane, and a drain takes from the priority lane first, so the regular lane is only drained once the priority lane is
+     * empty.
+     */
+    @Override
+    public void stop() {
+        final long deadline = System.currentTimeMillis() + source.getDrainTimeoutMillis();
+        while (getPendingCount() > 0 && hasSubscriber() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        long pending = getPendingCount();
+        if (pending > 0) {
+            log.warn("Stopped query metric supplier with {} messages still buffered", pending);
+        }
+        running = false;
+    }
+    
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+    
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+    
+    /**
+     * Note that the count of pending messages assumes that this is called once, by the messaging infrastructure.
+     */
+    @Override
+    public Flux<Message<T>> get() {
+        Flux<Message<T>> flux = lane.sink != null ? lane.sink.asFlux() : Flux.create(this::subscribe);
+        flux = flux.doOnNext(message -> delivered.increment()).subscribeOn(Schedulers.boundedElastic());
+        if (priorityLane != null) {
+            // share() would prefetch a full buffer of messages ahead of the messaging infrastructure's demand, and pass them on in the order in which they
+            // were taken, so only take one message at a time when draining in priority order
+            return flux.publish(1).refCount();
+        }
+        return flux.share();
+    }
+    
+    private void subscribe(FluxSink<Message<T>> emitter) {
+        subscriber = emitter;
+        emitter.onDispose(() -> {
+            if (subscriber == emitter) {
+                subscriber = null;
+            }
+        });
+        emitter.onRequest(requested -> drain());
+    }
+    
+    private boolean hasSubscriber() {
+        return lane.sink != null ? lane.sink.currentSubscriberCount() > 0 : subscriber != null;
+    }
+    
+    /**
+     * Passes buffered messages to the subscriber for as long as it has demand, taking them from the priority lane for as long as it has any, and only then
+     * from the regular lane. Only one thread drains at a time, and a drain requested while another is running is done by that thread, so that the messages of
+     * each lane are passed on in order.
+     */
+    private void drain() {
+        if (drainRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            FluxSink<Message<T>> current = subscriber;
+            while (current != null && !current.isCancelled() && current.requestedFromDownstream() > 0) {
+                Message<T> queryMetricUpdate = priorityLane != null ? priorityLane.poll() : null;
+                if (queryMetricUpdate == null) {
+                    queryMetricUpdate = lane.poll();
+                }
+                if (queryMetricUpdate == null) {
+                    break;
+                }
+                current.next(queryMetricUpdate);
+            }
+            missed = drainRequests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+    
+    /**
+     * A sink, or a buffer of the lane's own, for the messages emitted into the lane.
+     * <p>
+     * Neither a multicast sink nor a merge of sinks can evict messages or pass them on in priority order, so with the
+     * {@link QueryMetricOverflowPolicy#DROP_OLDEST} policy, or when the priority lane is enabled, each lane keeps a bounded buffer of its own instead, which
+     * the supplier drains to its subscriber as far as the subscriber's demand allows. When the buffer is full, the oldest message is dropped to make room for
+     * the new one with the DROP_OLDEST policy, and passed to the eviction listener, and otherwise the new message overflows. As with the sink, messages
+     * emitted before there is a subscriber wait in the buffer for it.
+     */
+    private final class Lane {
+        private final int bufferSize;
+        // null when the lane keeps a buffer of its own
+        private final Sinks.Many<Message<T>> sink;
+        private final Object emitLock = new Object();
+        // null when the lane emits into a sink
+        private final Deque<Message<T>> buffer;
+        
+        private Lane(int bufferSize, boolean buffered) {
+            this.bufferSize = bufferSize;
+            if (buffered) {
+                this.sink = null;
+                this.buffer = new ArrayDeque<>(bufferSize);
+            } else {
+                // don't terminate the sink when its last subscriber cancels, as the default would. The binding cancels its subscription whenever it is
+                // stopped, e.g. while the binder restarts or via the bindings endpoint, and a terminated sink would fail every later emission, rather than
+                // buffering messages until the binding resubscribes.
+                this.sink = Sinks.many().multicast().onBackpressureBuffer(bufferSize, false);
+                this.buffer = null;
+            }
+        }
+        
+        /**
+         * Adds a message to the lane's buffer, dropping the oldest message if it is full and the policy is DROP_OLDEST.
+         */
+        private EmitOutcome offer(Message<T> queryMetricUpdate) {
+            Message<T> evicted = null;
+            synchronized (emitLock) {
+                if (buffer.size() >= bufferSize) {
+                    if (source.getOverflowPolicy() != QueryMetricOverflowPolicy.DROP_OLDEST) {
+                        return EmitOutcome.OVERFLOW;
+                    }
+                    evicted = buffer.poll();
+                    outcomeCounts.get(EmitOutcome.DROPPED).increment();
+                }
+                buffer.offer(queryMetricUpdate);
+            }
+            // the evicted message was reported as emitted, so tell its sender that it was lost after all, outside the lock since the listener may resend
+            Consumer<Message<?>> listener = evictionListener;
+            if (evicted != null && listener != null) {
+                try {
+                    listener.accept(evicted);
+                } catch (RuntimeException e) {
+                    log.warn("Eviction listener failed for query metric message", e);
+                }
+            }
+            drain();
+            return EmitOutcome.EMITTED;
+        }
+        
+        private Message<T> poll() {
+            synchronized (emitLock) {
+                return buffer.poll();
+            }
+        }
+    }
+}
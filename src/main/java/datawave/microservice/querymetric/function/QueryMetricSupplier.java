@@ -1,23 +1,25 @@
 package datawave.microservice.querymetric.function;
 
-import java.util.function.Supplier;
-
 import org.springframework.messaging.Message;
 
 import datawave.microservice.querymetric.QueryMetricUpdate;
-import reactor.core.publisher.Flux;
-import reactor.core.publisher.Sinks;
-import reactor.core.scheduler.Schedulers;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Source;
 
-public class QueryMetricSupplier implements Supplier<Flux<Message<QueryMetricUpdate>>> {
-    private final Sinks.Many<Message<QueryMetricUpdate>> messagingSink = Sinks.many().multicast().onBackpressureBuffer();
+/**
+ * Source of query metric update messages for the messaging infrastructure, each of which carries a single {@link QueryMetricUpdate}. Packed batches of
+ * updates are emitted by the {@link QueryMetricBatchSupplier} instead, so that every message on this binding has the payload type which it declares.
+ */
+public class QueryMetricSupplier extends QueryMetricMessageSupplier<QueryMetricUpdate> {
     
-    public boolean send(Message<QueryMetricUpdate> queryMetricUpdate) {
-        return messagingSink.tryEmitNext(queryMetricUpdate).isSuccess();
+    public QueryMetricSupplier() {
+        this(new Source());
     }
     
-    @Override
-    public Flux<Message<QueryMetricUpdate>> get() {
-        return messagingSink.asFlux().subscribeOn(Schedulers.boundedElastic()).share();
+    public QueryMetricSupplier(Source source) {
+        super(source);
+    }
+    
+    public boolean send(Message<QueryMetricUpdate> queryMetricUpdate) {
+        return emit(queryMetricUpdate) == EmitOutcome.EMITTED;
     }
 }
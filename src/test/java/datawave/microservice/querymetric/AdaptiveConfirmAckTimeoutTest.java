@@ -0,0 +1,100 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.junit.jupiter.api.Test;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.AdaptiveConfirmAck;
+
+public class AdaptiveConfirmAckTimeoutTest {
+    
+    private static AdaptiveConfirmAck adaptiveConfirmAck(double percentile, double multiplier, int windowSize) {
+        AdaptiveConfirmAck adaptiveConfirmAck = new AdaptiveConfirmAck();
+        adaptiveConfirmAck.setEnabled(true);
+        adaptiveConfirmAck.setPercentile(percentile);
+        adaptiveConfirmAck.setMultiplier(multiplier);
+        adaptiveConfirmAck.setMinTimeoutMillis(1L);
+        adaptiveConfirmAck.setMaxTimeoutMillis(10000L);
+        adaptiveConfirmAck.setWindowSize(windowSize);
+        return adaptiveConfirmAck;
+    }
+    
+    private static void record(AdaptiveConfirmAckTimeout timeout, int samples, DoubleSupplier roundTripMillis) {
+        for (int i = 0; i < samples; i++) {
+            timeout.record((long) (roundTripMillis.getAsDouble() * TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+    }
+    
+    private static void assertNear(long expected, long actual, long tolerance) {
+        assertTrue(Math.abs(expected - actual) <= tolerance, "Expected " + expected + " +/- " + tolerance + " but was " + actual);
+    }
+    
+    @Test
+    public void testConvergesOnUniformPercentile() {
+        Random random = new Random(42);
+        AdaptiveConfirmAckTimeout timeout = new AdaptiveConfirmAckTimeout(adaptiveConfirmAck(0.99, 1.0, 5000), 1000L);
+        
+        // the initial timeout is used until the first window is complete
+        record(timeout, 4999, () -> random.nextDouble() * 100.0);
+        assertEquals(1000L, timeout.getTimeoutMillis());
+        
+        // the 99th percentile of round trips uniform over [0, 100) millis is 99 millis
+        record(timeout, 1, () -> random.nextDouble() * 100.0);
+        assertNear(99L, timeout.getTimeoutMillis(), 2L);
+    }
+    
+    @Test
+    public void testConvergesOnSkewedPercentile() {
+        Random random = new Random(42);
+        AdaptiveConfirmAckTimeout timeout = new AdaptiveConfirmAckTimeout(adaptiveConfirmAck(0.95, 1.0, 5000), 1000L);
+        
+        // the 95th percentile of round trips exponentially distributed with a mean of 10 millis is 10 * ln(20), or 30 millis
+        record(timeout, 5000, () -> -Math.log(1.0 - random.nextDouble()) * 10.0);
+        assertNear(30L, timeout.getTimeoutMillis(), 3L);
+    }
+    
+    @Test
+    public void testEstimateIsAveragedAcrossWindows() {
+        Random random = new Random(42);
+        AdaptiveConfirmAckTimeout timeout = new AdaptiveConfirmAckTimeout(adaptiveConfirmAck(0.99, 1.0, 5000), 1000L);
+        record(timeout, 5000, () -> random.nextDouble() * 100.0);
+        assertNear(99L, timeout.getTimeoutMillis(), 2L);
+        
+        // the late acks of the slower window raise the timeout straight away, and its end settles on the average of the two windows' estimates
+        record(timeout, 4999, () -> random.nextDouble() * 200.0);
+        assertTrue(timeout.getTimeoutMillis() > 190L, "Expected late acks to raise the timeout but was " + timeout.getTimeoutMillis());
+        record(timeout, 1, () -> random.nextDouble() * 200.0);
+        assertNear(149L, timeout.getTimeoutMillis(), 3L);
+    }
+    
+    @Test
+    public void testLateAckRaisesTimeoutImmediately() {
+        AdaptiveConfirmAckTimeout timeout = new AdaptiveConfirmAckTimeout(adaptiveConfirmAck(0.99, 2.0, 500), 100L);
+        timeout.record(TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(100L, timeout.getTimeoutMillis());
+        
+        timeout.record(TimeUnit.MILLISECONDS.toNanos(300));
+        assertEquals(600L, timeout.getTimeoutMillis());
+    }
+    
+    @Test
+    public void testTimeoutIsBounded() {
+        AdaptiveConfirmAck adaptiveConfirmAck = adaptiveConfirmAck(0.99, 2.0, 5);
+        adaptiveConfirmAck.setMinTimeoutMillis(50L);
+        adaptiveConfirmAck.setMaxTimeoutMillis(1000L);
+        
+        AdaptiveConfirmAckTimeout timeout = new AdaptiveConfirmAckTimeout(adaptiveConfirmAck, 5000L);
+        assertEquals(1000L, timeout.getTimeoutMillis());
+        
+        record(timeout, 5, () -> 1.0);
+        assertEquals(50L, timeout.getTimeoutMillis());
+        
+        timeout.record(TimeUnit.SECONDS.toNanos(10));
+        assertEquals(1000L, timeout.getTimeoutMillis());
+    }
+}
@@ -0,0 +1,173 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import datawave.microservice.querymetric.ConfirmAckTracker.PendingAck;
+
+public class ConfirmAckTrackerTest {
+    
+    private ScheduledExecutorService scheduler;
+    
+    private ConfirmAckTracker tracker;
+    
+    @BeforeEach
+    public void setup() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        tracker = new ConfirmAckTracker(scheduler, 10, 16);
+    }
+    
+    @AfterEach
+    public void teardown() {
+        scheduler.shutdownNow();
+    }
+    
+    @Test
+    public void testAckBeforeAwait() throws Exception {
+        PendingAck pendingAck = tracker.register(1, updates(1));
+        assertTrue(tracker.ack(pendingAck.getCorrelationId()));
+        
+        CompletableFuture<List<PendingAck>> future = tracker.await(List.of(pendingAck), 60000);
+        assertTrue(future.isDone());
+        assertEquals(Collections.emptyList(), future.get());
+        assertEquals(0, tracker.size());
+    }
+    
+    @Test
+    public void testAckAfterAwait() throws Exception {
+        PendingAck first = tracker.register(1, updates(1));
+        PendingAck second = tracker.register(1, updates(1));
+        
+        CompletableFuture<List<PendingAck>> future = tracker.await(List.of(first, second), 60000);
+        tracker.ack(first.getCorrelationId());
+        assertFalse(future.isDone());
+        tracker.ack(second.getCorrelationId());
+        assertEquals(Collections.emptyList(), future.get(1, TimeUnit.SECONDS));
+        assertEquals(0, tracker.size());
+    }
+    
+    @Test
+    public void testFailedAckCompletesGroupEarly() throws Exception {
+        PendingAck failedBeforeAwait = tracker.register(1, updates(1));
+        PendingAck acked = tracker.register(1, updates(1));
+        PendingAck failedAfterAwait = tracker.register(1, updates(1));
+        assertTrue(tracker.fail(failedBeforeAwait.getCorrelationId()));
+        
+        CompletableFuture<List<PendingAck>> future = tracker.await(List.of(failedBeforeAwait, acked, failedAfterAwait), 60000);
+        tracker.ack(acked.getCorrelationId());
+        assertFalse(future.isDone());
+        assertTrue(tracker.fail(failedAfterAwait.getCorrelationId()));
+        
+        // the group completes without waiting out its deadline, and a late ack for a failed correlation id is ignored
+        assertEquals(List.of(failedBeforeAwait, failedAfterAwait), future.get(1, TimeUnit.SECONDS));
+        assertFalse(tracker.fail(acked.getCorrelationId()));
+        assertFalse(tracker.ack(failedAfterAwait.getCorrelationId()));
+        assertEquals(0, tracker.size());
+    }
+    
+    @Test
+    public void testExpiryAcrossWheelRevolutions() throws Exception {
+        // with a 1ms tick the wheel of 512 buckets turns about every half second, so the deadline is a few revolutions away
+        ConfirmAckTracker tracker = new ConfirmAckTracker(scheduler, 1, 16);
+        PendingAck acked = tracker.register(1, updates(1));
+        PendingAck unacked = tracker.register(1, updates(1));
+        
+        long start = System.currentTimeMillis();
+        CompletableFuture<List<PendingAck>> future = tracker.await(List.of(acked, unacked), 1500);
+        tracker.ack(acked.getCorrelationId());
+        
+        // the group's bucket has been swept at least once by now, without expiring it early
+        Thread.sleep(800);
+        assertFalse(future.isDone());
+        
+        assertEquals(List.of(unacked), future.get(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 1500);
+        assertEquals(0, tracker.size());
+    }
+    
+    @Test
+    public void testRingCollisionFallsBackToOverflow() throws Exception {
+        // two ring slots, so the third pending ack lands on the slot still held by the first
+        ConfirmAckTracker tracker = new ConfirmAckTracker(scheduler, 10, 2);
+        PendingAck first = tracker.register(1, updates(1));
+        PendingAck second = tracker.register(1, updates(1));
+        PendingAck third = tracker.register(1, updates(1));
+        assertEquals(3, tracker.size());
+        
+        assertTrue(tracker.ack(third.getCorrelationId()));
+        assertTrue(tracker.ack(first.getCorrelationId()));
+        assertEquals(Collections.emptyList(), tracker.await(List.of(first, third), 60000).get(1, TimeUnit.SECONDS));
+        assertEquals(1, tracker.size());
+        
+        // the fourth pending ack collides with the second, which is still waiting
+        PendingAck fourth = tracker.register(1, updates(1));
+        assertTrue(tracker.ack(fourth.getCorrelationId()));
+        assertTrue(tracker.ack(second.getCorrelationId()));
+        assertEquals(Collections.emptyList(), tracker.await(List.of(second, fourth), 60000).get(1, TimeUnit.SECONDS));
+        assertEquals(0, tracker.size());
+    }
+    
+    @Test
+    public void testBatchAcknowledged() throws Exception {
+        PendingAck pendingAck = tracker.register(3, updates(3));
+        for (int sequenceNumber = 1; sequenceNumber <= 3; sequenceNumber++) {
+            assertTrue(tracker.ack(pendingAck.getCorrelationId(), sequenceNumber));
+        }
+        assertEquals(Collections.emptyList(), tracker.await(List.of(pendingAck), 1000).get(1, TimeUnit.SECONDS));
+        assertEquals(0, tracker.size());
+    }
+    
+    @Test
+    public void testDuplicateBatchAcksAreNotCounted() throws Exception {
+        PendingAck pendingAck = tracker.register(3, updates(3));
+        tracker.ack(pendingAck.getCorrelationId(), 1);
+        tracker.ack(pendingAck.getCorrelationId(), 1);
+        tracker.ack(pendingAck.getCorrelationId(), 3);
+        
+        List<PendingAck> failed = tracker.await(List.of(pendingAck), 50).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of(pendingAck), failed);
+        assertEquals(List.of(pendingAck.getUpdates().get(1)), pendingAck.getUnackedUpdates());
+    }
+    
+    @Test
+    public void testOnlyUnackedBatchUpdatesAreReturned() throws Exception {
+        PendingAck pendingAck = tracker.register(4, updates(4));
+        tracker.ack(pendingAck.getCorrelationId(), 2);
+        tracker.ack(pendingAck.getCorrelationId(), 4);
+        
+        List<PendingAck> failed = tracker.await(List.of(pendingAck), 50).get(5, TimeUnit.SECONDS);
+        assertEquals(1, failed.size());
+        List<QueryMetricUpdate> updates = pendingAck.getUpdates();
+        assertEquals(List.of(updates.get(0), updates.get(2)), failed.get(0).getUnackedUpdates());
+        assertEquals(0, tracker.size());
+    }
+    
+    @Test
+    public void testUnknownCorrelationId() {
+        assertFalse(tracker.ack("unknown"));
+        assertFalse(tracker.ack(tracker.nextCorrelationId()));
+    }
+    
+    static List<QueryMetricUpdate> updates(int count) {
+        List<QueryMetricUpdate> updates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            QueryMetric metric = new QueryMetric();
+            metric.setQueryId("query-" + i);
+            updates.add(new QueryMetricUpdate(metric, QueryMetricType.DISTRIBUTED));
+        }
+        return updates;
+    }
+}
@@ -0,0 +1,98 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.MimeTypeUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import datawave.microservice.querymetric.config.QueryMetricCodecType;
+
+public class JacksonQueryMetricCodecTest {
+    
+    // configured as Spring Boot configures the application's object mapper
+    private final ObjectMapper objectMapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    
+    @Test
+    public void testJsonRoundTrip() throws IOException {
+        JacksonQueryMetricCodec codec = JacksonQueryMetricCodec.create(QueryMetricCodecType.JSON, objectMapper);
+        assertEquals(MimeTypeUtils.APPLICATION_JSON, codec.getContentType());
+        
+        QueryMetric metric = QueryMetricTestSupport.createMetric(0);
+        byte[] bytes = codec.encode(metric);
+        assertEquals('{', bytes[0]);
+        assertMetricEquals(metric, codec.read(bytes, QueryMetric.class));
+    }
+    
+    @Test
+    public void testSmileRoundTrip() throws IOException {
+        JacksonQueryMetricCodec codec = JacksonQueryMetricCodec.create(QueryMetricCodecType.SMILE, objectMapper);
+        assertEquals(JacksonQueryMetricCodec.APPLICATION_SMILE, codec.getContentType());
+        
+        QueryMetric metric = QueryMetricTestSupport.createMetric(0);
+        byte[] bytes = codec.encode(metric);
+        // every Smile document starts with the ":)\n" header
+        assertArrayEquals(":)\n".getBytes(StandardCharsets.US_ASCII), Arrays.copyOf(bytes, 3));
+        assertMetricEquals(metric, codec.read(bytes, QueryMetric.class));
+        
+        // the Smile document holds the same fields as the JSON one
+        assertEquals(objectMapper.readTree(objectMapper.writeValueAsBytes(metric)), codec.read(bytes, JsonNode.class));
+    }
+    
+    @Test
+    public void testSmileSharesJsonMapperConfiguration() throws IOException {
+        // a field the receiver doesn't know of is ignored, as the application's JSON mapper ignores it
+        JacksonQueryMetricCodec codec = JacksonQueryMetricCodec.create(QueryMetricCodecType.SMILE, objectMapper);
+        byte[] bytes = codec.encode(Map.of("name", "query-0", "unknownField", "value"));
+        assertEquals("query-0", codec.read(bytes, Named.class).name);
+        
+        JacksonQueryMetricCodec strictCodec = JacksonQueryMetricCodec.create(QueryMetricCodecType.SMILE, new ObjectMapper());
+        assertThrows(IOException.class, () -> strictCodec.read(bytes, Named.class));
+    }
+    
+    @Test
+    public void testWriteLeavesStreamOpen() throws IOException {
+        for (QueryMetricCodecType codecType : QueryMetricCodecType.values()) {
+            JacksonQueryMetricCodec codec = JacksonQueryMetricCodec.create(codecType, objectMapper);
+            QueryMetric metric = QueryMetricTestSupport.createMetric(0);
+            CloseTrackingOutputStream out = new CloseTrackingOutputStream();
+            codec.write(metric, out);
+            assertFalse(out.closed, codecType + " codec closed the stream");
+            assertArrayEquals(codec.encode(metric), out.toByteArray());
+        }
+    }
+    
+    static void assertMetricEquals(BaseQueryMetric expected, BaseQueryMetric actual) {
+        assertEquals(expected.getQueryId(), actual.getQueryId());
+        assertEquals(expected.getUser(), actual.getUser());
+        assertEquals(expected.getUserDN(), actual.getUserDN());
+        assertEquals(expected.getQuery(), actual.getQuery());
+        assertEquals(expected.getQueryLogic(), actual.getQueryLogic());
+        assertEquals(expected.getCreateDate(), actual.getCreateDate());
+    }
+    
+    public static class Named {
+        public String name;
+    }
+    
+    private static class CloseTrackingOutputStream extends ByteArrayOutputStream {
+        private boolean closed = false;
+        
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
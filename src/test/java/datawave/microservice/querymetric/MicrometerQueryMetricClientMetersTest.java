@@ -0,0 +1,69 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties;
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+import datawave.microservice.querymetric.function.QueryMetricSupplier;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class MicrometerQueryMetricClientMetersTest {
+    
+    @Test
+    public void testMetersAreRegisteredOnFirstUse() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MicrometerQueryMetricClientMeters meters = new MicrometerQueryMetricClientMeters(registry);
+        assertTrue(registry.getMeters().isEmpty());
+        
+        // only the meters of the transport and metric type in use are published
+        meters.recordSubmit(QueryMetricTransportType.REST, QueryMetricType.COMPLETE, TimeUnit.MILLISECONDS.toNanos(5));
+        meters.recordSubmit(QueryMetricTransportType.REST, QueryMetricType.COMPLETE, TimeUnit.MILLISECONDS.toNanos(5));
+        meters.recordRest(true, TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(2, registry.getMeters().size());
+        
+        Timer submitTimer = registry.find(QueryMetricClientMeters.PREFIX + ".submit").tag("transport", "REST").tag("metricType", "COMPLETE").timer();
+        assertNotNull(submitTimer);
+        assertEquals(2, submitTimer.count());
+        assertNotNull(registry.find(QueryMetricClientMeters.PREFIX + ".rest").tag("outcome", "success").timer());
+    }
+    
+    @Test
+    public void testConfirmAckTrackerIsOnlyCreatedWhenAcksAreAwaited() {
+        for (QueryMetricTransportType transportType : QueryMetricTransportType.values()) {
+            for (boolean confirmAckEnabled : new boolean[] {true, false}) {
+                QueryMetricClientProperties properties = new QueryMetricClientProperties();
+                properties.setTransport(transportType);
+                properties.setConfirmAckEnabled(confirmAckEnabled);
+                properties.getAdaptiveConfirmAck().setEnabled(true);
+                
+                SimpleMeterRegistry registry = new SimpleMeterRegistry();
+                ObjectMapper objectMapper = new ObjectMapper();
+                QueryMetricClient client = new QueryMetricClient(new RestTemplateBuilder(), properties, new QueryMetricSupplier(), null, objectMapper,
+                                QueryMetricTestSupport.createJwtTokenHandler(objectMapper), new MicrometerQueryMetricClientMeters(registry), null);
+                try {
+                    String description = transportType + (confirmAckEnabled ? " with" : " without") + " confirm acks";
+                    if (transportType == QueryMetricTransportType.MESSAGE && confirmAckEnabled) {
+                        assertNotNull(registry.find(QueryMetricClientMeters.PREFIX + ".confirm.ack.pending").gauge(), description);
+                        assertNotNull(registry.find(QueryMetricClientMeters.PREFIX + ".confirm.ack.timeout").gauge(), description);
+                    } else {
+                        assertNull(registry.find(QueryMetricClientMeters.PREFIX + ".confirm.ack.pending").gauge(), description);
+                        assertNull(registry.find(QueryMetricClientMeters.PREFIX + ".confirm.ack.timeout").gauge(), description);
+                    }
+                } finally {
+                    client.destroy();
+                }
+            }
+        }
+    }
+}
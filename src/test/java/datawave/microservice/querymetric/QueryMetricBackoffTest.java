@@ -0,0 +1,64 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Retry;
+
+public class QueryMetricBackoffTest {
+    
+    private static Retry retry(double backoffMultiplier, long maxBackoffIntervalMillis, double jitterFactor) {
+        Retry retry = new Retry();
+        retry.setBackoffIntervalMillis(100);
+        retry.setBackoffMultiplier(backoffMultiplier);
+        retry.setMaxBackoffIntervalMillis(maxBackoffIntervalMillis);
+        retry.setJitterFactor(jitterFactor);
+        return retry;
+    }
+    
+    @Test
+    public void testBackoffGrowsExponentially() {
+        Retry retry = retry(2.0, 100000, 0.0);
+        assertEquals(100, QueryMetricMessageDelivery.backoffMillis(retry, 1));
+        assertEquals(200, QueryMetricMessageDelivery.backoffMillis(retry, 2));
+        assertEquals(400, QueryMetricMessageDelivery.backoffMillis(retry, 3));
+        assertEquals(3200, QueryMetricMessageDelivery.backoffMillis(retry, 6));
+    }
+    
+    @Test
+    public void testBackoffIsCapped() {
+        Retry retry = retry(2.0, 1000, 0.0);
+        assertEquals(800, QueryMetricMessageDelivery.backoffMillis(retry, 4));
+        assertEquals(1000, QueryMetricMessageDelivery.backoffMillis(retry, 5));
+        assertEquals(1000, QueryMetricMessageDelivery.backoffMillis(retry, 50));
+    }
+    
+    @Test
+    public void testConstantBackoffByDefault() {
+        Retry retry = new Retry();
+        for (int attempts = 1; attempts <= 10; attempts++) {
+            assertEquals(retry.getBackoffIntervalMillis(), QueryMetricMessageDelivery.backoffMillis(retry, attempts));
+        }
+    }
+    
+    @Test
+    public void testJitterStaysWithinBounds() {
+        // the jitter only ever shortens the backoff, by up to the jitter factor, including once the backoff is capped
+        Retry retry = retry(2.0, 1000, 0.25);
+        for (int attempts = 1; attempts <= 8; attempts++) {
+            long backoff = Math.min(1000, 100L << (attempts - 1));
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < 1000; i++) {
+                long jittered = QueryMetricMessageDelivery.backoffMillis(retry, attempts);
+                assertTrue(jittered >= backoff * 0.75 - 1 && jittered <= backoff, "Backoff " + jittered + " out of bounds for attempt " + attempts);
+                min = Math.min(min, jittered);
+                max = Math.max(max, jittered);
+            }
+            // the backoffs are actually spread out, rather than all the same
+            assertTrue(max - min >= backoff / 8, "Backoff for attempt " + attempts + " was barely jittered: " + min + " to " + max);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import datawave.microservice.querymetric.config.QueryMetricCodecType;
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+
+/**
+ * Reads the messages which the client sends as the query metric service would: from the bytes which the binder's message converter produces, telling packed
+ * batches apart from single updates by their content type
+ */
+public class QueryMetricBatchFormatTest {
+    
+    // configured as Spring Boot configures the service's object mapper
+    private final ObjectMapper serviceObjectMapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    
+    @Test
+    public void testServiceReadsPackedBatch() throws Exception {
+        for (QueryMetricCodecType codecType : QueryMetricCodecType.values()) {
+            List<Message<?>> sent = send(codecType, true, 3);
+            assertEquals(1, sent.size(), codecType + " batch was not sent as one message");
+            
+            List<QueryMetricUpdate> updates = receive(codecType, sent.get(0));
+            assertEquals(3, updates.size());
+            for (int i = 0; i < updates.size(); i++) {
+                assertEquals(QueryMetricType.DISTRIBUTED, updates.get(i).getMetricType());
+                JacksonQueryMetricCodecTest.assertMetricEquals(QueryMetricTestSupport.createMetric(i), updates.get(i).getMetric());
+            }
+        }
+    }
+    
+    @Test
+    public void testServiceReadsSingleUpdate() throws Exception {
+        for (QueryMetricCodecType codecType : QueryMetricCodecType.values()) {
+            List<Message<?>> sent = send(codecType, false, 1);
+            assertEquals(1, sent.size());
+            
+            List<QueryMetricUpdate> updates = receive(codecType, sent.get(0));
+            assertEquals(1, updates.size());
+            JacksonQueryMetricCodecTest.assertMetricEquals(QueryMetricTestSupport.createMetric(0), updates.get(0).getMetric());
+        }
+    }
+    
+    /**
+     * Submits the metrics via the message transport, and captures the messages which are passed to the binder
+     */
+    private static List<Message<?>> send(QueryMetricCodecType codecType, boolean batched, int metrics) throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+            properties.setCodec(codecType);
+            properties.getBatch().setEnabled(batched);
+            properties.getBatch().setMaxUpdates(metrics);
+        })) {
+            List<Message<?>> sent = new CopyOnWriteArrayList<>();
+            fixture.getBinder().setDropFilter(message -> {
+                sent.add(message);
+                return false;
+            });
+            assertTrue(fixture.getClient().submitAsync(fixture.createRequest(metrics, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS).isSuccess());
+            return sent;
+        }
+    }
+    
+    /**
+     * Converts the message to bytes as the binder would, then decodes it as the query metric service would
+     */
+    private List<QueryMetricUpdate> receive(QueryMetricCodecType codecType, Message<?> message) throws Exception {
+        MessageConverter converter;
+        if (codecType == QueryMetricCodecType.SMILE) {
+            converter = new QueryMetricCodecMessageConverter(JacksonQueryMetricCodec.create(codecType, new ObjectMapper()));
+        } else {
+            MappingJackson2MessageConverter jsonConverter = new MappingJackson2MessageConverter();
+            jsonConverter.setObjectMapper(new ObjectMapper());
+            converter = jsonConverter;
+        }
+        // the binder's default content type applies to messages without one
+        MessageHeaders headers = message.getHeaders();
+        Object contentTypeHeader = headers.get(MessageHeaders.CONTENT_TYPE);
+        MimeType contentType = contentTypeHeader != null ? MimeTypeUtils.parseMimeType(contentTypeHeader.toString()) : MimeTypeUtils.APPLICATION_JSON;
+        assertTrue(contentType.equalsTypeAndSubtype(JacksonQueryMetricCodec.create(codecType, serviceObjectMapper).getContentType()));
+        byte[] payload = (byte[]) converter.toMessage(message.getPayload(), headers).getPayload();
+        
+        JsonNode node = JacksonQueryMetricCodec.create(codecType, serviceObjectMapper).read(payload, JsonNode.class);
+        List<QueryMetricUpdate> updates = new ArrayList<>();
+        String batchVersion = contentType.getParameter(QueryMetricMessageDelivery.BATCH_VERSION_PARAMETER);
+        if (batchVersion == null) {
+            updates.add(readUpdate(node));
+        } else {
+            assertEquals(QueryMetricMessageDelivery.BATCH_VERSION, batchVersion);
+            assertTrue(node.isArray());
+            for (JsonNode update : node) {
+                updates.add(readUpdate(update));
+            }
+        }
+        return updates;
+    }
+    
+    private QueryMetricUpdate readUpdate(JsonNode node) throws Exception {
+        assertTrue(node.isObject());
+        QueryMetric metric = serviceObjectMapper.treeToValue(node.get("metric"), QueryMetric.class);
+        return new QueryMetricUpdate(metric, QueryMetricType.valueOf(node.path("metricType").asText()));
+    }
+}
@@ -0,0 +1,121 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import datawave.microservice.querymetric.QueryMetricCircuitBreaker.State;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.CircuitBreaker;
+
+public class QueryMetricCircuitBreakerTest {
+    
+    private static QueryMetricCircuitBreaker circuitBreaker(int failureThreshold, long openDurationMillis) {
+        CircuitBreaker circuitBreaker = new CircuitBreaker();
+        circuitBreaker.setEnabled(true);
+        circuitBreaker.setFailureThreshold(failureThreshold);
+        circuitBreaker.setOpenDurationMillis(openDurationMillis);
+        return new QueryMetricCircuitBreaker("TEST", circuitBreaker);
+    }
+    
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        QueryMetricCircuitBreaker circuitBreaker = circuitBreaker(3, 60000);
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        // a success resets the count of consecutive failures
+        circuitBreaker.recordSuccess();
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+        
+        circuitBreaker.recordFailure();
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+    }
+    
+    @Test
+    public void testProbeSuccessCloses() throws Exception {
+        QueryMetricCircuitBreaker circuitBreaker = circuitBreaker(1, 100);
+        circuitBreaker.recordFailure();
+        assertFalse(circuitBreaker.allowRequest());
+        
+        // a single probe is let through once the open duration has passed
+        Thread.sleep(150);
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+        
+        circuitBreaker.recordSuccess();
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+    
+    @Test
+    public void testProbeFailureReopens() throws Exception {
+        QueryMetricCircuitBreaker circuitBreaker = circuitBreaker(5, 100);
+        for (int i = 0; i < 5; i++) {
+            circuitBreaker.recordFailure();
+        }
+        Thread.sleep(150);
+        assertTrue(circuitBreaker.allowRequest());
+        
+        // a failed probe re-opens the breaker straight away, without waiting for the failure threshold, and restarts the open duration
+        circuitBreaker.recordFailure();
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+        Thread.sleep(150);
+        assertTrue(circuitBreaker.allowRequest());
+    }
+    
+    @Test
+    public void testIgnoredProbeLetsAnotherThrough() throws Exception {
+        QueryMetricCircuitBreaker circuitBreaker = circuitBreaker(1, 100);
+        circuitBreaker.recordFailure();
+        Thread.sleep(150);
+        assertTrue(circuitBreaker.allowRequest());
+        
+        // the probe failed for a reason unrelated to the transport, so the deadline which has already passed still applies
+        circuitBreaker.recordIgnored();
+        assertEquals(State.OPEN, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+        
+        // an ignored outcome while closed changes nothing
+        circuitBreaker.recordSuccess();
+        circuitBreaker.recordIgnored();
+        assertEquals(State.CLOSED, circuitBreaker.getState());
+    }
+    
+    @Test
+    public void testAdmissionCoversProbeSiblings() throws Exception {
+        QueryMetricCircuitBreaker circuitBreaker = circuitBreaker(1, 100);
+        long closedAdmission = circuitBreaker.admit();
+        assertTrue(circuitBreaker.isAdmitted(closedAdmission));
+        
+        circuitBreaker.recordFailure();
+        assertEquals(-1L, circuitBreaker.admit());
+        assertFalse(circuitBreaker.isAdmitted(closedAdmission));
+        
+        // the bulk submission which is admitted as the probe covers all of its parts, while any other submission is still rejected
+        Thread.sleep(150);
+        long probeAdmission = circuitBreaker.admit();
+        assertTrue(probeAdmission >= 0);
+        assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+        assertTrue(circuitBreaker.isAdmitted(probeAdmission));
+        assertEquals(-1L, circuitBreaker.admit());
+        assertFalse(circuitBreaker.isAdmitted(closedAdmission));
+        
+        // once the probe fails, its admission no longer covers anything, even after the breaker is half open again
+        circuitBreaker.recordFailure();
+        assertFalse(circuitBreaker.isAdmitted(probeAdmission));
+        Thread.sleep(150);
+        assertTrue(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.isAdmitted(probeAdmission));
+        
+        circuitBreaker.recordSuccess();
+        assertTrue(circuitBreaker.isAdmitted(circuitBreaker.admit()));
+    }
+}
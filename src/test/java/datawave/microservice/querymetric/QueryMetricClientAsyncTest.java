@@ -0,0 +1,87 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult;
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+import reactor.core.Disposable;
+
+public class QueryMetricClientAsyncTest {
+    
+    @Test
+    public void testCancelledSubmitAsyncIsStillDelivered() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+        })) {
+            QueryMetricClient client = fixture.getClient();
+            fixture.getBinder().setAckLatencyMillis(200);
+            
+            CompletableFuture<SubmitResult> future = client.submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED));
+            assertTrue(future.cancel(true));
+            assertTrue(future.isCancelled());
+            
+            // the caller has stopped waiting, but the update is still delivered, and counted as in flight until it is
+            assertEquals(1, client.getInFlightCount());
+            QueryMetricTestSupport.await(() -> fixture.getBinder().getAckedCount() == 1 && client.getInFlightCount() == 0);
+            assertTrue(client.submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS).isSuccess());
+        }
+    }
+    
+    @Test
+    public void testCancelledSubmitMonoIsStillDelivered() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+        })) {
+            QueryMetricClient client = fixture.getClient();
+            fixture.getBinder().setAckLatencyMillis(200);
+            
+            Disposable subscription = client.submitMono(fixture.createRequest(1, QueryMetricType.DISTRIBUTED)).subscribe();
+            subscription.dispose();
+            
+            QueryMetricTestSupport.await(() -> fixture.getBinder().getAckedCount() == 1 && client.getInFlightCount() == 0);
+            assertEquals(1, fixture.getBinder().getReceivedCount());
+        }
+    }
+    
+    @Test
+    public void testSaturatedRestExecutorRunsOnCallingThread() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.REST);
+            properties.getRest().setMaxAsyncThreads(1);
+        })) {
+            QueryMetricClient client = fixture.getClient();
+            fixture.getService().setLatencyMillis(300);
+            
+            // the only REST thread is busy with the first post, so the second is made on the calling thread, and is done by the time it returns
+            CompletableFuture<SubmitResult> first = client.submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED));
+            CompletableFuture<SubmitResult> second = client.submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED));
+            assertTrue(second.isDone());
+            assertTrue(second.get().isSuccess());
+            assertTrue(first.get(10, TimeUnit.SECONDS).isSuccess());
+            assertEquals(2, fixture.getService().getRequestCount());
+        }
+    }
+    
+    @Test
+    public void testMessagesFromRestClientAreNotAcknowledged() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.REST);
+            properties.setConfirmAckTimeoutMillis(TimeUnit.SECONDS.toMillis(10));
+        })) {
+            // only a client configured for the message transport tracks confirm acks, so a message sent by any other isn't held up waiting for its ack
+            fixture.getBinder().setDropRate(1.0);
+            final long startTime = System.currentTimeMillis();
+            SubmitResult result = fixture.getClient().submitAsync(fixture.createRequest(2, QueryMetricType.DISTRIBUTED), QueryMetricTransportType.MESSAGE)
+                            .get(10, TimeUnit.SECONDS);
+            assertTrue(result.isSuccess());
+            assertTrue(System.currentTimeMillis() - startTime < TimeUnit.SECONDS.toMillis(5));
+            QueryMetricTestSupport.await(() -> fixture.getBinder().getReceivedCount() == 2);
+        }
+    }
+}
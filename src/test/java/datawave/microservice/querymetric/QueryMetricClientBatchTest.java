@@ -0,0 +1,115 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.util.MimeTypeUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties;
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+import datawave.microservice.querymetric.function.QueryMetricMessageSupplier.EmitOutcome;
+import datawave.microservice.querymetric.function.QueryMetricSupplier;
+
+public class QueryMetricClientBatchTest {
+    
+    @Test
+    public void testPartlyAcknowledgedBatchIsRetried() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+            properties.setConfirmAckTimeoutMillis(100);
+            properties.getRetry().setMaxAttempts(3);
+            properties.getRetry().setBackoffIntervalMillis(10);
+            properties.getBatch().setEnabled(true);
+            properties.getBatch().setMaxUpdates(5);
+            properties.getBatch().setMaxDelayMillis(1000);
+        })) {
+            // the ack for the batch which carries the second half of the updates is lost the first time it is sent
+            List<List<String>> batches = new CopyOnWriteArrayList<>();
+            List<String> contentTypes = new CopyOnWriteArrayList<>();
+            AtomicBoolean dropped = new AtomicBoolean();
+            fixture.getBinder().setDropFilter(message -> {
+                List<String> queryIds = queryIds(message);
+                batches.add(queryIds);
+                contentTypes.add(String.valueOf(message.getHeaders().get(MessageHeaders.CONTENT_TYPE)));
+                return queryIds.contains("benchmark-query-5") && dropped.compareAndSet(false, true);
+            });
+            
+            SubmitResult result = fixture.getClient().submitAsync(fixture.createRequest(10, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS);
+            assertTrue(result.isSuccess());
+            
+            // each batch went out as one packed message with one ack, and only the batch which wasn't acknowledged was resent
+            assertEquals(3, fixture.getBinder().getReceivedCount());
+            assertEquals(2, fixture.getBinder().getAckedCount());
+            List<String> firstHalf = List.of("benchmark-query-0", "benchmark-query-1", "benchmark-query-2", "benchmark-query-3", "benchmark-query-4");
+            List<String> secondHalf = List.of("benchmark-query-5", "benchmark-query-6", "benchmark-query-7", "benchmark-query-8", "benchmark-query-9");
+            assertEquals(1, Collections.frequency(batches, firstHalf));
+            assertEquals(2, Collections.frequency(batches, secondHalf));
+            
+            for (String contentType : contentTypes) {
+                assertEquals(QueryMetricMessageDelivery.BATCH_VERSION,
+                                MimeTypeUtils.parseMimeType(contentType).getParameter(QueryMetricMessageDelivery.BATCH_VERSION_PARAMETER));
+            }
+            
+            // the packed batches went out on the batch binding, so the update binding only ever carries single updates
+            assertEquals(3, fixture.getBatchSupplier().getOutcomeCount(EmitOutcome.EMITTED));
+            assertEquals(0, fixture.getSupplier().getOutcomeCount(EmitOutcome.EMITTED));
+        }
+    }
+    
+    @Test
+    public void testBatchesAreSentAsUpdatesWithoutBatchSource() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        QueryMetricClientProperties properties = new QueryMetricClientProperties();
+        properties.setTransport(QueryMetricTransportType.MESSAGE);
+        properties.getBatch().setEnabled(true);
+        properties.getBatch().setMaxUpdates(5);
+        QueryMetricSupplier supplier = new QueryMetricSupplier(properties.getSource());
+        QueryMetricClient client = new QueryMetricClient(new RestTemplateBuilder(), properties, supplier, objectMapper,
+                        QueryMetricTestSupport.createJwtTokenHandler(objectMapper));
+        try (StubConfirmAckBinder binder = new StubConfirmAckBinder(supplier, client).start()) {
+            List<Object> payloads = new CopyOnWriteArrayList<>();
+            binder.setDropFilter(message -> {
+                payloads.add(message.getPayload());
+                return false;
+            });
+            
+            // @formatter:off
+            QueryMetricClient.Request request = new QueryMetricClient.Request.Builder()
+                    .withMetrics(QueryMetricTestSupport.createMetrics(10))
+                    .withMetricType(QueryMetricType.DISTRIBUTED)
+                    .withUser(QueryMetricTestSupport.createUser())
+                    .build();
+            // @formatter:on
+            SubmitResult result = client.submitAsync(request).get(10, TimeUnit.SECONDS);
+            assertTrue(result.isSuccess());
+            assertEquals(10, binder.getAckedCount());
+            for (Object payload : payloads) {
+                assertTrue(payload instanceof QueryMetricUpdate, "Unexpected payload " + payload);
+            }
+        } finally {
+            client.destroy();
+        }
+    }
+    
+    private static List<String> queryIds(Message<?> message) {
+        List<String> queryIds = new ArrayList<>();
+        for (Object update : (List<?>) message.getPayload()) {
+            queryIds.add(((QueryMetricUpdate) update).getMetric().getQueryId());
+        }
+        return queryIds;
+    }
+}
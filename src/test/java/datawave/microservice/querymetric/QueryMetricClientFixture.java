@@ -0,0 +1,101 @@
+package datawave.microservice.querymetric;
+
+import java.util.function.Consumer;
+
+import org.springframework.boot.web.client.RestTemplateBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import datawave.microservice.authorization.user.DatawaveUserDetails;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties;
+import datawave.microservice.querymetric.function.QueryMetricBatchSupplier;
+import datawave.microservice.querymetric.function.QueryMetricSupplier;
+
+/**
+ * A {@link QueryMetricClient} wired to a {@link StubQueryMetricService} and a {@link StubConfirmAckBinder}, so that both transports can be exercised without a
+ * query metric service or a broker
+ */
+public class QueryMetricClientFixture implements AutoCloseable {
+    
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    
+    private final QueryMetricClientProperties properties = new QueryMetricClientProperties();
+    
+    private final StubQueryMetricService service;
+    
+    private final QueryMetricSupplier supplier;
+    
+    // only created when batching is enabled, as the source configuration creates it
+    private final QueryMetricBatchSupplier batchSupplier;
+    
+    private final QueryMetricClient client;
+    
+    private final StubConfirmAckBinder binder;
+    
+    private final DatawaveUserDetails user = QueryMetricTestSupport.createUser();
+    
+    /**
+     * @param customizer
+     *            applied to the client properties after they have been pointed at the stub service, not null
+     * @throws Exception
+     *             if the stubs can't be started
+     */
+    public QueryMetricClientFixture(Consumer<QueryMetricClientProperties> customizer) throws Exception {
+        this.service = new StubQueryMetricService(Runtime.getRuntime().availableProcessors());
+        properties.setScheme("http");
+        properties.setHost(service.getHost());
+        properties.setPort(service.getPort());
+        customizer.accept(properties);
+        
+        this.supplier = new QueryMetricSupplier(properties.getSource());
+        this.batchSupplier = properties.getBatch().isEnabled() ? new QueryMetricBatchSupplier(properties.getSource()) : null;
+        this.client = new QueryMetricClient(new RestTemplateBuilder(), properties, supplier, batchSupplier, objectMapper,
+                        QueryMetricTestSupport.createJwtTokenHandler(objectMapper), null, null);
+        this.binder = new StubConfirmAckBinder(supplier, batchSupplier, client).start();
+    }
+    
+    public QueryMetricClient.Request createRequest(int metrics, QueryMetricType metricType) {
+        // @formatter:off
+        return new QueryMetricClient.Request.Builder()
+                .withMetrics(QueryMetricTestSupport.createMetrics(metrics))
+                .withMetricType(metricType)
+                .withUser(user)
+                .build();
+        // @formatter:on
+    }
+    
+    public ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+    
+    public QueryMetricClientProperties getProperties() {
+        return properties;
+    }
+    
+    public StubQueryMetricService getService() {
+        return service;
+    }
+    
+    public QueryMetricSupplier getSupplier() {
+        return supplier;
+    }
+    
+    public QueryMetricBatchSupplier getBatchSupplier() {
+        return batchSupplier;
+    }
+    
+    public QueryMetricClient getClient() {
+        return client;
+    }
+    
+    public StubConfirmAckBinder getBinder() {
+        return binder;
+    }
+    
+    @Override
+    public void close() {
+        binder.close();
+        service.close();
+        client.destroy();
+    }
+}
@@ -0,0 +1,158 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult;
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+
+public class QueryMetricClientLifecycleTest {
+    
+    @Test
+    public void testStopDeliversCoalescedUpdates() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+            properties.getCoalesce().setEnabled(true);
+            properties.getCoalesce().setWindowMillis(TimeUnit.MINUTES.toMillis(1));
+        })) {
+            QueryMetricClient client = fixture.getClient();
+            client.start();
+            assertTrue(client.isRunning());
+            
+            // the update is held for far longer than the test runs, so only stopping the client can deliver it
+            CompletableFuture<SubmitResult> future = client.submitAsync(fixture.createRequest(1, QueryMetricType.COMPLETE));
+            assertFalse(future.isDone());
+            assertEquals(0, fixture.getBinder().getReceivedCount());
+            
+            client.stop();
+            assertFalse(client.isRunning());
+            assertEquals(0, client.getInFlightCount());
+            assertEquals(1, fixture.getBinder().getAckedCount());
+            assertTrue(future.get(10, TimeUnit.SECONDS).isSuccess());
+        }
+    }
+    
+    @Test
+    public void testStopWaitsForOutstandingConfirmAcks() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+            properties.setConfirmAckTimeoutMillis(TimeUnit.SECONDS.toMillis(10));
+        })) {
+            QueryMetricClient client = fixture.getClient();
+            client.start();
+            fixture.getBinder().setAckLatencyMillis(300);
+            
+            CompletableFuture<SubmitResult> future = client.submitAsync(fixture.createRequest(2, QueryMetricType.DISTRIBUTED));
+            assertEquals(1, client.getInFlightCount());
+            
+            client.stop();
+            assertEquals(0, client.getInFlightCount());
+            assertEquals(2, fixture.getBinder().getAckedCount());
+            assertTrue(future.get(10, TimeUnit.SECONDS).isSuccess());
+        }
+    }
+    
+    @Test
+    public void testStopGivesUpAfterDrainTimeout() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+            properties.setConfirmAckTimeoutMillis(TimeUnit.SECONDS.toMillis(10));
+            properties.getRetry().setMaxAttempts(1);
+            properties.getLifecycle().setDrainTimeoutMillis(200);
+        })) {
+            QueryMetricClient client = fixture.getClient();
+            client.start();
+            fixture.getBinder().setDropRate(1.0);
+            
+            CompletableFuture<SubmitResult> future = client.submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED));
+            QueryMetricTestSupport.await(() -> fixture.getBinder().getReceivedCount() == 1);
+            
+            // the ack never arrives, so the client stops once the drain timeout has passed rather than waiting out the confirm ack timeout
+            final long startTime = System.currentTimeMillis();
+            client.stop();
+            long elapsedMillis = System.currentTimeMillis() - startTime;
+            assertTrue(elapsedMillis >= 200 && elapsedMillis < TimeUnit.SECONDS.toMillis(5), "Stopping took " + elapsedMillis + "ms");
+            assertFalse(client.isRunning());
+            assertFalse(future.isDone());
+            assertEquals(1, client.getInFlightCount());
+        }
+    }
+    
+    @Test
+    public void testWarmUpPrimesRestConnections() throws Exception {
+        for (QueryMetricTransportType transportType : List.of(QueryMetricTransportType.REST, QueryMetricTransportType.REACTIVE_REST)) {
+            try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+                properties.setTransport(transportType);
+                properties.getLifecycle().setWarmUpEnabled(true);
+            })) {
+                // the connection is established before start returns, so the application isn't reported ready until it is
+                fixture.getClient().start();
+                assertTrue(fixture.getService().getRequestCount() >= 1, transportType + " connection was not primed");
+                
+                long requests = fixture.getService().getRequestCount();
+                assertTrue(fixture.getClient().submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS).isSuccess());
+                assertEquals(requests + 1, fixture.getService().getRequestCount());
+            }
+        }
+    }
+    
+    @Test
+    public void testWarmUpIsOptional() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.REST);
+        })) {
+            fixture.getClient().start();
+            assertTrue(fixture.getClient().isRunning());
+            assertEquals(0, fixture.getService().getRequestCount());
+        }
+    }
+    
+    @Test
+    public void testWarmUpGivesUpAfterTimeout() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.REST);
+            properties.getLifecycle().setWarmUpEnabled(true);
+            properties.getLifecycle().setWarmUpTimeoutMillis(200);
+        })) {
+            // a slow service doesn't hold up startup for longer than the warm up timeout
+            fixture.getService().setLatencyMillis(TimeUnit.SECONDS.toMillis(5));
+            final long startTime = System.currentTimeMillis();
+            fixture.getClient().start();
+            long elapsedMillis = System.currentTimeMillis() - startTime;
+            assertTrue(elapsedMillis < TimeUnit.SECONDS.toMillis(3), "Warming up took " + elapsedMillis + "ms");
+            assertTrue(fixture.getClient().isRunning());
+        }
+    }
+    
+    @Test
+    public void testRestClientOnlyStartsRestThreads() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.REST);
+        })) {
+            long schedulerThreads = countThreads("query-metric-client-scheduler-");
+            long sendThreads = countThreads("query-metric-client-send-");
+            QueryMetricClient client = fixture.getClient();
+            client.start();
+            client.submit(fixture.createRequest(1, QueryMetricType.DISTRIBUTED));
+            assertTrue(client.submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS).isSuccess());
+            
+            // the timer and send threads are only needed by the message transport and by coalescing, batching and spooling
+            assertTrue(countThreads("query-metric-client-scheduler-") <= schedulerThreads);
+            assertTrue(countThreads("query-metric-client-send-") <= sendThreads);
+            assertTrue(countThreads("query-metric-client-rest-") > 0);
+        }
+    }
+    
+    private static long countThreads(String prefix) {
+        Set<Thread> threads = Thread.getAllStackTraces().keySet();
+        return threads.stream().filter(thread -> thread.isAlive() && thread.getName().startsWith(prefix)).count();
+    }
+}
@@ -0,0 +1,198 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import datawave.microservice.querymetric.QueryMetricCircuitBreaker.State;
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult;
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult.Outcome;
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+
+public class QueryMetricClientOutageTest {
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    public void testRecoveryAfterOutage() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+            properties.setConfirmAckTimeoutMillis(100);
+            properties.getRetry().setMaxAttempts(2);
+            properties.getRetry().setBackoffIntervalMillis(10);
+            properties.getSpool().setEnabled(true);
+            properties.getSpool().setDirectory(directory.toString());
+            properties.getSpool().setDrainIntervalMillis(50);
+            properties.getCircuitBreaker().setEnabled(true);
+            properties.getCircuitBreaker().setFailureThreshold(2);
+            properties.getCircuitBreaker().setOpenDurationMillis(300);
+        })) {
+            QueryMetricClient client = fixture.getClient();
+            QueryMetricCircuitBreaker circuitBreaker = client.getCircuitBreaker(QueryMetricTransportType.MESSAGE);
+            
+            // the broker stops acknowledging, so every update is spooled rather than failed
+            fixture.getBinder().setDropRate(1.0);
+            List<CompletableFuture<SubmitResult>> futures = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                futures.add(client.submitAsync(fixture.createRequest(2, QueryMetricType.DISTRIBUTED)));
+            }
+            for (CompletableFuture<SubmitResult> future : futures) {
+                SubmitResult result = future.get(10, TimeUnit.SECONDS);
+                assertEquals(Outcome.SPOOLED, result.getOutcome());
+                assertFalse(result.isSuccess());
+                assertTrue(result.isSpooled());
+            }
+            assertEquals(10, client.getSpool().getPendingCount());
+            assertEquals(State.OPEN, circuitBreaker.getState());
+            
+            // while the outage lasts, a drain of the spool probes the broker once the breaker's open duration has passed, and the probe's failure opens
+            // the breaker again without losing anything from the spool
+            long received = fixture.getBinder().getReceivedCount();
+            QueryMetricTestSupport.await(() -> fixture.getBinder().getReceivedCount() > received && circuitBreaker.getState() == State.OPEN);
+            assertEquals(10, client.getSpool().getPendingCount());
+            
+            // once the broker is back, a probe closes the breaker and the spool is drained
+            long acked = fixture.getBinder().getAckedCount();
+            fixture.getBinder().setDropRate(0.0);
+            QueryMetricTestSupport.await(() -> client.getSpool().getPendingCount() == 0);
+            assertEquals(State.CLOSED, circuitBreaker.getState());
+            assertTrue(fixture.getBinder().getAckedCount() - acked >= 10);
+            
+            SubmitResult result = client.submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS);
+            assertEquals(Outcome.DELIVERED, result.getOutcome());
+            assertTrue(result.isSuccess());
+            assertFalse(result.isSpooled());
+        }
+    }
+    
+    @Test
+    public void testUpdatesAreSpooledOnceRetriesRunOut() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+            properties.setConfirmAckTimeoutMillis(100);
+            properties.getRetry().setMaxAttempts(3);
+            properties.getRetry().setBackoffIntervalMillis(10);
+            properties.getSpool().setEnabled(true);
+            properties.getSpool().setDirectory(directory.toString());
+            properties.getSpool().setDrainIntervalMillis(TimeUnit.MINUTES.toMillis(1));
+        })) {
+            fixture.getBinder().setDropRate(1.0);
+            
+            // without spool-after-attempts, every retry is made before the update is spooled
+            SubmitResult result = fixture.getClient().submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS);
+            assertEquals(Outcome.SPOOLED, result.getOutcome());
+            assertEquals(3, result.getAttempts());
+            assertEquals(3, fixture.getBinder().getReceivedCount());
+            assertEquals(1, fixture.getClient().getSpool().getPendingCount());
+            
+            // and with it, the update is spooled as soon as that many attempts have failed
+            fixture.getProperties().getSpool().setSpoolAfterAttempts(1);
+            result = fixture.getClient().submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS);
+            assertEquals(Outcome.SPOOLED, result.getOutcome());
+            assertEquals(1, result.getAttempts());
+            assertEquals(4, fixture.getBinder().getReceivedCount());
+            assertEquals(2, fixture.getClient().getSpool().getPendingCount());
+        }
+    }
+    
+    @Test
+    public void testUpdatesWhichCantBeSpooledFail() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+            properties.setConfirmAckTimeoutMillis(100);
+            properties.getRetry().setMaxAttempts(1);
+            properties.getSpool().setEnabled(true);
+            properties.getSpool().setDirectory(directory.toString());
+            properties.getSpool().setDrainIntervalMillis(TimeUnit.MINUTES.toMillis(1));
+            // only room for one update
+            properties.getSpool().setSegmentSizeBytes(1);
+            properties.getSpool().setMaxSegments(1);
+        })) {
+            fixture.getBinder().setDropRate(1.0);
+            
+            // one update of the request is spooled and the other is lost, so the request as a whole has failed
+            SubmitResult result = fixture.getClient().submitAsync(fixture.createRequest(2, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS);
+            assertEquals(Outcome.FAILED, result.getOutcome());
+            assertFalse(result.isSpooled());
+            assertEquals(1, fixture.getClient().getSpool().getPendingCount());
+        }
+    }
+    
+    @Test
+    public void testBulkUpdateCountsOnceTowardsBreaker() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+            properties.setConfirmAckTimeoutMillis(100);
+            properties.getRetry().setMaxAttempts(1);
+            properties.getCircuitBreaker().setEnabled(true);
+            properties.getCircuitBreaker().setFailureThreshold(2);
+        })) {
+            QueryMetricCircuitBreaker circuitBreaker = fixture.getClient().getCircuitBreaker(QueryMetricTransportType.MESSAGE);
+            fixture.getBinder().setDropRate(1.0);
+            
+            // none of the twenty updates is acknowledged, but they were submitted together
+            SubmitResult result = fixture.getClient().submitAsync(fixture.createRequest(20, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS);
+            assertFalse(result.isSuccess());
+            assertEquals(State.CLOSED, circuitBreaker.getState());
+            
+            fixture.getClient().submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS);
+            assertEquals(State.OPEN, circuitBreaker.getState());
+        }
+    }
+    
+    @Test
+    public void testPartlyAcknowledgedBulkUpdateIsNotABreakerFailure() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+            properties.setConfirmAckTimeoutMillis(100);
+            properties.getRetry().setMaxAttempts(1);
+            properties.getCircuitBreaker().setEnabled(true);
+            properties.getCircuitBreaker().setFailureThreshold(1);
+        })) {
+            QueryMetricCircuitBreaker circuitBreaker = fixture.getClient().getCircuitBreaker(QueryMetricTransportType.MESSAGE);
+            fixture.getBinder().setDropRate(0.5);
+            
+            // some acks time out, but the rest show that the transport is up
+            for (int i = 0; i < 5; i++) {
+                fixture.getClient().submitAsync(fixture.createRequest(20, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS);
+                assertEquals(State.CLOSED, circuitBreaker.getState());
+            }
+        }
+    }
+    
+    @Test
+    public void testBulkUpdateIsAdmittedAsOneProbe() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+            properties.setConfirmAckTimeoutMillis(100);
+            properties.getRetry().setMaxAttempts(1);
+            properties.getCircuitBreaker().setEnabled(true);
+            properties.getCircuitBreaker().setFailureThreshold(1);
+            properties.getCircuitBreaker().setOpenDurationMillis(200);
+        })) {
+            QueryMetricCircuitBreaker circuitBreaker = fixture.getClient().getCircuitBreaker(QueryMetricTransportType.MESSAGE);
+            fixture.getBinder().setDropRate(1.0);
+            assertFalse(fixture.getClient().submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS).isSuccess());
+            assertEquals(State.OPEN, circuitBreaker.getState());
+            
+            // once the open duration has passed, the whole bulk update goes through as the probe, rather than only its first update
+            fixture.getBinder().setDropRate(0.0);
+            Thread.sleep(250);
+            long acked = fixture.getBinder().getAckedCount();
+            SubmitResult result = fixture.getClient().submitAsync(fixture.createRequest(10, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS);
+            assertTrue(result.isSuccess());
+            assertEquals(10, fixture.getBinder().getAckedCount() - acked);
+            assertEquals(State.CLOSED, circuitBreaker.getState());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.MimeType;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import datawave.microservice.querymetric.config.QueryMetricCodecType;
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+
+/**
+ * Checks that the REST transport posts the same body whether it is streamed or not, whichever request factory and codec it is sent with
+ */
+public class QueryMetricClientStreamingTest {
+    
+    @Test
+    public void testStreamedBodyMatchesBufferedBody() throws Exception {
+        for (QueryMetricCodecType codecType : QueryMetricCodecType.values()) {
+            for (boolean pooled : List.of(false, true)) {
+                assertRequestBody(codecType, false, false, pooled);
+                assertRequestBody(codecType, true, false, pooled);
+            }
+        }
+    }
+    
+    @Test
+    public void testStreamedBodyIsGzipped() throws Exception {
+        for (QueryMetricCodecType codecType : QueryMetricCodecType.values()) {
+            for (boolean pooled : List.of(false, true)) {
+                assertRequestBody(codecType, true, true, pooled);
+            }
+        }
+    }
+    
+    private static void assertRequestBody(QueryMetricCodecType codecType, boolean streaming, boolean gzipEnabled, boolean pooled) throws Exception {
+        String description = codecType + (streaming ? " streamed" : " buffered") + (gzipEnabled ? " gzipped" : "") + (pooled ? " pooled" : "");
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.REST);
+            properties.setCodec(codecType);
+            properties.getRest().setStreaming(streaming);
+            properties.getRest().setGzipEnabled(gzipEnabled);
+            properties.getRest().setPooled(pooled);
+        })) {
+            List<BaseQueryMetric> metrics = QueryMetricTestSupport.createMetrics(3);
+            // @formatter:off
+            QueryMetricClient.Request request = new QueryMetricClient.Request.Builder()
+                    .withMetrics(metrics)
+                    .withMetricType(QueryMetricType.COMPLETE)
+                    .withUser(QueryMetricTestSupport.createUser())
+                    .build();
+            // @formatter:on
+            assertTrue(fixture.getClient().submitAsync(request).get(10, TimeUnit.SECONDS).isSuccess(), description);
+            
+            StubQueryMetricService.Request received = fixture.getService().getLastRequest();
+            QueryMetricCodec codec = JacksonQueryMetricCodec.create(codecType, fixture.getObjectMapper());
+            assertTrue(codec.getContentType().equalsTypeAndSubtype(MimeType.valueOf(received.getContentType())), description + " " + received.getContentType());
+            if (gzipEnabled) {
+                assertEquals("gzip", received.getContentEncoding(), description);
+            } else {
+                assertNull(received.getContentEncoding(), description);
+            }
+            // the stub service has already decompressed the body
+            JsonNode expected = codec.read(codec.encode(metrics), JsonNode.class);
+            assertEquals(expected, codec.read(received.getBody(), JsonNode.class), description);
+        }
+    }
+}
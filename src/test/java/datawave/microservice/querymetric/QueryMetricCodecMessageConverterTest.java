@@ -0,0 +1,91 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.messaging.support.GenericMessage;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import datawave.microservice.querymetric.config.QueryMetricCodecType;
+
+public class QueryMetricCodecMessageConverterTest {
+    
+    // configured as Spring Boot configures the application's object mapper
+    private final ObjectMapper objectMapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    
+    private final QueryMetricCodecMessageConverter converter = new QueryMetricCodecMessageConverter(
+                    JacksonQueryMetricCodec.create(QueryMetricCodecType.SMILE, objectMapper));
+    
+    private static MessageHeaders headers(MimeType contentType) {
+        return new MessageHeaders(contentType != null ? Collections.singletonMap(MessageHeaders.CONTENT_TYPE, contentType.toString()) : null);
+    }
+    
+    @Test
+    public void testSmileRoundTrip() {
+        QueryMetric metric = QueryMetricTestSupport.createMetric(0);
+        Message<?> message = converter.toMessage(metric, headers(JacksonQueryMetricCodec.APPLICATION_SMILE));
+        byte[] payload = (byte[]) message.getPayload();
+        assertArrayEquals(":)\n".getBytes(StandardCharsets.US_ASCII), Arrays.copyOf(payload, 3));
+        
+        JacksonQueryMetricCodecTest.assertMetricEquals(metric, (QueryMetric) converter.fromMessage(message, QueryMetric.class));
+    }
+    
+    @Test
+    public void testUpdateRoundTrip() {
+        QueryMetricUpdate update = new QueryMetricUpdate(QueryMetricTestSupport.createMetric(0), QueryMetricType.COMPLETE);
+        Message<?> message = converter.toMessage(update, headers(JacksonQueryMetricCodec.APPLICATION_SMILE));
+        
+        JsonNode node = (JsonNode) converter.fromMessage(message, JsonNode.class);
+        assertEquals(QueryMetricType.COMPLETE.name(), node.path("metricType").asText());
+        assertEquals(update.getMetric().getQueryId(), node.path("metric").path("queryId").asText());
+    }
+    
+    @Test
+    public void testBatchContentTypeIsHandled() {
+        // batches are sent with a version parameter on the codec's content type
+        MimeType batchContentType = new MimeType(JacksonQueryMetricCodec.APPLICATION_SMILE,
+                        Collections.singletonMap(QueryMetricMessageDelivery.BATCH_VERSION_PARAMETER, QueryMetricMessageDelivery.BATCH_VERSION));
+        List<QueryMetricUpdate> updates = List.of(new QueryMetricUpdate(QueryMetricTestSupport.createMetric(0), QueryMetricType.DISTRIBUTED),
+                        new QueryMetricUpdate(QueryMetricTestSupport.createMetric(1), QueryMetricType.DISTRIBUTED));
+        Message<?> message = converter.toMessage(updates, headers(batchContentType));
+        
+        JsonNode node = (JsonNode) converter.fromMessage(message, JsonNode.class);
+        assertTrue(node.isArray());
+        assertEquals(2, node.size());
+        assertEquals("benchmark-query-1", node.get(1).path("metric").path("queryId").asText());
+    }
+    
+    @Test
+    public void testOtherContentTypesAreLeftToOtherConverters() {
+        QueryMetric metric = QueryMetricTestSupport.createMetric(0);
+        assertNull(converter.toMessage(metric, headers(MimeTypeUtils.APPLICATION_JSON)));
+        assertNull(converter.toMessage(metric, headers(null)));
+        
+        byte[] json = "{\"queryId\":\"query-0\"}".getBytes(StandardCharsets.UTF_8);
+        assertNull(converter.fromMessage(new GenericMessage<>(json, headers(MimeTypeUtils.APPLICATION_JSON)), QueryMetric.class));
+    }
+    
+    @Test
+    public void testMalformedPayloadIsRejected() {
+        byte[] payload = "not smile".getBytes(StandardCharsets.UTF_8);
+        Message<byte[]> message = new GenericMessage<>(payload, headers(JacksonQueryMetricCodec.APPLICATION_SMILE));
+        assertThrows(MessageConversionException.class, () -> converter.fromMessage(message, QueryMetric.class));
+    }
+}
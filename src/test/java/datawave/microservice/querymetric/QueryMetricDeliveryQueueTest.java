@@ -0,0 +1,67 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.FireAndForget;
+
+public class QueryMetricDeliveryQueueTest {
+    
+    @Test
+    public void testShutdownCompletesQueuedSubmissions() throws Exception {
+        FireAndForget fireAndForget = new FireAndForget();
+        fireAndForget.setWorkerThreads(1);
+        fireAndForget.setMaxInFlight(1);
+        fireAndForget.setVirtualThreads(false);
+        
+        // deliveries which never complete, so that the first submission holds the whole in-flight window
+        List<CompletableFuture<SubmitResult>> deliveries = new CopyOnWriteArrayList<>();
+        QueryMetricDeliveryQueue deliveryQueue = new QueryMetricDeliveryQueue(fireAndForget, updates -> {
+            CompletableFuture<SubmitResult> delivery = new CompletableFuture<>();
+            deliveries.add(delivery);
+            return delivery;
+        });
+        
+        CompletableFuture<SubmitResult> inFlight = deliveryQueue.offer(updates());
+        CompletableFuture<SubmitResult> waiting = deliveryQueue.offer(updates());
+        CompletableFuture<SubmitResult> queued = deliveryQueue.offer(updates());
+        QueryMetricTestSupport.await(() -> deliveries.size() == 1 && deliveryQueue.size() == 1);
+        
+        deliveryQueue.shutdown();
+        assertShutDown(queued);
+        QueryMetricTestSupport.await(waiting::isDone);
+        assertTrue(waiting.isCompletedExceptionally());
+        assertEquals(0, deliveryQueue.size());
+        
+        // a submission which was handed off is still completed by its delivery
+        assertFalse(inFlight.isDone());
+        deliveries.get(0).complete(new SubmitResult(true, 1, 0L));
+        assertTrue(inFlight.get().isSuccess());
+        
+        // a submission made once the queue has been shut down completes exceptionally straight away
+        assertShutDown(deliveryQueue.offer(updates()));
+        assertTrue(deliveryQueue.isIdle());
+    }
+    
+    private static void assertShutDown(CompletableFuture<SubmitResult> future) {
+        assertTrue(future.isDone());
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    
+    private static List<QueryMetricUpdate> updates() {
+        QueryMetric metric = new QueryMetric();
+        metric.setQueryId("query-0");
+        return List.of(new QueryMetricUpdate(metric, QueryMetricType.DISTRIBUTED));
+    }
+}
@@ -0,0 +1,107 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties;
+
+public class QueryMetricDeltaEncoderTest {
+    
+    private QueryMetricDeltaEncoder encoder;
+    
+    @BeforeEach
+    public void setup() {
+        QueryMetricClientProperties properties = new QueryMetricClientProperties();
+        properties.getDelta().setFullSnapshotInterval(100);
+        encoder = new QueryMetricDeltaEncoder(properties);
+    }
+    
+    @Test
+    public void testFirstUpdateIsFullSnapshot() {
+        BaseQueryMetric metric = metric(1, 2);
+        assertSame(metric, encoder.encode(metric, QueryMetricType.DISTRIBUTED));
+    }
+    
+    @Test
+    public void testAppendedPagesAreSent() {
+        encoder.encode(metric(1, 2), QueryMetricType.DISTRIBUTED);
+        assertEquals(List.of(3L, 4L), pageNumbers(encoder.encode(metric(1, 2, 3, 4), QueryMetricType.DISTRIBUTED)));
+    }
+    
+    @Test
+    public void testRepeatedSameSizePageLists() {
+        encoder.encode(metric(1, 2, 3), QueryMetricType.DISTRIBUTED);
+        
+        // the same pages again carry nothing new
+        assertEquals(List.of(), pageNumbers(encoder.encode(metric(1, 2, 3), QueryMetricType.DISTRIBUTED)));
+        
+        // a list of the same size whose oldest pages have been replaced by new ones
+        assertEquals(List.of(4L, 5L), pageNumbers(encoder.encode(metric(3, 4, 5), QueryMetricType.DISTRIBUTED)));
+        assertEquals(List.of(6L, 7L, 8L), pageNumbers(encoder.encode(metric(6, 7, 8), QueryMetricType.DISTRIBUTED)));
+    }
+    
+    @Test
+    public void testTrimmedPageListOnlySendsNewPages() {
+        encoder.encode(metric(1, 2, 3, 4), QueryMetricType.DISTRIBUTED);
+        assertEquals(List.of(5L), pageNumbers(encoder.encode(metric(4, 5), QueryMetricType.DISTRIBUTED)));
+    }
+    
+    @Test
+    public void testUnnumberedPagesSendFullSnapshot() {
+        encoder.encode(metric(1), QueryMetricType.DISTRIBUTED);
+        BaseQueryMetric metric = metric(1, -1);
+        assertSame(metric, encoder.encode(metric, QueryMetricType.DISTRIBUTED));
+    }
+    
+    @Test
+    public void testResetSendsFullSnapshot() {
+        encoder.encode(metric(1), QueryMetricType.DISTRIBUTED);
+        encoder.reset("query");
+        BaseQueryMetric metric = metric(1, 2);
+        assertSame(metric, encoder.encode(metric, QueryMetricType.DISTRIBUTED));
+    }
+    
+    @Test
+    public void testFullSnapshotInterval() {
+        QueryMetricClientProperties properties = new QueryMetricClientProperties();
+        properties.getDelta().setFullSnapshotInterval(2);
+        QueryMetricDeltaEncoder encoder = new QueryMetricDeltaEncoder(properties);
+        
+        encoder.encode(metric(1), QueryMetricType.DISTRIBUTED);
+        assertEquals(List.of(2L), pageNumbers(encoder.encode(metric(1, 2), QueryMetricType.DISTRIBUTED)));
+        BaseQueryMetric metric = metric(1, 2, 3);
+        assertSame(metric, encoder.encode(metric, QueryMetricType.DISTRIBUTED));
+        assertEquals(List.of(4L), pageNumbers(encoder.encode(metric(1, 2, 3, 4), QueryMetricType.DISTRIBUTED)));
+    }
+    
+    @Test
+    public void testOtherMetricTypesAreNotEncoded() {
+        encoder.encode(metric(1), QueryMetricType.DISTRIBUTED);
+        BaseQueryMetric metric = metric(1, 2);
+        assertSame(metric, encoder.encode(metric, QueryMetricType.COMPLETE));
+    }
+    
+    private static BaseQueryMetric metric(long... pageNumbers) {
+        QueryMetric metric = new QueryMetric();
+        metric.setQueryId("query");
+        List<BaseQueryMetric.PageMetric> pages = new ArrayList<>();
+        for (long pageNumber : pageNumbers) {
+            BaseQueryMetric.PageMetric page = new BaseQueryMetric.PageMetric();
+            page.setPageNumber(pageNumber);
+            pages.add(page);
+        }
+        metric.setPageTimes(pages);
+        return metric;
+    }
+    
+    private static List<Long> pageNumbers(BaseQueryMetric metric) {
+        return metric.getPageTimes().stream().map(BaseQueryMetric.PageMetric::getPageNumber).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,118 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import datawave.microservice.querymetric.QueryMetricEndpointSelector.Endpoint;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties;
+import datawave.microservice.querymetric.config.QueryMetricLoadBalancingPolicy;
+
+public class QueryMetricEndpointSelectorTest {
+    
+    private static QueryMetricClientProperties properties(String... endpoints) {
+        QueryMetricClientProperties properties = new QueryMetricClientProperties();
+        properties.setPort(8443);
+        properties.getRest().setEndpoints(Arrays.asList(endpoints));
+        properties.getRest().setEjectAfterFailures(2);
+        properties.getRest().setEjectionMillis(60000);
+        return properties;
+    }
+    
+    private static List<String> endpoints(QueryMetricEndpointSelector selector) {
+        return selector.getEndpoints().stream().map(Endpoint::toString).collect(Collectors.toList());
+    }
+    
+    @Test
+    public void testParsesEndpoints() {
+        QueryMetricEndpointSelector selector = new QueryMetricEndpointSelector(
+                        properties("metrics-1", "metrics-2:9443", "10.0.0.1:80", "[::1]", "[fe80::1]:9443", "fe80::2"));
+        assertEquals(List.of("metrics-1:8443", "metrics-2:9443", "10.0.0.1:80", "[::1]:8443", "[fe80::1]:9443", "[fe80::2]:8443"), endpoints(selector));
+        
+        // IPv6 hosts keep their brackets, so that they can be used in a URI as they are
+        assertEquals("[fe80::1]", selector.getEndpoints().get(4).getHost());
+        assertEquals(9443, selector.getEndpoints().get(4).getPort());
+    }
+    
+    @Test
+    public void testDefaultsToTopLevelHostAndPort() {
+        QueryMetricClientProperties properties = properties();
+        properties.setHost("::1");
+        assertEquals(List.of("[::1]:8443"), endpoints(new QueryMetricEndpointSelector(properties)));
+    }
+    
+    @Test
+    public void testRejectsMalformedEndpoints() {
+        for (String endpoint : List.of("metrics-1:https", "metrics-1:", "metrics-1:70000", ":9443", "[::1", "[::1]9443", "[]:9443")) {
+            IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> new QueryMetricEndpointSelector(properties(endpoint)));
+            assertTrue(e.getMessage().contains("'" + endpoint + "'"), e.getMessage());
+        }
+    }
+    
+    @Test
+    public void testConsistentHashKeepsQueriesTogether() {
+        QueryMetricEndpointSelector selector = new QueryMetricEndpointSelector(properties("metrics-1", "metrics-2", "metrics-3"));
+        for (int i = 0; i < 20; i++) {
+            List<BaseQueryMetric> metrics = List.of(metric("query-" + i), metric("query-" + i));
+            Map<Endpoint,List<BaseQueryMetric>> shards = selector.partition(metrics);
+            assertEquals(1, shards.size());
+            assertEquals(shards.keySet(), selector.partition(List.of(metric("query-" + i))).keySet());
+        }
+    }
+    
+    @Test
+    public void testFailingEndpointIsEjected() {
+        QueryMetricEndpointSelector selector = new QueryMetricEndpointSelector(properties("metrics-1", "metrics-2"));
+        List<BaseQueryMetric> metrics = List.of(metric("query-0"));
+        Endpoint home = selector.partition(metrics).keySet().iterator().next();
+        
+        // a success in between resets the count of consecutive failures
+        fail(home);
+        home.begin();
+        home.end(true);
+        fail(home);
+        assertEquals(home, selector.partition(metrics).keySet().iterator().next());
+        
+        // the query's updates move to the other endpoint while its own is ejected
+        fail(home);
+        Endpoint fallback = selector.partition(metrics).keySet().iterator().next();
+        assertNotEquals(home, fallback);
+        
+        // with every endpoint ejected, they are used regardless
+        fail(fallback);
+        fail(fallback);
+        assertEquals(home, selector.partition(metrics).keySet().iterator().next());
+    }
+    
+    @Test
+    public void testLeastOutstanding() {
+        QueryMetricClientProperties properties = properties("metrics-1", "metrics-2");
+        properties.getRest().setLoadBalancingPolicy(QueryMetricLoadBalancingPolicy.LEAST_OUTSTANDING);
+        QueryMetricEndpointSelector selector = new QueryMetricEndpointSelector(properties);
+        Endpoint busy = selector.getEndpoints().get(0);
+        busy.begin();
+        
+        for (int i = 0; i < 10; i++) {
+            assertEquals(selector.getEndpoints().get(1), selector.partition(List.of(metric("query-" + i))).keySet().iterator().next());
+        }
+    }
+    
+    private static void fail(Endpoint endpoint) {
+        endpoint.begin();
+        endpoint.end(false);
+    }
+    
+    private static BaseQueryMetric metric(String queryId) {
+        QueryMetric metric = new QueryMetric();
+        metric.setQueryId(queryId);
+        return metric;
+    }
+}
@@ -0,0 +1,155 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.messaging.Message;
+
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult;
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult.Outcome;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties;
+import datawave.microservice.querymetric.function.QueryMetricSupplier;
+
+/**
+ * Exercises the pipelined delivery of bulk updates against a {@link StubConfirmAckBinder}, whose acks go straight to the delivery's confirm ack tracker
+ */
+public class QueryMetricMessageDeliveryTest {
+    
+    private final QueryMetricClientProperties properties = new QueryMetricClientProperties();
+    
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    
+    private final ExecutorService sendExecutor = Executors.newFixedThreadPool(2);
+    
+    // the number of times each query's update has been received by the binder
+    private final Map<String,AtomicInteger> received = new ConcurrentHashMap<>();
+    
+    private QueryMetricMessageDelivery delivery;
+    
+    private StubConfirmAckBinder binder;
+    
+    @BeforeEach
+    public void setup() {
+        properties.setConfirmAckTimeoutMillis(300);
+        properties.getRetry().setMaxAttempts(3);
+        properties.getRetry().setBackoffIntervalMillis(50);
+        
+        QueryMetricSupplier supplier = new QueryMetricSupplier(properties.getSource());
+        ConfirmAckTracker ackTracker = new ConfirmAckTracker(scheduler, properties.getConfirmAckTickMillis(), properties.getConfirmAckRingSize());
+        delivery = new QueryMetricMessageDelivery(properties, supplier, null, ackTracker, properties::getConfirmAckTimeoutMillis, null, null,
+                        QueryMetricClientMeters.NOOP, scheduler, sendExecutor);
+        
+        // acks are handed to the tracker as the client's confirm ack channel would
+        binder = new StubConfirmAckBinder(supplier, null, (Message<?> ack) -> {
+            String correlationId = ack.getHeaders().get(IntegrationMessageHeaderAccessor.CORRELATION_ID).toString();
+            ackTracker.ack(correlationId, new IntegrationMessageHeaderAccessor(ack).getSequenceNumber());
+        }).start();
+        binder.setDropFilter(message -> {
+            received.computeIfAbsent(queryId(message), queryId -> new AtomicInteger()).incrementAndGet();
+            return false;
+        });
+    }
+    
+    @AfterEach
+    public void teardown() {
+        binder.close();
+        scheduler.shutdownNow();
+        sendExecutor.shutdownNow();
+    }
+    
+    private static String queryId(Message<?> message) {
+        return ((QueryMetricUpdate) message.getPayload()).getMetric().getQueryId();
+    }
+    
+    private static List<QueryMetricUpdate> updates(int count) {
+        List<QueryMetricUpdate> updates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            updates.add(new QueryMetricUpdate(QueryMetricTestSupport.createMetric(i), QueryMetricType.DISTRIBUTED));
+        }
+        return updates;
+    }
+    
+    private int receivedCount(String queryId) {
+        AtomicInteger count = received.get(queryId);
+        return count != null ? count.get() : 0;
+    }
+    
+    @Test
+    public void testSlowUpdateDoesNotHoldBackOthers() throws Exception {
+        // the ack of one update takes most of the confirm ack timeout, and the rest are acknowledged straight away
+        binder.setAckLatencyMillis(message -> queryId(message).equals("benchmark-query-0") ? 100L : 0L);
+        
+        CompletableFuture<SubmitResult> future = delivery.deliver(updates(10), false);
+        QueryMetricTestSupport.await(() -> binder.getAckedCount() == 9);
+        
+        // the others are all acknowledged while the slow one is outstanding, but the bulk update waits for it
+        assertFalse(future.isDone());
+        SubmitResult result = future.get(10, TimeUnit.SECONDS);
+        assertEquals(Outcome.DELIVERED, result.getOutcome());
+        assertEquals(1, result.getAttempts());
+        assertEquals(10, binder.getAckedCount());
+        assertEquals(10, binder.getReceivedCount());
+    }
+    
+    @Test
+    public void testRetriesAreScheduledPerUpdate() throws Exception {
+        // one update loses its first ack, and another its first two, so each is resent on its own schedule
+        Map<String,Integer> drops = Map.of("benchmark-query-1", 1, "benchmark-query-2", 2);
+        binder.setDropFilter(message -> {
+            String queryId = queryId(message);
+            int count = received.computeIfAbsent(queryId, id -> new AtomicInteger()).incrementAndGet();
+            return count <= drops.getOrDefault(queryId, 0);
+        });
+        
+        final long startTime = System.currentTimeMillis();
+        SubmitResult result = delivery.deliver(updates(4), false).get(10, TimeUnit.SECONDS);
+        long elapsedMillis = System.currentTimeMillis() - startTime;
+        
+        // each resend waits for its own confirm ack timeout and backoff, and the update which is resent twice waits for both of its timeouts
+        assertEquals(Outcome.DELIVERED, result.getOutcome());
+        assertEquals(3, result.getAttempts());
+        assertEquals(1, receivedCount("benchmark-query-0"));
+        assertEquals(2, receivedCount("benchmark-query-1"));
+        assertEquals(3, receivedCount("benchmark-query-2"));
+        assertEquals(1, receivedCount("benchmark-query-3"));
+        assertEquals(4, binder.getAckedCount());
+        assertTrue(elapsedMillis >= 2 * properties.getConfirmAckTimeoutMillis(), "Delivered after " + elapsedMillis + "ms");
+    }
+    
+    @Test
+    public void testBulkUpdateSettlesOnceEveryUpdateHas() throws Exception {
+        // one update is never acknowledged, so it fails once its attempts have run out, while the others are delivered
+        binder.setDropFilter(message -> {
+            String queryId = queryId(message);
+            received.computeIfAbsent(queryId, id -> new AtomicInteger()).incrementAndGet();
+            return queryId.equals("benchmark-query-1");
+        });
+        
+        CompletableFuture<SubmitResult> future = delivery.deliver(updates(3), false);
+        QueryMetricTestSupport.await(() -> binder.getAckedCount() == 2);
+        assertFalse(future.isDone());
+        
+        SubmitResult result = future.get(10, TimeUnit.SECONDS);
+        assertEquals(Outcome.FAILED, result.getOutcome());
+        assertEquals(3, result.getAttempts());
+        assertEquals(3, receivedCount("benchmark-query-1"));
+        assertEquals(1, receivedCount("benchmark-query-0"));
+        assertEquals(1, receivedCount("benchmark-query-2"));
+    }
+}
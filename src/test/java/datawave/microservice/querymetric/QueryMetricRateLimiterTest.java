@@ -0,0 +1,82 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.RateLimit;
+import datawave.microservice.querymetric.config.QueryMetricTransportType;
+
+public class QueryMetricRateLimiterTest {
+    
+    private static RateLimit rateLimit(double permitsPerSecond, int burst) {
+        RateLimit rateLimit = new RateLimit();
+        rateLimit.setEnabled(true);
+        rateLimit.setPermitsPerSecond(permitsPerSecond);
+        rateLimit.setBurst(burst);
+        return rateLimit;
+    }
+    
+    @Test
+    public void testRejectsOnceBurstIsSpent() {
+        QueryMetricRateLimiter rateLimiter = new QueryMetricRateLimiter(rateLimit(0.001, 5));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(rateLimiter.tryAcquire("alice", QueryMetricType.DISTRIBUTED, 1));
+        }
+        assertFalse(rateLimiter.tryAcquire("alice", QueryMetricType.DISTRIBUTED, 1));
+        assertEquals(1, rateLimiter.getRejectedCount());
+        
+        // every user has a bucket of their own
+        assertTrue(rateLimiter.tryAcquire("bob", QueryMetricType.DISTRIBUTED, 5));
+        assertEquals(2, rateLimiter.size());
+    }
+    
+    @Test
+    public void testOversizedSubmissionNeedsFullBucket() {
+        QueryMetricRateLimiter rateLimiter = new QueryMetricRateLimiter(rateLimit(0.001, 5));
+        assertTrue(rateLimiter.tryAcquire("alice", QueryMetricType.DISTRIBUTED, 10));
+        assertFalse(rateLimiter.tryAcquire("alice", QueryMetricType.DISTRIBUTED, 10));
+    }
+    
+    @Test
+    public void testExemptTypesGoIntoBoundedDebt() throws Exception {
+        QueryMetricRateLimiter rateLimiter = new QueryMetricRateLimiter(rateLimit(100.0, 5));
+        
+        // a big exempt submission is let through, and leaves the user in debt
+        assertTrue(rateLimiter.tryAcquire("alice", QueryMetricType.COMPLETE, 100));
+        assertFalse(rateLimiter.tryAcquire("alice", QueryMetricType.DISTRIBUTED, 1));
+        assertTrue(rateLimiter.tryAcquire("alice", QueryMetricType.COMPLETE, 1));
+        assertEquals(1, rateLimiter.getRejectedCount());
+        
+        // the debt is bounded at one burst, so the bucket is back in credit well before the ~1s that 100 metrics would take to repay at 100 per second
+        Thread.sleep(250);
+        assertTrue(rateLimiter.tryAcquire("alice", QueryMetricType.DISTRIBUTED, 1));
+    }
+    
+    @Test
+    public void testRateLimitedSubmissions() throws Exception {
+        try (QueryMetricClientFixture fixture = new QueryMetricClientFixture(properties -> {
+            properties.setTransport(QueryMetricTransportType.MESSAGE);
+            properties.getRateLimit().setEnabled(true);
+            properties.getRateLimit().setPermitsPerSecond(0.001);
+            properties.getRateLimit().setBurst(1);
+        })) {
+            QueryMetricClient client = fixture.getClient();
+            assertTrue(client.submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS).isSuccess());
+            
+            SubmitResult result = client.submitAsync(fixture.createRequest(1, QueryMetricType.DISTRIBUTED)).get(10, TimeUnit.SECONDS);
+            assertFalse(result.isSuccess());
+            assertTrue(result.isRateLimited());
+            assertEquals(0, result.getAttempts());
+            
+            assertThrows(QueryMetricRateLimitedException.class, () -> client.submit(fixture.createRequest(1, QueryMetricType.DISTRIBUTED)));
+            assertEquals(2, client.getRateLimiter().getRejectedCount());
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Spool;
+
+public class QueryMetricSpoolTest {
+    
+    private static final AtomicBoolean TRIPWIRE_INITIALIZED = new AtomicBoolean();
+    
+    @TempDir
+    Path directory;
+    
+    // configured as Spring Boot configures the application's object mapper
+    private final ObjectMapper objectMapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    
+    private Spool spool;
+    
+    @BeforeEach
+    public void setup() {
+        spool = new Spool();
+        spool.setDirectory(directory.toString());
+    }
+    
+    @Test
+    public void testAppendAndRecover() throws IOException {
+        QueryMetricSpool queryMetricSpool = new QueryMetricSpool(spool, objectMapper);
+        assertEquals(3, queryMetricSpool.append(updates("q0", "q1", "q2")));
+        assertEquals(3, queryMetricSpool.getPendingCount());
+        queryMetricSpool.close();
+        
+        QueryMetricSpool reopened = new QueryMetricSpool(spool, objectMapper);
+        assertEquals(3, reopened.getPendingCount());
+        assertEquals(List.of("q0", "q1", "q2"), queryIds(reopened.peek(10)));
+    }
+    
+    @Test
+    public void testRecoveryAfterTornWrite() throws IOException {
+        QueryMetricSpool queryMetricSpool = new QueryMetricSpool(spool, objectMapper);
+        queryMetricSpool.append(updates("q0", "q1"));
+        queryMetricSpool.close();
+        
+        // corrupt the payload of the second record, as if the host had crashed part way through writing it
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory.toFile(), "spool-0.log"), "rw")) {
+            int secondRecord = 16 + file.readInt();
+            file.seek(secondRecord + 16);
+            int first = file.read();
+            file.seek(secondRecord + 16);
+            file.write(first ^ 0xff);
+        }
+        
+        QueryMetricSpool recovered = new QueryMetricSpool(spool, objectMapper);
+        assertEquals(1, recovered.getPendingCount());
+        assertEquals(List.of("q0"), queryIds(recovered.peek(10)));
+        
+        // the torn record is overwritten by the next append
+        recovered.append(updates("q2"));
+        recovered.close();
+        QueryMetricSpool reopened = new QueryMetricSpool(spool, objectMapper);
+        assertEquals(List.of("q0", "q2"), queryIds(reopened.peek(10)));
+    }
+    
+    @Test
+    public void testAcknowledge() throws IOException {
+        QueryMetricSpool queryMetricSpool = new QueryMetricSpool(spool, objectMapper);
+        queryMetricSpool.append(updates("q0", "q1", "q2"));
+        
+        List<QueryMetricSpool.Record> records = queryMetricSpool.peek(2);
+        assertEquals(List.of("q0", "q1"), queryIds(records));
+        queryMetricSpool.acknowledge(records);
+        assertEquals(1, queryMetricSpool.getPendingCount());
+        assertEquals(List.of("q2"), queryIds(queryMetricSpool.peek(10)));
+        
+        // acknowledging a record twice doesn't count it twice
+        queryMetricSpool.acknowledge(records);
+        assertEquals(1, queryMetricSpool.getPendingCount());
+        queryMetricSpool.close();
+        
+        QueryMetricSpool reopened = new QueryMetricSpool(spool, objectMapper);
+        assertEquals(1, reopened.getPendingCount());
+        assertEquals(List.of("q2"), queryIds(reopened.peek(10)));
+    }
+    
+    @Test
+    public void testAcknowledgedSegmentsAreDeleted() throws IOException {
+        // only room for one record per segment
+        spool.setSegmentSizeBytes(64);
+        QueryMetricSpool queryMetricSpool = new QueryMetricSpool(spool, objectMapper);
+        queryMetricSpool.append(updates("q0", "q1", "q2"));
+        assertEquals(List.of("spool-0.log", "spool-1.log", "spool-2.log"), segmentFiles());
+        
+        queryMetricSpool.acknowledge(queryMetricSpool.peek(1));
+        assertEquals(List.of("spool-1.log", "spool-2.log"), segmentFiles());
+        
+        // the segment being written to is kept, even once all of its records have been acknowledged
+        queryMetricSpool.acknowledge(queryMetricSpool.peek(10));
+        assertEquals(0, queryMetricSpool.getPendingCount());
+        assertEquals(List.of("spool-2.log"), segmentFiles());
+        
+        queryMetricSpool.append(updates("q3"));
+        assertEquals(List.of("spool-2.log", "spool-3.log"), segmentFiles());
+        assertEquals(List.of("q3"), queryIds(queryMetricSpool.peek(10)));
+    }
+    
+    @Test
+    public void testAcknowledgingDeletedSegmentIsHarmless() throws IOException {
+        spool.setSegmentSizeBytes(64);
+        QueryMetricSpool queryMetricSpool = new QueryMetricSpool(spool, objectMapper);
+        queryMetricSpool.append(updates("q0", "q1"));
+        
+        // the first segment is retired and deleted, so acknowledging its record again must not touch it
+        List<QueryMetricSpool.Record> records = queryMetricSpool.peek(1);
+        queryMetricSpool.acknowledge(records);
+        assertEquals(List.of("spool-1.log"), segmentFiles());
+        queryMetricSpool.acknowledge(records);
+        assertEquals(1, queryMetricSpool.getPendingCount());
+        
+        // nor must records which were read before the spool was closed
+        records = queryMetricSpool.peek(1);
+        queryMetricSpool.close();
+        queryMetricSpool.acknowledge(records);
+        assertEquals(List.of(), queryMetricSpool.peek(10));
+        
+        QueryMetricSpool reopened = new QueryMetricSpool(spool, objectMapper);
+        assertEquals(List.of("q1"), queryIds(reopened.peek(10)));
+        reopened.close();
+    }
+    
+    @Test
+    public void testRetiredSegmentLeftOnDiskIsDeletedOnOpen() throws IOException {
+        spool.setSegmentSizeBytes(64);
+        QueryMetricSpool queryMetricSpool = new QueryMetricSpool(spool, objectMapper);
+        queryMetricSpool.append(updates("q0", "q1"));
+        queryMetricSpool.acknowledge(queryMetricSpool.peek(1));
+        queryMetricSpool.close();
+        assertEquals(List.of("spool-1.log"), segmentFiles());
+        
+        // recreate the first segment with its record acknowledged, as if the platform had refused to delete it while it was still mapped
+        File retired = new File(directory.toFile(), "spool-0.log");
+        Files.copy(new File(directory.toFile(), "spool-1.log").toPath(), retired.toPath());
+        try (RandomAccessFile file = new RandomAccessFile(retired, "rw")) {
+            file.seek(4);
+            file.writeInt(1);
+        }
+        
+        QueryMetricSpool reopened = new QueryMetricSpool(spool, objectMapper);
+        assertEquals(List.of("spool-1.log"), segmentFiles());
+        assertEquals(1, reopened.getPendingCount());
+        assertEquals(List.of("q1"), queryIds(reopened.peek(10)));
+        reopened.close();
+    }
+    
+    @Test
+    public void testRecordWithUntrustedClassIsDiscarded() throws IOException {
+        // a record naming a class which isn't a query metric, as if the spool directory had been tampered with
+        String json = "{\"metricType\":\"DISTRIBUTED\",\"metricClass\":\"" + Tripwire.class.getName() + "\",\"metric\":{}}";
+        byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory.toFile(), "spool-0.log"), "rw")) {
+            file.writeInt(payload.length);
+            file.writeInt(0);
+            file.writeLong(crc.getValue());
+            file.write(payload);
+            file.writeInt(0);
+        }
+        
+        QueryMetricSpool queryMetricSpool = new QueryMetricSpool(spool, objectMapper);
+        assertEquals(1, queryMetricSpool.getPendingCount());
+        assertEquals(List.of(), queryMetricSpool.peek(10));
+        assertEquals(0, queryMetricSpool.getPendingCount());
+        assertFalse(TRIPWIRE_INITIALIZED.get());
+        queryMetricSpool.close();
+    }
+    
+    @Test
+    public void testFullSpoolDropsUpdates() throws IOException {
+        spool.setSegmentSizeBytes(64);
+        spool.setMaxSegments(2);
+        QueryMetricSpool queryMetricSpool = new QueryMetricSpool(spool, objectMapper);
+        assertEquals(2, queryMetricSpool.append(updates("q0", "q1", "q2")));
+        assertEquals(2, queryMetricSpool.getPendingCount());
+    }
+    
+    @Test
+    public void testDirectoryIsLocked() throws IOException {
+        QueryMetricSpool queryMetricSpool = new QueryMetricSpool(spool, objectMapper);
+        queryMetricSpool.append(updates("q0"));
+        assertThrows(IOException.class, () -> new QueryMetricSpool(spool, objectMapper));
+        
+        queryMetricSpool.close();
+        assertEquals(0, queryMetricSpool.append(updates("q1")));
+        QueryMetricSpool reopened = new QueryMetricSpool(spool, objectMapper);
+        assertEquals(List.of("q0"), queryIds(reopened.peek(10)));
+        reopened.close();
+    }
+    
+    @Test
+    public void testDirectoryIsRequired() {
+        assertThrows(IllegalArgumentException.class, () -> new QueryMetricSpool(new Spool(), objectMapper));
+    }
+    
+    private List<String> segmentFiles() {
+        String[] names = directory.toFile().list((dir, name) -> name.endsWith(".log"));
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+    
+    private static List<QueryMetricUpdate> updates(String... queryIds) {
+        List<QueryMetricUpdate> updates = new ArrayList<>(queryIds.length);
+        for (String queryId : queryIds) {
+            QueryMetric metric = new QueryMetric();
+            metric.setQueryId(queryId);
+            updates.add(new QueryMetricUpdate(metric, QueryMetricType.DISTRIBUTED));
+        }
+        return updates;
+    }
+    
+    private static List<String> queryIds(List<QueryMetricSpool.Record> records) {
+        return records.stream().map(record -> record.getUpdate().getMetric().getQueryId()).collect(Collectors.toList());
+    }
+    
+    /**
+     * Records whether it has ever been initialized
+     */
+    static class Tripwire {
+        static {
+            TRIPWIRE_INITIALIZED.set(true);
+        }
+    }
+}
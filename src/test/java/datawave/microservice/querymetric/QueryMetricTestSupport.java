@@ -0,0 +1,121 @@
+package datawave.microservice.querymetric;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.HashMultimap;
+
+import datawave.microservice.authorization.user.DatawaveUserDetails;
+import datawave.security.authorization.DatawaveUser;
+import datawave.security.authorization.JWTTokenHandler;
+import datawave.security.authorization.SubjectIssuerDNPair;
+
+/**
+ * Creates the metrics, users and signing keys used by the tests and benchmarks
+ */
+public final class QueryMetricTestSupport {
+    
+    private static final String ALIAS = "benchmark";
+    private static final char[] PASSWORD = "changeit".toCharArray();
+    
+    private QueryMetricTestSupport() {}
+    
+    public static QueryMetric createMetric(int index) {
+        QueryMetric metric = new QueryMetric();
+        metric.setQueryId("benchmark-query-" + index);
+        metric.setUser("benchmarkuser");
+        metric.setUserDN("cn=benchmark user, ou=benchmark, o=datawave");
+        metric.setQuery("FIELD" + index + " == 'value" + index + "'");
+        metric.setQueryLogic("EventQuery");
+        metric.setCreateDate(new Date());
+        return metric;
+    }
+    
+    public static List<BaseQueryMetric> createMetrics(int count) {
+        List<BaseQueryMetric> metrics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            metrics.add(createMetric(i));
+        }
+        return metrics;
+    }
+    
+    public static DatawaveUserDetails createUser() {
+        SubjectIssuerDNPair dn = SubjectIssuerDNPair.of("cn=benchmark user, ou=benchmark, o=datawave", "cn=benchmark ca, o=datawave");
+        DatawaveUser user = new DatawaveUser(dn, DatawaveUser.UserType.USER, Collections.singletonList("PUBLIC"), Collections.singletonList("AuthorizedUser"),
+                        HashMultimap.create(), System.currentTimeMillis());
+        return new DatawaveUserDetails(Collections.singletonList(user), System.currentTimeMillis());
+    }
+    
+    /**
+     * Polls the condition until it holds, failing if it doesn't within ten seconds
+     *
+     * @param condition
+     *            the condition to wait for, not null
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw new AssertionError("Timed out waiting for condition");
+            }
+            Thread.sleep(10);
+        }
+    }
+    
+    /**
+     * Creates a token handler which signs with a throwaway RSA key pair generated by keytool
+     *
+     * @param objectMapper
+     *            the object mapper used to encode the token claims, not null
+     * @return the token handler
+     * @throws Exception
+     *             if the key pair can't be generated
+     */
+    public static JWTTokenHandler createJwtTokenHandler(ObjectMapper objectMapper) throws Exception {
+        File keystoreFile = File.createTempFile("query-metric-benchmark", ".p12");
+        try {
+            if (!keystoreFile.delete()) {
+                throw new IllegalStateException("Unable to replace " + keystoreFile);
+            }
+            String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+            // @formatter:off
+            Process process = new ProcessBuilder(keytool, "-genkeypair",
+                    "-alias", ALIAS,
+                    "-keyalg", "RSA",
+                    "-keysize", "2048",
+                    "-dname", "CN=benchmark",
+                    "-validity", "1",
+                    "-storetype", "PKCS12",
+                    "-keystore", keystoreFile.getPath(),
+                    "-storepass", new String(PASSWORD),
+                    "-keypass", new String(PASSWORD))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            // @formatter:on
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("Unable to generate benchmark key pair with " + keytool);
+            }
+            
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            try (InputStream in = new FileInputStream(keystoreFile)) {
+                keyStore.load(in, PASSWORD);
+            }
+            return new JWTTokenHandler(keyStore.getCertificate(ALIAS), keyStore.getKey(ALIAS, PASSWORD), 1, TimeUnit.DAYS, objectMapper);
+        } finally {
+            keystoreFile.delete();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.HashMultimap;
+
+import datawave.microservice.authorization.user.DatawaveUserDetails;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.TokenCache;
+import datawave.security.authorization.DatawaveUser;
+import datawave.security.authorization.JWTTokenHandler;
+import datawave.security.authorization.SubjectIssuerDNPair;
+
+public class QueryMetricTokenCacheTest {
+    
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    
+    private static final long CREATION_TIME = System.currentTimeMillis();
+    
+    // signs tokens which expire after a day
+    private static JWTTokenHandler jwtTokenHandler;
+    
+    private final DatawaveUserDetails user = QueryMetricTestSupport.createUser();
+    
+    @BeforeAll
+    public static void setupTokenHandler() throws Exception {
+        jwtTokenHandler = QueryMetricTestSupport.createJwtTokenHandler(OBJECT_MAPPER);
+    }
+    
+    private static TokenCache tokenCache(long expirationMarginMillis) {
+        TokenCache tokenCache = new TokenCache();
+        tokenCache.setTtlMillis(TimeUnit.DAYS.toMillis(7));
+        tokenCache.setExpirationMarginMillis(expirationMarginMillis);
+        return tokenCache;
+    }
+    
+    @Test
+    public void testTokenIsReusedUntilNearExpiration() {
+        QueryMetricTokenCache cache = new QueryMetricTokenCache(jwtTokenHandler, tokenCache(TimeUnit.MINUTES.toMillis(1)), OBJECT_MAPPER);
+        Collection<? extends DatawaveUser> proxiedUsers = user.getProxiedUsers();
+        
+        String token = cache.getToken(user.getUsername(), proxiedUsers);
+        assertEquals(token, cache.getToken(user.getUsername(), proxiedUsers));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(0, cache.getExpiredCount());
+    }
+    
+    @Test
+    public void testTokenWithinMarginOfExpirationIsSignedAfresh() {
+        // the margin is longer than the tokens last, so no token may be reused, even though the time to live would allow it
+        QueryMetricTokenCache cache = new QueryMetricTokenCache(jwtTokenHandler, tokenCache(TimeUnit.DAYS.toMillis(2)), OBJECT_MAPPER);
+        Collection<? extends DatawaveUser> proxiedUsers = user.getProxiedUsers();
+        
+        cache.getToken(user.getUsername(), proxiedUsers);
+        cache.getToken(user.getUsername(), proxiedUsers);
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getExpiredCount());
+    }
+    
+    @Test
+    public void testChangedAuthsOrRolesAreSignedAfresh() {
+        QueryMetricTokenCache cache = new QueryMetricTokenCache(jwtTokenHandler, tokenCache(TimeUnit.MINUTES.toMillis(1)), OBJECT_MAPPER);
+        String token = cache.getToken("user", users(List.of("PUBLIC"), List.of("AuthorizedUser")));
+        
+        // the same DN with a role revoked, or with different authorizations, must not be sent the token signed for its old access
+        String revoked = cache.getToken("user", users(List.of("PUBLIC"), List.of()));
+        String reauthorized = cache.getToken("user", users(List.of("PRIVATE"), List.of("AuthorizedUser")));
+        assertNotEquals(token, revoked);
+        assertNotEquals(token, reauthorized);
+        assertEquals(3, cache.getMissCount());
+        
+        assertEquals(token, cache.getToken("user", users(List.of("PUBLIC"), List.of("AuthorizedUser"))));
+        assertEquals(1, cache.getHitCount());
+    }
+    
+    @Test
+    public void testDisabledByDefault() {
+        assertFalse(new TokenCache().isEnabled());
+    }
+    
+    private static Collection<DatawaveUser> users(List<String> auths, List<String> roles) {
+        SubjectIssuerDNPair dn = SubjectIssuerDNPair.of("cn=test user, ou=test, o=datawave", "cn=test ca, o=datawave");
+        return Collections.singletonList(new DatawaveUser(dn, DatawaveUser.UserType.USER, auths, roles, HashMultimap.create(), CREATION_TIME));
+    }
+}
@@ -0,0 +1,157 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import datawave.microservice.querymetric.QueryMetricClient.SubmitResult;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Coalesce;
+
+public class QueryMetricUpdateCoalescerTest {
+    
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    
+    private final List<List<QueryMetricUpdate>> deliveries = new CopyOnWriteArrayList<>();
+    
+    @AfterEach
+    public void teardown() {
+        scheduler.shutdownNow();
+    }
+    
+    private QueryMetricUpdateCoalescer coalescer(Coalesce coalesce) {
+        return coalescer(coalesce, updates -> {
+            deliveries.add(updates);
+            return CompletableFuture.completedFuture(new SubmitResult(true, 1, 0L));
+        });
+    }
+    
+    private QueryMetricUpdateCoalescer coalescer(Coalesce coalesce, Function<List<QueryMetricUpdate>,CompletableFuture<SubmitResult>> delivery) {
+        return new QueryMetricUpdateCoalescer(coalesce, scheduler, delivery);
+    }
+    
+    // a window long enough that only an explicit flush delivers the pending updates
+    private static Coalesce coalesce(QueryMetricType... metricTypes) {
+        Coalesce coalesce = new Coalesce();
+        coalesce.setEnabled(true);
+        coalesce.setWindowMillis(TimeUnit.MINUTES.toMillis(1));
+        if (metricTypes.length > 0) {
+            coalesce.setMetricTypes(EnumSet.of(metricTypes[0], metricTypes));
+        }
+        return coalesce;
+    }
+    
+    @Test
+    public void testOnlyCompleteUpdatesAreCoalescedByDefault() {
+        QueryMetricUpdateCoalescer coalescer = coalescer(coalesce());
+        
+        // DISTRIBUTED updates are combined additively by the service, so merging them would lose counts
+        CompletableFuture<SubmitResult> first = coalescer.submit(List.of(update("query-0", QueryMetricType.DISTRIBUTED)));
+        CompletableFuture<SubmitResult> second = coalescer.submit(List.of(update("query-0", QueryMetricType.DISTRIBUTED)));
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        assertEquals(2, deliveries.size());
+        assertEquals(0, coalescer.getPendingCount());
+        
+        CompletableFuture<SubmitResult> complete = coalescer.submit(List.of(update("query-0", QueryMetricType.COMPLETE)));
+        assertFalse(complete.isDone());
+        assertEquals(2, deliveries.size());
+        assertEquals(1, coalescer.getPendingCount());
+    }
+    
+    @Test
+    public void testLatestSnapshotSupersedesEarlier() throws Exception {
+        QueryMetricUpdateCoalescer coalescer = coalescer(coalesce());
+        QueryMetricUpdate earlier = update("query-0", QueryMetricType.COMPLETE);
+        QueryMetricUpdate later = update("query-0", QueryMetricType.COMPLETE);
+        CompletableFuture<SubmitResult> first = coalescer.submit(List.of(earlier));
+        CompletableFuture<SubmitResult> second = coalescer.submit(List.of(later));
+        assertEquals(1, coalescer.getPendingCount());
+        assertTrue(deliveries.isEmpty());
+        
+        coalescer.flush();
+        assertEquals(1, deliveries.size());
+        assertEquals(1, deliveries.get(0).size());
+        assertSame(later, deliveries.get(0).get(0));
+        
+        // every caller whose update was merged is told the outcome of the merged delivery
+        assertTrue(first.get(10, TimeUnit.SECONDS).isSuccess());
+        assertTrue(second.get(10, TimeUnit.SECONDS).isSuccess());
+        assertEquals(0, coalescer.getPendingCount());
+    }
+    
+    @Test
+    public void testUpdatesAreKeyedOnQueryIdAndMetricType() {
+        QueryMetricUpdateCoalescer coalescer = coalescer(coalesce(QueryMetricType.COMPLETE, QueryMetricType.DISTRIBUTED));
+        coalescer.submit(List.of(update("query-0", QueryMetricType.COMPLETE), update("query-1", QueryMetricType.COMPLETE)));
+        coalescer.submit(List.of(update("query-0", QueryMetricType.DISTRIBUTED), update("query-0", QueryMetricType.COMPLETE)));
+        assertEquals(3, coalescer.getPendingCount());
+        
+        coalescer.flush();
+        assertEquals(3, deliveries.size());
+        assertEquals(0, coalescer.getPendingCount());
+    }
+    
+    @Test
+    public void testUpdatesWhichCannotBeCoalescedPassThrough() throws Exception {
+        QueryMetricUpdateCoalescer coalescer = coalescer(coalesce());
+        QueryMetricUpdate distributed = update("query-0", QueryMetricType.DISTRIBUTED);
+        QueryMetricUpdate anonymous = update(null, QueryMetricType.COMPLETE);
+        CompletableFuture<SubmitResult> future = coalescer.submit(List.of(distributed, update("query-0", QueryMetricType.COMPLETE), anonymous));
+        
+        // the updates which cannot be coalesced are delivered together straight away, and the request completes once the rest are too
+        assertEquals(1, deliveries.size());
+        assertEquals(List.of(distributed, anonymous), deliveries.get(0));
+        assertFalse(future.isDone());
+        
+        coalescer.flush();
+        assertTrue(future.get(10, TimeUnit.SECONDS).isSuccess());
+        assertEquals(2, deliveries.size());
+    }
+    
+    @Test
+    public void testPendingUpdatesAreDeliveredWhenTheWindowCloses() throws Exception {
+        Coalesce coalesce = coalesce();
+        coalesce.setWindowMillis(50L);
+        QueryMetricUpdateCoalescer coalescer = coalescer(coalesce);
+        CompletableFuture<SubmitResult> future = coalescer.submit(List.of(update("query-0", QueryMetricType.COMPLETE)));
+        
+        assertTrue(future.get(10, TimeUnit.SECONDS).isSuccess());
+        assertEquals(1, deliveries.size());
+        assertEquals(0, coalescer.getPendingCount());
+    }
+    
+    @Test
+    public void testFailedDeliveryFailsEveryMergedCaller() {
+        IllegalStateException failure = new IllegalStateException("delivery failed");
+        QueryMetricUpdateCoalescer coalescer = coalescer(coalesce(), updates -> CompletableFuture.failedFuture(failure));
+        CompletableFuture<SubmitResult> first = coalescer.submit(List.of(update("query-0", QueryMetricType.COMPLETE)));
+        CompletableFuture<SubmitResult> second = coalescer.submit(List.of(update("query-0", QueryMetricType.COMPLETE)));
+        
+        coalescer.flush();
+        for (CompletableFuture<SubmitResult> future : List.of(first, second)) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+            assertSame(failure, e.getCause());
+        }
+    }
+    
+    private static QueryMetricUpdate update(String queryId, QueryMetricType metricType) {
+        QueryMetric metric = new QueryMetric();
+        metric.setQueryId(queryId);
+        return new QueryMetricUpdate(metric, metricType);
+    }
+}
@@ -0,0 +1,92 @@
+package datawave.microservice.querymetric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Rest;
+import reactor.core.Disposable;
+
+public class QueryMetricWebClientTransportTest {
+    
+    private static final byte[] BODY = "{}".getBytes(StandardCharsets.UTF_8);
+    
+    private StubQueryMetricService service;
+    
+    private URI uri;
+    
+    private HttpHeaders headers;
+    
+    @BeforeEach
+    public void setup() throws Exception {
+        service = new StubQueryMetricService(4);
+        uri = URI.create("http://" + service.getHost() + ":" + service.getPort() + "/querymetric/v1/updateMetric");
+        headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+    }
+    
+    @AfterEach
+    public void teardown() {
+        service.close();
+    }
+    
+    private static QueryMetricWebClientTransport transport(long requestTimeoutMillis) {
+        Rest rest = new Rest();
+        rest.setMaxConcurrentRequests(1);
+        rest.setRequestTimeoutMillis(requestTimeoutMillis);
+        return new QueryMetricWebClientTransport(rest, false, null);
+    }
+    
+    @Test
+    public void testTimeoutIncludesTimeQueued() throws Exception {
+        QueryMetricWebClientTransport transport = transport(600);
+        try {
+            service.setLatencyMillis(400);
+            
+            // the second post waits for the only request slot for longer than the first post takes, and then needs as long again to be answered, which would
+            // fit within the timeout if it only started once the post was taken from the queue
+            CompletableFuture<Void> first = transport.post(uri, headers, BODY).toFuture();
+            CompletableFuture<Void> second = transport.post(uri, headers, BODY).toFuture();
+            first.get(10, TimeUnit.SECONDS);
+            ExecutionException e = assertThrows(ExecutionException.class, () -> second.get(10, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof TimeoutException);
+            QueryMetricTestSupport.await(() -> transport.getPending() == 0);
+        } finally {
+            transport.close();
+        }
+    }
+    
+    @Test
+    public void testCancelledPostIsNotSent() throws Exception {
+        QueryMetricWebClientTransport transport = transport(10000);
+        try {
+            service.setLatencyMillis(300);
+            
+            CompletableFuture<Void> first = transport.post(uri, headers, BODY).toFuture();
+            Disposable cancelled = transport.post(uri, headers, BODY).subscribe();
+            cancelled.dispose();
+            CompletableFuture<Void> third = transport.post(uri, headers, BODY).toFuture();
+            
+            // the cancelled post is dropped when it is taken from the queue, rather than sent
+            first.get(10, TimeUnit.SECONDS);
+            third.get(10, TimeUnit.SECONDS);
+            assertEquals(2, service.getRequestCount());
+            QueryMetricTestSupport.await(() -> transport.getPending() == 0);
+        } finally {
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package datawave.microservice.querymetric;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.integration.support.MessageBuilder;
+import org.springframework.messaging.Message;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import datawave.microservice.querymetric.function.QueryMetricBatchSupplier;
+import datawave.microservice.querymetric.function.QueryMetricSupplier;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+/**
+ * Stand-in for the message binder and the query metric service. Consumes the messages published by the {@link QueryMetricSupplier}, and by the
+ * {@link QueryMetricBatchSupplier} if there is one, and answers each one which carries a correlation id with a confirm ack.
+ * <p>
+ * Acks may be delayed, either by a fixed latency to reproduce a slow broker or by a latency of each message's own, and dropped at random at a given rate,
+ * where a rate of 1 reproduces a broker outage, or for the messages which match a filter. All of these may be changed while the binder is running.
+ */
+public class StubConfirmAckBinder implements AutoCloseable {
+    
+    private final QueryMetricSupplier supplier;
+    
+    private final QueryMetricBatchSupplier batchSupplier;
+    
+    private final Consumer<Message<?>> confirmAckHandler;
+    
+    private final ScheduledExecutorService ackScheduler = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("stub-confirm-ack-binder-%d").setDaemon(true).build());
+    
+    private final LongAdder acked = new LongAdder();
+    
+    private final LongAdder dropped = new LongAdder();
+    
+    private final LongAdder received = new LongAdder();
+    
+    private volatile ToLongFunction<Message<?>> ackLatencyMillis = message -> 0L;
+    
+    private volatile double dropRate = 0.0;
+    
+    private volatile Predicate<Message<?>> dropFilter = message -> false;
+    
+    private Disposable subscription;
+    
+    public StubConfirmAckBinder(QueryMetricSupplier supplier, QueryMetricClient client) {
+        this(supplier, null, client);
+    }
+    
+    public StubConfirmAckBinder(QueryMetricSupplier supplier, QueryMetricBatchSupplier batchSupplier, QueryMetricClient client) {
+        this(supplier, batchSupplier, client::processConfirmAck);
+    }
+    
+    /**
+     * @param supplier
+     *            the supplier of update messages, not null
+     * @param batchSupplier
+     *            the supplier of packed batches, or null
+     * @param confirmAckHandler
+     *            receives the confirm acks, as the client's confirm ack channel would, not null
+     */
+    public StubConfirmAckBinder(QueryMetricSupplier supplier, QueryMetricBatchSupplier batchSupplier, Consumer<Message<?>> confirmAckHandler) {
+        this.supplier = supplier;
+        this.batchSupplier = batchSupplier;
+        this.confirmAckHandler = confirmAckHandler;
+    }
+    
+    public StubConfirmAckBinder start() {
+        Flux<Message<?>> messages = Flux.from(supplier.get());
+        if (batchSupplier != null) {
+            messages = Flux.merge(messages, batchSupplier.get());
+        }
+        subscription = messages.subscribe(this::receive);
+        return this;
+    }
+    
+    private void receive(Message<?> message) {
+        received.increment();
+        Object correlationId = message.getHeaders().get(IntegrationMessageHeaderAccessor.CORRELATION_ID);
+        if (correlationId == null) {
+            return;
+        }
+        if (dropFilter.test(message) || (dropRate > 0 && ThreadLocalRandom.current().nextDouble() < dropRate)) {
+            dropped.increment();
+            return;
+        }
+        long latency = ackLatencyMillis.applyAsLong(message);
+        if (latency > 0) {
+            ackScheduler.schedule(() -> ack(correlationId), latency, TimeUnit.MILLISECONDS);
+        } else {
+            ack(correlationId);
+        }
+    }
+    
+    private void ack(Object correlationId) {
+        acked.increment();
+        confirmAckHandler.accept(MessageBuilder.withPayload(correlationId).setCorrelationId(correlationId).build());
+    }
+    
+    public void setAckLatencyMillis(long ackLatencyMillis) {
+        this.ackLatencyMillis = message -> ackLatencyMillis;
+    }
+    
+    /**
+     * @param ackLatencyMillis
+     *            gives the latency of the ack of each message which carries a correlation id, not null
+     */
+    public void setAckLatencyMillis(ToLongFunction<Message<?>> ackLatencyMillis) {
+        this.ackLatencyMillis = ackLatencyMillis;
+    }
+    
+    /**
+     * @param dropRate
+     *            the fraction of acks which are never sent, from 0 to 1
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+    
+    /**
+     * @param dropFilter
+     *            tested against every message which carries a correlation id, whose ack is never sent if it matches, not null
+     */
+    public void setDropFilter(Predicate<Message<?>> dropFilter) {
+        this.dropFilter = dropFilter;
+    }
+    
+    public long getReceivedCount() {
+        return received.sum();
+    }
+    
+    public long getAckedCount() {
+        return acked.sum();
+    }
+    
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+    
+    @Override
+    public void close() {
+        if (subscription != null) {
+            subscription.dispose();
+        }
+        ackScheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,235 @@
+package datawave.microservice.querymetric;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsExchange;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * In-process stand-in for the query metric service's {@code updateMetric} and {@code updateMetrics} endpoints. Request bodies are read in full, and only
+ * the last one is kept, and every request is answered with an empty response, which for a {@code HEAD} request has no body. The service may be served over
+ * TLS, in which case it requires a client certificate.
+ * <p>
+ * Responses may be delayed by a fixed latency, and replaced at random at a given rate with a 503, where a rate of 1 reproduces a service outage. Both may
+ * be changed while the service is running.
+ * <p>
+ * The build runs the tests and benchmarks with {@code sun.net.httpserver.nodelay} set, since otherwise the separate writes of the response headers and body
+ * stall on delayed acks, and every request takes ~40ms. The JDK reads it only once, when the first server is created, so it can't be set here.
+ */
+public class StubQueryMetricService implements AutoCloseable {
+    
+    private static final byte[] RESPONSE = "{}".getBytes(StandardCharsets.UTF_8);
+    
+    private static final int SERVICE_UNAVAILABLE = 503;
+    
+    private final HttpServer server;
+    
+    private final ExecutorService executor;
+    
+    private final LongAdder requests = new LongAdder();
+    
+    private final LongAdder bytesReceived = new LongAdder();
+    
+    private final LongAdder failures = new LongAdder();
+    
+    // the remote address of each connection which a request has been received on
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+    
+    private volatile Request lastRequest;
+    
+    private volatile long latencyMillis = 0L;
+    
+    private volatile double failureRate = 0.0;
+    
+    public StubQueryMetricService(int threads) throws IOException {
+        this(threads, null);
+    }
+    
+    /**
+     * @param threads
+     *            the number of threads handling requests
+     * @param sslContext
+     *            the TLS context to serve over, which also decides which client certificates are trusted, or null to serve plain HTTP
+     * @throws IOException
+     *             if the server can't be started
+     */
+    public StubQueryMetricService(int threads, SSLContext sslContext) throws IOException {
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setNameFormat("stub-query-metric-service-%d").setDaemon(true).build());
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        if (sslContext != null) {
+            HttpsServer httpsServer = HttpsServer.create(address, 0);
+            httpsServer.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
+                @Override
+                public void configure(HttpsParameters params) {
+                    params.setSSLParameters(getSSLContext().getDefaultSSLParameters());
+                    params.setNeedClientAuth(true);
+                }
+            });
+            this.server = httpsServer;
+        } else {
+            this.server = HttpServer.create(address, 0);
+        }
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        try (HttpExchange ignored = exchange) {
+            InputStream body = exchange.getRequestBody();
+            if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                body = new GZIPInputStream(body);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            body.transferTo(bytes);
+            bytesReceived.add(bytes.size());
+            connections.add(exchange.getRemoteAddress());
+            lastRequest = new Request(exchange, bytes.toByteArray());
+            requests.increment();
+            
+            long latency = latencyMillis;
+            if (latency > 0) {
+                try {
+                    Thread.sleep(latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                failures.increment();
+                exchange.sendResponseHeaders(SERVICE_UNAVAILABLE, -1);
+                return;
+            }
+            
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            exchange.getResponseBody().write(RESPONSE);
+        }
+    }
+    
+    /**
+     * @return the number of distinct connections which requests have been received on
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+    
+    /**
+     * @return the last request received, or null if none has been
+     */
+    public Request getLastRequest() {
+        return lastRequest;
+    }
+    
+    public String getHost() {
+        return server.getAddress().getHostString();
+    }
+    
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+    
+    /**
+     * @param failureRate
+     *            the fraction of requests which are answered with a 503, from 0 to 1
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+    
+    public long getFailureCount() {
+        return failures.sum();
+    }
+    
+    public long getRequestCount() {
+        return requests.sum();
+    }
+    
+    /**
+     * @return the number of uncompressed request body bytes received
+     */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+    
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    /**
+     * A request received by the service, with its body decompressed if it was gzip encoded
+     */
+    public static class Request {
+        private final String contentType;
+        private final String contentEncoding;
+        private final String peerPrincipal;
+        private final byte[] body;
+        
+        private Request(HttpExchange exchange, byte[] body) {
+            this.contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            this.contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            this.peerPrincipal = peerPrincipal(exchange);
+            this.body = body;
+        }
+        
+        private static String peerPrincipal(HttpExchange exchange) {
+            if (!(exchange instanceof HttpsExchange)) {
+                return null;
+            }
+            try {
+                return ((HttpsExchange) exchange).getSSLSession().getPeerPrincipal().getName();
+            } catch (SSLPeerUnverifiedException e) {
+                return null;
+            }
+        }
+        
+        public String getContentType() {
+            return contentType;
+        }
+        
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+        
+        /**
+         * @return the subject of the client certificate which the request was sent with, or null if it was not sent over TLS
+         */
+        public String getPeerPrincipal() {
+            return peerPrincipal;
+        }
+        
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
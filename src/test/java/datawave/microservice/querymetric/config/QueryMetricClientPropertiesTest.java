@@ -0,0 +1,71 @@
+package datawave.microservice.querymetric.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.context.properties.bind.validation.BindValidationException;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.context.annotation.Configuration;
+
+public class QueryMetricClientPropertiesTest {
+    
+    private static final String PREFIX = "datawave.query.metric.client.";
+    
+    // one out of range value for each nested group whose constraints are checked when the properties are bound
+    // @formatter:off
+    private static final List<String> INVALID_PROPERTIES = List.of(
+            "retry.backoff-interval-millis=-1",
+            "circuit-breaker.failure-threshold=0",
+            "coalesce.window-millis=-1",
+            "batch.max-updates=0",
+            "spool.max-segments=0",
+            "source.buffer-size=0",
+            "rest.max-connections=0",
+            "token-cache.max-size=0",
+            "fire-and-forget.worker-threads=0",
+            "delta.full-snapshot-interval=0",
+            "lifecycle.warm-up-timeout-millis=0",
+            "rate-limit.burst=0",
+            "adaptive-confirm-ack.window-size=4");
+    // @formatter:on
+    
+    private final ApplicationContextRunner contextRunner = new ApplicationContextRunner().withUserConfiguration(PropertiesConfiguration.class);
+    
+    @Configuration
+    @EnableConfigurationProperties(QueryMetricClientProperties.class)
+    static class PropertiesConfiguration {}
+    
+    @Test
+    public void testDefaultsAreValid() {
+        contextRunner.run(context -> {
+            assertNull(context.getStartupFailure());
+            assertEquals(10, context.getBean(QueryMetricClientProperties.class).getRetry().getMaxAttempts());
+        });
+    }
+    
+    @Test
+    public void testInvalidNestedValueFailsStartup() {
+        for (String property : INVALID_PROPERTIES) {
+            contextRunner.withPropertyValues(PREFIX + property).run(context -> {
+                Throwable failure = context.getStartupFailure();
+                assertNotNull(failure, property + " was accepted");
+                assertTrue(hasCause(failure, BindValidationException.class), property + " failed for another reason: " + failure);
+            });
+        }
+    }
+    
+    private static boolean hasCause(Throwable throwable, Class<? extends Throwable> type) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,170 @@
+package datawave.microservice.querymetric.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.web.server.Ssl;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import datawave.microservice.querymetric.StubQueryMetricService;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Rest;
+
+public class QueryMetricHttpClientFactoryTest {
+    
+    private static final String PASSWORD = "changeit";
+    
+    private static final String CLIENT_DN = "CN=query-metric-client";
+    
+    @TempDir
+    static Path directory;
+    
+    // the client's key store, whose certificate the stub service also serves with, and a trust store which trusts only that certificate
+    private static Ssl ssl;
+    
+    @BeforeAll
+    public static void createKeyStores() throws Exception {
+        Path keyStore = directory.resolve("client.p12");
+        Path trustStore = directory.resolve("trust.p12");
+        Path certificate = directory.resolve("client.crt");
+        keytool("-genkeypair", "-alias", "client", "-keyalg", "RSA", "-keysize", "2048", "-validity", "1", "-dname", CLIENT_DN, "-ext",
+                        "SAN=ip:127.0.0.1,dns:localhost", "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", PASSWORD);
+        keytool("-exportcert", "-alias", "client", "-keystore", keyStore.toString(), "-storepass", PASSWORD, "-file", certificate.toString());
+        keytool("-importcert", "-noprompt", "-alias", "client", "-file", certificate.toString(), "-storetype", "PKCS12", "-keystore", trustStore.toString(),
+                        "-storepass", PASSWORD);
+        
+        ssl = new Ssl();
+        ssl.setKeyStore(keyStore.toUri().toString());
+        ssl.setKeyStoreType("PKCS12");
+        ssl.setKeyStorePassword(PASSWORD);
+        ssl.setTrustStore(trustStore.toUri().toString());
+        ssl.setTrustStoreType("PKCS12");
+        ssl.setTrustStorePassword(PASSWORD);
+    }
+    
+    private static void keytool(String... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString());
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        assertTrue(process.waitFor(1, TimeUnit.MINUTES));
+        assertEquals(0, process.exitValue(), output);
+    }
+    
+    private static URI uri(StubQueryMetricService service, String scheme) {
+        return URI.create(scheme + "://" + service.getHost() + ":" + service.getPort() + "/querymetric/v1/updateMetric");
+    }
+    
+    private static void post(RestTemplate restTemplate, URI uri) {
+        assertEquals(HttpStatus.OK, restTemplate.postForEntity(uri, new HttpEntity<>("{}"), String.class).getStatusCode());
+    }
+    
+    @Test
+    public void testKeepAliveReusesConnection() throws Exception {
+        HttpComponentsClientHttpRequestFactory requestFactory = QueryMetricHttpClientFactory.createRequestFactory(new Rest(), null);
+        try (StubQueryMetricService service = new StubQueryMetricService(2)) {
+            RestTemplate restTemplate = new RestTemplate(requestFactory);
+            for (int i = 0; i < 10; i++) {
+                post(restTemplate, uri(service, "http"));
+            }
+            assertEquals(10, service.getRequestCount());
+            assertEquals(1, service.getConnectionCount());
+        } finally {
+            requestFactory.destroy();
+        }
+    }
+    
+    @Test
+    public void testPoolLimitsConnections() throws Exception {
+        Rest rest = new Rest();
+        rest.setMaxConnections(2);
+        rest.setMaxConnectionsPerRoute(2);
+        HttpComponentsClientHttpRequestFactory requestFactory = QueryMetricHttpClientFactory.createRequestFactory(rest, null);
+        try (StubQueryMetricService service = new StubQueryMetricService(8)) {
+            service.setLatencyMillis(100);
+            RestTemplate restTemplate = new RestTemplate(requestFactory);
+            
+            // eight concurrent posts share the two pooled connections, rather than each opening one of its own
+            List<CompletableFuture<Void>> posts = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                posts.add(CompletableFuture.runAsync(() -> post(restTemplate, uri(service, "http"))));
+            }
+            CompletableFuture.allOf(posts.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+            assertEquals(8, service.getRequestCount());
+            assertTrue(service.getConnectionCount() <= 2, service.getConnectionCount() + " connections were opened");
+        } finally {
+            requestFactory.destroy();
+        }
+    }
+    
+    @Test
+    public void testWaitForPooledConnectionTimesOut() throws Exception {
+        Rest rest = new Rest();
+        rest.setMaxConnections(1);
+        rest.setMaxConnectionsPerRoute(1);
+        rest.setConnectionRequestTimeoutMillis(100);
+        HttpComponentsClientHttpRequestFactory requestFactory = QueryMetricHttpClientFactory.createRequestFactory(rest, null);
+        try (StubQueryMetricService service = new StubQueryMetricService(2)) {
+            service.setLatencyMillis(1000);
+            RestTemplate restTemplate = new RestTemplate(requestFactory);
+            
+            CompletableFuture<Void> slowPost = CompletableFuture.runAsync(() -> post(restTemplate, uri(service, "http")));
+            Thread.sleep(300);
+            ResourceAccessException e = assertThrows(ResourceAccessException.class, () -> post(restTemplate, uri(service, "http")));
+            assertTrue(e.getCause() instanceof ConnectionPoolTimeoutException, String.valueOf(e.getCause()));
+            slowPost.get(10, TimeUnit.SECONDS);
+        } finally {
+            requestFactory.destroy();
+        }
+    }
+    
+    @Test
+    public void testPresentsClientCertificate() throws Exception {
+        HttpComponentsClientHttpRequestFactory requestFactory = QueryMetricHttpClientFactory.createRequestFactory(new Rest(),
+                        QueryMetricSslContextFactory.createSslContext(ssl));
+        try (StubQueryMetricService service = new StubQueryMetricService(2, QueryMetricSslContextFactory.createSslContext(ssl))) {
+            RestTemplate restTemplate = new RestTemplate(requestFactory);
+            post(restTemplate, uri(service, "https"));
+            post(restTemplate, uri(service, "https"));
+            assertEquals(CLIENT_DN, service.getLastRequest().getPeerPrincipal());
+            // the TLS session is kept alive along with the connection
+            assertEquals(1, service.getConnectionCount());
+        } finally {
+            requestFactory.destroy();
+        }
+    }
+    
+    @Test
+    public void testServiceRejectsClientWithoutCertificate() throws Exception {
+        // trusts the service, but has no key to present
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, QueryMetricSslContextFactory.createTrustManagerFactory(ssl).getTrustManagers(), null);
+        HttpComponentsClientHttpRequestFactory requestFactory = QueryMetricHttpClientFactory.createRequestFactory(new Rest(), sslContext);
+        try (StubQueryMetricService service = new StubQueryMetricService(2, QueryMetricSslContextFactory.createSslContext(ssl))) {
+            RestTemplate restTemplate = new RestTemplate(requestFactory);
+            assertThrows(ResourceAccessException.class, () -> post(restTemplate, uri(service, "https")));
+            assertEquals(0, service.getRequestCount());
+        } finally {
+            requestFactory.destroy();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package datawave.microservice.querymetric.config;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+import datawave.microservice.querymetric.function.QueryMetricBatchSupplier;
+import datawave.microservice.querymetric.function.QueryMetricSupplier;
+
+public class QueryMetricSourceConfigurationTest {
+    
+    private static final String FUNCTION_DEFINITION = "spring.cloud.function.definition=queryMetricSource;queryMetricBatchSource";
+    
+    private static final String BATCH_ENABLED = "datawave.query.metric.client.batch.enabled=true";
+    
+    private final ApplicationContextRunner contextRunner = new ApplicationContextRunner().withUserConfiguration(SourceConfiguration.class);
+    
+    @Configuration
+    @EnableConfigurationProperties(QueryMetricClientProperties.class)
+    @Import(QueryMetricSourceConfiguration.class)
+    static class SourceConfiguration {}
+    
+    @Test
+    public void testBatchSourceNeedsBatchingAndBinding() {
+        contextRunner.withPropertyValues(BATCH_ENABLED, FUNCTION_DEFINITION).run(context -> {
+            assertEquals(1, context.getBeansOfType(QueryMetricSupplier.class).size());
+            assertEquals(1, context.getBeansOfType(QueryMetricBatchSupplier.class).size());
+        });
+        
+        // a batch source which isn't bound would buffer batches which never go anywhere, so the client sends individual updates instead
+        contextRunner.withPropertyValues(BATCH_ENABLED, "spring.cloud.function.definition=queryMetricSource").run(context -> {
+            assertEquals(1, context.getBeansOfType(QueryMetricSupplier.class).size());
+            assertEquals(0, context.getBeansOfType(QueryMetricBatchSupplier.class).size());
+        });
+        contextRunner.withPropertyValues(FUNCTION_DEFINITION).run(context -> {
+            assertEquals(0, context.getBeansOfType(QueryMetricBatchSupplier.class).size());
+        });
+    }
+}
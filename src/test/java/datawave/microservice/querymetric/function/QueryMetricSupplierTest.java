@@ -0,0 +1,170 @@
+package datawave.microservice.querymetric.function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import datawave.microservice.querymetric.QueryMetric;
+import datawave.microservice.querymetric.QueryMetricTestSupport;
+import datawave.microservice.querymetric.QueryMetricType;
+import datawave.microservice.querymetric.QueryMetricUpdate;
+import datawave.microservice.querymetric.config.QueryMetricClientProperties.Source;
+import datawave.microservice.querymetric.config.QueryMetricOverflowPolicy;
+import datawave.microservice.querymetric.function.QueryMetricMessageSupplier.EmitOutcome;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+public class QueryMetricSupplierTest {
+    
+    @Test
+    public void testDropOldestBuffersBeforeSubscription() {
+        Source source = new Source();
+        source.setBufferSize(4);
+        source.setOverflowPolicy(QueryMetricOverflowPolicy.DROP_OLDEST);
+        QueryMetricSupplier supplier = new QueryMetricSupplier(source);
+        
+        // nothing has subscribed yet, so the oldest messages are evicted once the buffer is full
+        for (int i = 0; i < 6; i++) {
+            assertEquals(EmitOutcome.EMITTED, supplier.emit(message("query-" + i, QueryMetricType.DISTRIBUTED), false));
+        }
+        assertEquals(0, supplier.getOutcomeCount(EmitOutcome.NO_SUBSCRIBER));
+        assertEquals(2, supplier.getOutcomeCount(EmitOutcome.DROPPED));
+        assertEquals(4, supplier.getPendingCount());
+        
+        assertEquals(List.of("query-2", "query-3", "query-4", "query-5"), queryIds(supplier.get().take(4).collectList().block(Duration.ofSeconds(5))));
+        assertEquals(0, supplier.getPendingCount());
+    }
+    
+    @Test
+    public void testDropOldestDeliversToSubscriber() {
+        Source source = new Source();
+        source.setBufferSize(256);
+        source.setOverflowPolicy(QueryMetricOverflowPolicy.DROP_OLDEST);
+        QueryMetricSupplier supplier = new QueryMetricSupplier(source);
+        
+        CompletableFuture<List<Message<QueryMetricUpdate>>> received = supplier.get().take(200).collectList().toFuture();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            supplier.emit(message("query-" + i, QueryMetricType.DISTRIBUTED), false);
+            expected.add("query-" + i);
+        }
+        assertEquals(expected, queryIds(received.join()));
+        assertEquals(0, supplier.getOutcomeCount(EmitOutcome.DROPPED));
+    }
+    
+    @Test
+    public void testEvictedMessagesArePassedToListener() {
+        Source source = new Source();
+        source.setBufferSize(2);
+        source.setOverflowPolicy(QueryMetricOverflowPolicy.DROP_OLDEST);
+        QueryMetricSupplier supplier = new QueryMetricSupplier(source);
+        List<Message<?>> evicted = new ArrayList<>();
+        supplier.setEvictionListener(evicted::add);
+        
+        for (int i = 0; i < 4; i++) {
+            assertEquals(EmitOutcome.EMITTED, supplier.emit(message("query-" + i, QueryMetricType.DISTRIBUTED), false));
+        }
+        assertEquals(List.of("query-0", "query-1"), queryIds(evicted));
+        assertEquals(2, supplier.getOutcomeCount(EmitOutcome.DROPPED));
+    }
+    
+    @Test
+    public void testSinkSurvivesResubscription() {
+        Source source = new Source();
+        source.setBufferSize(4);
+        QueryMetricSupplier supplier = new QueryMetricSupplier(source);
+        Flux<Message<QueryMetricUpdate>> flux = supplier.get();
+        
+        assertEquals(EmitOutcome.EMITTED, supplier.emit(message("query-0", QueryMetricType.DISTRIBUTED), false));
+        assertEquals(List.of("query-0"), queryIds(flux.take(1).collectList().block(Duration.ofSeconds(5))));
+        
+        // the binding has cancelled its subscription, as it does whenever it stops, but messages are still buffered for it until it resubscribes
+        assertEquals(EmitOutcome.EMITTED, supplier.emit(message("query-1", QueryMetricType.DISTRIBUTED), false));
+        assertEquals(List.of("query-1"), queryIds(flux.take(1).collectList().block(Duration.ofSeconds(5))));
+    }
+    
+    @Test
+    public void testStopDrainsBothLanes() throws Exception {
+        Source source = new Source();
+        source.setPriorityLaneEnabled(true);
+        QueryMetricSupplier supplier = new QueryMetricSupplier(source);
+        supplier.start();
+        for (int i = 0; i < 3; i++) {
+            supplier.emit(message("query-" + i, QueryMetricType.DISTRIBUTED), false);
+        }
+        for (int i = 3; i < 5; i++) {
+            supplier.emit(message("query-" + i, QueryMetricType.COMPLETE), false);
+        }
+        
+        // a slow subscriber, which takes one message at a time, so that stopping has to wait for the regular lane once the priority lane is empty
+        List<Message<?>> received = new CopyOnWriteArrayList<>();
+        Disposable subscription = supplier.get().publishOn(Schedulers.boundedElastic(), 1).doOnNext(message -> {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+            received.add(message);
+        }).subscribe();
+        supplier.stop();
+        assertEquals(0, supplier.getPendingCount());
+        QueryMetricTestSupport.await(() -> received.size() == 5);
+        assertEquals(List.of("query-3", "query-4", "query-0", "query-1", "query-2"), queryIds(received));
+        subscription.dispose();
+    }
+    
+    @Test
+    public void testPriorityLaneIsDrainedFirst() {
+        Source source = new Source();
+        source.setPriorityLaneEnabled(true);
+        QueryMetricSupplier supplier = new QueryMetricSupplier(source);
+        
+        // the final updates are emitted behind a backlog of intermediate ones, but are passed on ahead of them
+        for (int i = 0; i < 3; i++) {
+            supplier.emit(message("query-" + i, QueryMetricType.DISTRIBUTED), false);
+        }
+        for (int i = 3; i < 5; i++) {
+            supplier.emit(message("query-" + i, QueryMetricType.COMPLETE), false);
+        }
+        assertEquals(List.of("query-3", "query-4", "query-0", "query-1", "query-2"),
+                        queryIds(supplier.get().take(5).collectList().block(Duration.ofSeconds(5))));
+    }
+    
+    @Test
+    public void testPriorityLaneHasItsOwnBuffer() {
+        Source source = new Source();
+        source.setPriorityLaneEnabled(true);
+        source.setBufferSize(2);
+        source.setPriorityBufferSize(2);
+        QueryMetricSupplier supplier = new QueryMetricSupplier(source);
+        
+        for (int i = 0; i < 2; i++) {
+            assertEquals(EmitOutcome.EMITTED, supplier.emit(message("query-" + i, QueryMetricType.DISTRIBUTED), false));
+        }
+        assertEquals(EmitOutcome.OVERFLOW, supplier.emit(message("query-2", QueryMetricType.DISTRIBUTED), false));
+        
+        // a full regular lane doesn't hold up the final updates
+        for (int i = 3; i < 5; i++) {
+            assertEquals(EmitOutcome.EMITTED, supplier.emit(message("query-" + i, QueryMetricType.COMPLETE), false));
+        }
+        assertEquals(EmitOutcome.OVERFLOW, supplier.emit(message("query-5", QueryMetricType.COMPLETE), false));
+    }
+    
+    static Message<QueryMetricUpdate> message(String queryId, QueryMetricType metricType) {
+        QueryMetric metric = new QueryMetric();
+        metric.setQueryId(queryId);
+        return MessageBuilder.withPayload(new QueryMetricUpdate(metric, metricType)).build();
+    }
+    
+    static List<String> queryIds(List<? extends Message<?>> messages) {
+        return messages.stream().map(message -> ((QueryMetricUpdate) message.getPayload()).getMetric().getQueryId()).collect(Collectors.toList());
+    }
+}